@@ -23,4 +23,38 @@ tasks.withType<JavaCompile> {
     options.compilerArgs.add("--enable-preview")
 }
 
+dependencies {
+    testImplementation("org.junit.jupiter:junit-jupiter:5.7.0")
+}
+
+tasks.test {
+    useJUnitPlatform()
+    jvmArgs("--enable-preview")
+}
 
+// JMH benchmarks live in src/jmh/java. Run them all with `./gradlew jmh`, or a subset with
+// `./gradlew jmh -Pjmh.includes=Tokenizer`; results land in build/reports/jmh.
+val jmhVersion = "1.25"
+
+val jmh by sourceSets.creating {
+    compileClasspath += sourceSets.main.get().output
+    runtimeClasspath += sourceSets.main.get().output
+}
+
+dependencies {
+    "jmhImplementation"("org.openjdk.jmh:jmh-core:$jmhVersion")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:$jmhVersion")
+}
+
+tasks.register<JavaExec>("jmh") {
+    group = "benchmark"
+    description = "Runs the JMH benchmarks with the gc profiler."
+    dependsOn(tasks.named("jmhClasses"))
+    classpath = jmh.runtimeClasspath
+    main = "org.openjdk.jmh.Main"
+    val results = file("$buildDir/reports/jmh/results.json")
+    doFirst { results.parentFile.mkdirs() }
+    args("-prof", "gc", "-rf", "json", "-rff", results.path, "-jvmArgsAppend", "--enable-preview")
+    findProperty("jmh.includes")?.let { args(it) }
+    jvmArgs("--enable-preview")
+}
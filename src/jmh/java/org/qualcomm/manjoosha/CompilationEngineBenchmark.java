@@ -0,0 +1,43 @@
+package org.qualcomm.manjoosha;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lexing, parsing and code generation of one class, with the output thrown away.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompilationEngineBenchmark {
+
+    @Param({JackSources.BUNDLED, JackSources.LARGE})
+    public String input;
+
+    private String source;
+
+    @Setup
+    public void setUp() {
+        source = JackSources.source(input);
+    }
+
+    @Benchmark
+    public long compileToNullSink() {
+        var sink = new NullCodeSink();
+        new CompilationEngine(source, sink).compileClass();
+        return sink.written();
+    }
+}
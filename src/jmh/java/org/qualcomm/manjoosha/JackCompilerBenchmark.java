@@ -0,0 +1,69 @@
+package org.qualcomm.manjoosha;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end compile of a project directory, .vm files included, as {@code JackCompiler dir}
+ * runs it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JackCompilerBenchmark {
+
+    @Param({"8"})
+    public int classes;
+
+    @Param({"50", "500"})
+    public int functions;
+
+    @Param({"1", "4"})
+    public int jobs;
+
+    private File project;
+    private List<File> jackFiles;
+    private CompilerOptions options;
+
+    @Setup
+    public void setUp() throws IOException {
+        project = JackSources.writeProject(classes, functions);
+        jackFiles = JackCompiler.readJackFilesInDir(project);
+        options = CompilerOptions.parse(new String[]{"--jobs", Integer.toString(jobs), project.getPath()});
+    }
+
+    @TearDown
+    public void tearDown() {
+        JackSources.deleteProject(project);
+    }
+
+    @Benchmark
+    public int compileDirectory() {
+        var status = JackCompiler.compile(jackFiles, options, result -> {
+            if (!result.isSuccess()) {
+                throw new IllegalStateException(result.toString());
+            }
+        }, System.err);
+        if (status != 0) {
+            throw new IllegalStateException("Compilation failed with status " + status);
+        }
+        return status;
+    }
+}
@@ -0,0 +1,104 @@
+package org.qualcomm.manjoosha;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Benchmark inputs: the bundled Main.jack and synthetic classes that exercise every statement
+ * and expression form, sized by their number of functions.
+ */
+public class JackSources {
+
+    public static final String BUNDLED = "Main";
+    public static final String LARGE = "large";
+
+    private static final int LARGE_FUNCTIONS = 2000;
+
+    public static String source(String input) {
+        return switch (input) {
+            case BUNDLED -> bundledMain();
+            case LARGE -> generate("Main", LARGE_FUNCTIONS);
+            default -> throw new IllegalArgumentException("Unknown benchmark input " + input);
+        };
+    }
+
+    public static String bundledMain() {
+        try (InputStream in = JackSources.class.getResourceAsStream("/Main.jack")) {
+            if (in == null) {
+                throw new IllegalStateException("Main.jack is not on the classpath");
+            }
+            return new String(in.readAllBytes(), StandardCharsets.ISO_8859_1);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static String generate(String className, int functions) {
+        var out = new StringBuilder(functions * 600);
+        out.append("class ").append(className).append(" {\n");
+        out.append("    static int counter;\n");
+        out.append("    field int x, y;\n\n");
+        out.append("    constructor ").append(className).append(" new(int ax, int ay) {\n");
+        out.append("        let x = ax;\n        let y = ay;\n        return this;\n    }\n\n");
+        out.append("    method int sum() {\n        return x + y;\n    }\n\n");
+        for (var i = 0; i < functions; i++) {
+            out.append("    /** Generated function ").append(i).append(". */\n");
+            out.append("    function int f").append(i).append("(int a, int b) {\n");
+            out.append("        var int i, total;\n");
+            out.append("        var Array values;\n");
+            out.append("        var boolean done;\n");
+            out.append("        let values = Array.new(8);\n");
+            out.append("        let i = 0;\n");
+            out.append("        let done = false;\n");
+            out.append("        while ((i < 8) & (~done)) {\n");
+            out.append("            let values[i] = (a * i) + (b / (i + 1)) - ").append(i % 100).append(";\n");
+            out.append("            if (values[i] > 100) {\n");
+            out.append("                let done = true;\n");
+            out.append("            } else {\n");
+            out.append("                let total = total + values[i];\n");
+            out.append("            }\n");
+            out.append("            let i = i + 1;\n");
+            out.append("        }\n");
+            out.append("        // keep the string and call paths busy too\n");
+            out.append("        do Output.printString(\"f").append(i).append("\");\n");
+            out.append("        let counter = counter + 1;\n");
+            out.append("        do values.dispose();\n");
+            out.append("        return -total;\n");
+            out.append("    }\n\n");
+        }
+        out.append("    function void main() {\n");
+        out.append("        var ").append(className).append(" p;\n");
+        out.append("        let p = ").append(className).append(".new(1, 2);\n");
+        out.append("        do Output.printInt(p.sum());\n");
+        out.append("        return;\n    }\n}\n");
+        return out.toString();
+    }
+
+    /**
+     * Writes a project directory holding the bundled Main.jack plus {@code classes} generated
+     * classes of {@code functions} functions each.
+     */
+    public static File writeProject(int classes, int functions) throws IOException {
+        var dir = Files.createTempDirectory("jack-bench").toFile();
+        Files.writeString(new File(dir, "Main.jack").toPath(), bundledMain(), StandardCharsets.ISO_8859_1);
+        for (var i = 0; i < classes; i++) {
+            var name = "Gen" + i;
+            Files.writeString(new File(dir, name + ".jack").toPath(), generate(name, functions), StandardCharsets.ISO_8859_1);
+        }
+        return dir;
+    }
+
+    public static void deleteProject(File dir) {
+        var files = dir.listFiles();
+        if (files != null) {
+            for (var file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+}
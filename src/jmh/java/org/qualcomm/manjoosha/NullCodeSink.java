@@ -0,0 +1,23 @@
+package org.qualcomm.manjoosha;
+
+/**
+ * Discards the generated code so benchmarks measure the compiler rather than the disk.
+ */
+public class NullCodeSink implements CodeSink {
+
+    private long written;
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+        written += length;
+    }
+
+    @Override
+    public void close() {
+        // nothing to release
+    }
+
+    public long written() {
+        return written;
+    }
+}
@@ -0,0 +1,61 @@
+package org.qualcomm.manjoosha;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenizerBenchmark {
+
+    @Param({JackSources.BUNDLED, JackSources.LARGE})
+    public String input;
+
+    private String source;
+
+    @Setup
+    public void setUp() {
+        source = JackSources.source(input);
+    }
+
+    /**
+     * Scanning alone: the in-memory tokenizer lexes the whole source up front.
+     */
+    @Benchmark
+    public JackTokenizer lex() {
+        return new JackTokenizer(source);
+    }
+
+    /**
+     * Scanning plus walking every token and asking for its typed value, as the parser does.
+     */
+    @Benchmark
+    public void classify(Blackhole blackhole) {
+        var tokenizer = new JackTokenizer(source);
+        while (tokenizer.hasNextToken()) {
+            tokenizer.consume();
+            switch (tokenizer.tokenType()) {
+                case KEYWORD -> blackhole.consume(tokenizer.keyWord());
+                case SYMBOL -> blackhole.consume(tokenizer.symbol());
+                case IDENTIFIER -> blackhole.consume(tokenizer.identifier());
+                case INT_CONST -> blackhole.consume(tokenizer.intVal());
+                case STRING_CONST -> blackhole.consume(tokenizer.stringVal());
+                default -> throw new IllegalStateException("Unexpected token " + tokenizer.getCurrentToken());
+            }
+        }
+    }
+}
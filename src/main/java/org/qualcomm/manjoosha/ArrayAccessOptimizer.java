@@ -0,0 +1,311 @@
+package org.qualcomm.manjoosha;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Cuts the address arithmetic of array accesses. Each function is buffered whole, and every
+ * {@code pop pointer 1} whose address is computed only from locals, arguments and constants is
+ * found by simulating the stack. Two rewrites use them:
+ * <ul>
+ * <li>an address that no statement in an enclosing loop can change is computed once before the
+ * loop into a new local, and the loop only pushes that local;</li>
+ * <li>an address pointer 1 still holds is not recomputed at all, as in
+ * {@code a[i] * a[i]} or {@code let a[j] = a[j] + 1}. Calls leave pointer 1 as it was, since a
+ * call restores {@code that} on return, and cannot change the caller's locals or arguments.</li>
+ * </ul>
+ * Loops are recognized in the rotated form the engine emits at -O1,
+ * {@code goto T; label B; body; label T; condition; if-goto B}, and only when nothing outside
+ * jumps into them.
+ */
+public class ArrayAccessOptimizer extends InstructionRecorder {
+
+    private final VMWriter downstream;
+    private final InstructionList function;
+
+    public ArrayAccessOptimizer(VMWriter downstream) {
+        this.downstream = downstream;
+        function = new InstructionList();
+    }
+
+    @Override
+    protected void add(byte kind, int operand, int number, String name) {
+        if (kind == InstructionList.FUNCTION) {
+            flush();
+        }
+        function.add(kind, operand, number, name);
+    }
+
+    @Override
+    public void close() {
+        try {
+            flush();
+        } finally {
+            downstream.close();
+        }
+    }
+
+    private void flush() {
+        if (function.isEmpty()) {
+            return;
+        }
+        var code = function.kind(0) == InstructionList.FUNCTION ? withHoistedAddresses(function) : function;
+        code.retain(withoutReloadedAddresses(code));
+        code.emitAll(downstream);
+        function.clear();
+    }
+
+    /**
+     * An address pushed by the instructions {@code start..end} and consumed by the
+     * {@code pop pointer 1} at {@code pop}.
+     */
+    private static final class Address {
+
+        final int start;
+        final int end;
+        final int pop;
+
+        Address(int start, int end, int pop) {
+            this.start = start;
+            this.end = end;
+            this.pop = pop;
+        }
+    }
+
+    /**
+     * Simulates the stack within each basic block, tracking for every value the instructions
+     * that computed it and whether they only read locals, arguments and constants.
+     */
+    private static List<Address> addresses(InstructionList code) {
+        var addresses = new ArrayList<Address>();
+        var starts = new int[code.size() + 1];
+        var ends = new int[code.size() + 1];
+        var pure = new boolean[code.size() + 1];
+        var depth = 0;
+        for (var i = 0; i < code.size(); i++) {
+            switch (code.kind(i)) {
+                case InstructionList.PUSH -> {
+                    starts[depth] = i;
+                    ends[depth] = i;
+                    pure[depth++] = isVariable(code, i) || code.segment(i) == VMCodeGenerator.SEGMENT.CONST;
+                }
+                case InstructionList.POP -> {
+                    if (depth > 0) {
+                        depth--;
+                        if (pure[depth] && code.segment(i) == VMCodeGenerator.SEGMENT.POINTER && code.number(i) == 1) {
+                            addresses.add(new Address(starts[depth], ends[depth], i));
+                        }
+                    }
+                }
+                case InstructionList.ARITHMETIC -> {
+                    var command = code.command(i);
+                    var unary = command == VMCodeGenerator.COMMAND.NEG || command == VMCodeGenerator.COMMAND.NOT;
+                    if (depth < (unary ? 1 : 2)) {
+                        depth = 0;
+                        continue;
+                    }
+                    if (unary) {
+                        pure[depth - 1] &= ends[depth - 1] == i - 1;
+                    } else {
+                        depth--;
+                        pure[depth - 1] &= pure[depth] && ends[depth - 1] + 1 == starts[depth] && ends[depth] == i - 1;
+                    }
+                    ends[depth - 1] = i;
+                }
+                case InstructionList.CALL -> {
+                    depth = Math.max(depth - code.number(i), 0);
+                    starts[depth] = i;
+                    ends[depth] = i;
+                    pure[depth++] = false;
+                }
+                default -> depth = 0;
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Moves the computation of loop-invariant addresses in front of the outermost loop they
+     * are invariant in.
+     */
+    private static InstructionList withHoistedAddresses(InstructionList code) {
+        var loops = loops(code);
+        if (loops.isEmpty()) {
+            return code;
+        }
+        // per loop entry, the local of every address hoisted there
+        var hoisted = new HashMap<Integer, LinkedHashMap<String, Integer>>();
+        var computations = new HashMap<Integer, Address>();
+        // per start of a replaced address computation, the computation and its local
+        var replaced = new HashMap<Integer, Address>();
+        var replacement = new HashMap<Integer, Integer>();
+        var locals = code.number(0);
+        for (var address : addresses(code)) {
+            if (address.end == address.start) {
+                continue;
+            }
+            int[] best = null;
+            for (var loop : loops) {
+                if (loop[1] <= address.start && address.pop <= loop[2] && !writesAny(code, address, loop[1], loop[2])
+                        && (best == null || loop[2] - loop[1] > best[2] - best[1])) {
+                    best = loop;
+                }
+            }
+            if (best != null) {
+                var atEntry = hoisted.computeIfAbsent(best[0], entry -> new LinkedHashMap<>());
+                var key = key(code, address);
+                var local = atEntry.get(key);
+                if (local == null) {
+                    local = locals++;
+                    atEntry.put(key, local);
+                    computations.put(local, address);
+                }
+                replaced.put(address.start, address);
+                replacement.put(address.start, local);
+            }
+        }
+        if (replacement.isEmpty()) {
+            return code;
+        }
+
+        var result = new InstructionList();
+        for (var i = 0; i < code.size(); i++) {
+            var atEntry = hoisted.get(i);
+            if (atEntry != null) {
+                for (var local : atEntry.values()) {
+                    var address = computations.get(local);
+                    for (var j = address.start; j <= address.end; j++) {
+                        result.add(code, j);
+                    }
+                    result.add(InstructionList.POP, VMCodeGenerator.SEGMENT.LOCAL.ordinal(), local, null);
+                }
+            }
+            var local = replacement.get(i);
+            if (local != null) {
+                result.add(InstructionList.PUSH, VMCodeGenerator.SEGMENT.LOCAL.ordinal(), local, null);
+                i = replaced.get(i).end;
+            } else {
+                result.add(code, i);
+            }
+        }
+        result.setNumber(0, locals);
+        return result;
+    }
+
+    /**
+     * @return for every rotated loop nothing outside jumps into, its entry (where code to run
+     * once before it goes), its first and its last instruction
+     */
+    private static List<int[]> loops(InstructionList code) {
+        var labels = new HashMap<String, Integer>();
+        for (var i = 0; i < code.size(); i++) {
+            if (code.kind(i) == InstructionList.LABEL) {
+                labels.put(code.name(i), i);
+            }
+        }
+        var loops = new ArrayList<int[]>();
+        for (var i = 0; i < code.size(); i++) {
+            if (code.kind(i) != InstructionList.IF) {
+                continue;
+            }
+            var body = labels.get(code.name(i));
+            if (body == null || body >= i || body == 0) {
+                continue;
+            }
+            var entry = body;
+            if (code.kind(body - 1) == InstructionList.GOTO) {
+                var test = labels.get(code.name(body - 1));
+                if (test == null || test < body || test > i) {
+                    continue;
+                }
+                entry = body - 1;
+            }
+            if (isEnteredOnlyAt(code, labels, entry, body, i)) {
+                loops.add(new int[]{entry, body, i});
+            }
+        }
+        return loops;
+    }
+
+    private static boolean isEnteredOnlyAt(InstructionList code, HashMap<String, Integer> labels, int entry, int first, int last) {
+        for (var i = 0; i < code.size(); i++) {
+            var kind = code.kind(i);
+            if ((kind == InstructionList.GOTO || kind == InstructionList.IF) && (i < first || i > last) && i != entry) {
+                var target = labels.get(code.name(i));
+                if (target != null && target >= first && target <= last) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return a mask without the address computations and {@code pop pointer 1} of accesses
+     * to the address pointer 1 already holds
+     */
+    private static boolean[] withoutReloadedAddresses(InstructionList code) {
+        var keep = new boolean[code.size()];
+        Arrays.fill(keep, true);
+        var byPop = new HashMap<Integer, Address>();
+        for (var address : addresses(code)) {
+            byPop.put(address.pop, address);
+        }
+        Address current = null;
+        for (var i = 0; i < code.size(); i++) {
+            var kind = code.kind(i);
+            if (kind == InstructionList.LABEL || kind == InstructionList.FUNCTION) {
+                current = null;
+            } else if (kind == InstructionList.POP && code.segment(i) == VMCodeGenerator.SEGMENT.POINTER && code.number(i) == 1) {
+                var address = byPop.get(i);
+                if (address != null && current != null && key(code, address).equals(key(code, current))
+                        && !writesAny(code, address, address.start, i)) {
+                    for (var j = address.start; j <= address.end; j++) {
+                        keep[j] = false;
+                    }
+                    keep[i] = false;
+                } else {
+                    current = address;
+                }
+            } else if (kind == InstructionList.POP && current != null && writesAny(code, current, i, i)) {
+                current = null;
+            }
+        }
+        return keep;
+    }
+
+    /**
+     * @return true if an instruction in {@code from..to} stores to a variable the address is
+     * computed from
+     */
+    private static boolean writesAny(InstructionList code, Address address, int from, int to) {
+        for (var i = from; i <= to; i++) {
+            if (code.kind(i) != InstructionList.POP || !isVariable(code, i)) {
+                continue;
+            }
+            for (var j = address.start; j <= address.end; j++) {
+                if (code.kind(j) == InstructionList.PUSH && code.segment(j) == code.segment(i) && code.number(j) == code.number(i)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String key(InstructionList code, Address address) {
+        var key = new StringBuilder();
+        for (var i = address.start; i <= address.end; i++) {
+            key.append(code.kind(i)).append(':');
+            key.append(code.kind(i) == InstructionList.PUSH ? code.segment(i).ordinal() : code.command(i).ordinal());
+            key.append(':').append(code.number(i)).append(' ');
+        }
+        return key.toString();
+    }
+
+    private static boolean isVariable(InstructionList code, int i) {
+        return code.segment(i) == VMCodeGenerator.SEGMENT.LOCAL || code.segment(i) == VMCodeGenerator.SEGMENT.ARG;
+    }
+}
@@ -0,0 +1,187 @@
+package org.qualcomm.manjoosha;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent manifest of the last successful build of each .jack file in a directory. An entry
+ * holds the SHA-256 of the source and the size and modification time of both the source and
+ * its .vm output. The whole manifest is discarded when the compiler options fingerprint
+ * changes. Size and mtime are only a shortcut for skipping the hash; the content hash decides.
+ */
+public class BuildCache {
+
+    public static final String MANIFEST_NAME = ".jackcache";
+
+    private static final String FORMAT = "1";
+    private static final String FINGERPRINT_KEY = "fingerprint";
+
+    private final File manifest;
+    private final String fingerprint;
+    private final ConcurrentHashMap<String, Entry> entries;
+
+    private BuildCache(File manifest, String fingerprint) {
+        this.manifest = manifest;
+        this.fingerprint = fingerprint;
+        this.entries = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @param err receives a warning if the manifest cannot be read, in which case the cache
+     *            starts out empty
+     */
+    public static BuildCache load(File dir, String optionsFingerprint, PrintStream err) {
+        var cache = new BuildCache(new File(dir, MANIFEST_NAME), FORMAT + " " + optionsFingerprint);
+        if (!cache.manifest.isFile()) {
+            return cache;
+        }
+        var properties = new Properties();
+        try (var in = new FileInputStream(cache.manifest)) {
+            properties.load(in);
+        } catch (IOException e) {
+            err.println("Ignoring unreadable build cache " + cache.manifest + " : " + e.getMessage());
+            return cache;
+        }
+        if (!cache.fingerprint.equals(properties.getProperty(FINGERPRINT_KEY))) {
+            return cache;
+        }
+        properties.forEach((key, value) -> {
+            var entry = Entry.parse((String) value);
+            if (!key.equals(FINGERPRINT_KEY) && entry != null) {
+                cache.entries.put((String) key, entry);
+            }
+        });
+        return cache;
+    }
+
+    /**
+     * Captures the size and modification time of the source before hashing it, so an edit made
+     * while it is being compiled is picked up by the next build. The recorded hash is reused when
+     * size and modification time are unchanged.
+     */
+    public SourceState inspect(File source) throws IOException {
+        var size = source.length();
+        var modified = source.lastModified();
+        var entry = entries.get(source.getName());
+        var hash = entry != null && entry.sourceSize == size && entry.sourceModified == modified
+                ? entry.sourceHash
+                : sha256(Files.readAllBytes(source.toPath()));
+        return new SourceState(source.getName(), hash, size, modified);
+    }
+
+    public boolean isUpToDate(SourceState source, File output) {
+        var entry = entries.get(source.name);
+        return entry != null
+                && entry.sourceHash.equals(source.hash)
+                && output.isFile()
+                && entry.outputSize == output.length()
+                && entry.outputModified == output.lastModified();
+    }
+
+    public void record(SourceState source, File output) {
+        entries.put(source.name, new Entry(source.hash, source.size, source.modified,
+                output.length(), output.lastModified()));
+    }
+
+    public void forget(File source) {
+        entries.remove(source.getName());
+    }
+
+    /**
+     * @param err receives a warning if the manifest cannot be written
+     */
+    public void save(PrintStream err) {
+        var properties = new TreeMap<String, String>();
+        entries.forEach((name, entry) -> properties.put(name, entry.toString()));
+        var lines = new StringBuilder();
+        lines.append(FINGERPRINT_KEY).append('=').append(fingerprint).append('\n');
+        properties.forEach((name, entry) -> lines.append(escape(name)).append('=').append(entry).append('\n'));
+        try {
+            var temp = File.createTempFile(MANIFEST_NAME, ".tmp", manifest.getParentFile());
+            try (var out = new FileOutputStream(temp)) {
+                out.write(lines.toString().getBytes(StandardCharsets.ISO_8859_1));
+            }
+            Files.move(temp.toPath(), manifest.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            err.println("Could not write build cache " + manifest + " : " + e.getMessage());
+        }
+    }
+
+    private static String escape(String key) {
+        return key.replace("\\", "\\\\").replace("=", "\\=").replace(":", "\\:").replace(" ", "\\ ");
+    }
+
+    public static String sha256(byte[] bytes) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            var hex = new StringBuilder(digest.length * 2);
+            for (var b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static class SourceState {
+
+        private final String name;
+        private final String hash;
+        private final long size;
+        private final long modified;
+
+        private SourceState(String name, String hash, long size, long modified) {
+            this.name = name;
+            this.hash = hash;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    private static class Entry {
+
+        private final String sourceHash;
+        private final long sourceSize;
+        private final long sourceModified;
+        private final long outputSize;
+        private final long outputModified;
+
+        private Entry(String sourceHash, long sourceSize, long sourceModified, long outputSize, long outputModified) {
+            this.sourceHash = sourceHash;
+            this.sourceSize = sourceSize;
+            this.sourceModified = sourceModified;
+            this.outputSize = outputSize;
+            this.outputModified = outputModified;
+        }
+
+        private static Entry parse(String value) {
+            var fields = value.split(",");
+            if (fields.length != 5) {
+                return null;
+            }
+            try {
+                return new Entry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                        Long.parseLong(fields[3]), Long.parseLong(fields[4]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return sourceHash + "," + sourceSize + "," + sourceModified + "," + outputSize + "," + outputModified;
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package org.qualcomm.manjoosha;
+
+/**
+ * Destination of the bytes {@link VMCodeGenerator} produces. Writes arrive in buffer-sized
+ * chunks; close() follows the last one.
+ */
+public interface CodeSink {
+
+    void write(byte[] bytes, int offset, int length);
+
+    void close();
+}
@@ -1,107 +1,199 @@
 package org.qualcomm.manjoosha;
 
 import java.io.File;
-
+import java.util.Arrays;
+
+/**
+ * Parses one class into a {@link SyntaxTree} a subroutine at a time. Each subroutine is run
+ * through the {@link TreeOptimizer} at -O1 and above and handed to the
+ * {@link TreeCodeGenerator}, which writes its VM code, before the next one is parsed into the
+ * space it took up; only the class's own declarations stay in the tree throughout.
+ */
 public class CompilationEngine {
 
-    private final VMCodeGenerator vmCodeGenerator;
-    private final JackTokenizer jackTokenizer;
-    private final SymbolTable symbolTable;
-    private String currentClass;
-    private String currentSubroutine;
+    private static final int BODY = 0;
+    private static final int LOOP = 1;
+    private static final int THEN = 2;
+    private static final int ELSE = 3;
+
+    // operators below zero open a nested expression; binary ones are their symbol
+    private static final int PARENTHESES = -1;
+    private static final int ELEMENT = -2;
+    private static final int CALL = -3;
+    private static final int UNARY = 0x100;
 
-    private int labelIndex;
+    private final JackTokenizer jackTokenizer;
+    private final SyntaxTree tree;
+    private final NameTable names;
+    private final TreeCodeGenerator generator;
+    private final TreeOptimizer optimizer;
+
+    // the blocks open in compileStatements, innermost last
+    private int[] blockKinds;
+    private int[] blockConditions;
+    private int[] blockFirsts;
+    private int[] blockLasts;
+
+    // compileExpression's stacks; a marker's name and qualifier sit beside it
+    private int[] operands;
+    private int operandCount;
+    private int[] operators;
+    private int[] operatorNames;
+    private int[] operatorQualifiers;
+    private int[] argumentCounts;
+    private int operatorCount;
+    private int callName;
+    private int callQualifier;
 
     public CompilationEngine(File inputFile, File outputFile) {
-        jackTokenizer = new JackTokenizer(inputFile);
-        vmCodeGenerator = new VMCodeGenerator(outputFile);
-        symbolTable = new SymbolTable();
-        labelIndex = 0;
+        this(inputFile, outputFile, new CompilerOptions());
+    }
+
+    public CompilationEngine(File inputFile, File outputFile, CompilerOptions options) {
+        this(inputFile, new VMCodeGenerator(outputFile), options, SignatureIndex.OS);
     }
 
-    private String currentFunction() {
-        return !currentClass.isEmpty() && !currentSubroutine.isEmpty() ? currentClass + "." + currentSubroutine : "";
+    public CompilationEngine(File inputFile, CodeSink output, CompilerOptions options) {
+        this(inputFile, new VMCodeGenerator(output), options, SignatureIndex.OS);
+    }
+
+    public CompilationEngine(File inputFile, VMWriter output, CompilerOptions options) {
+        this(inputFile, output, options, SignatureIndex.OS);
+    }
+
+    /**
+     * Compiles into any {@link VMWriter}, such as a {@link FunctionRecorder}; the optimizer
+     * stages the options ask for are put in front of it.
+     *
+     * @param signatures the program's subroutines, which calls are resolved and checked against
+     */
+    public CompilationEngine(File inputFile, VMWriter output, CompilerOptions options, SignatureIndex signatures) {
+        this(new JackTokenizer(inputFile, options.isStreaming()), output, options, signatures);
+    }
+
+    /**
+     * Compiles source text held in memory; nothing touches the filesystem.
+     */
+    public CompilationEngine(CharSequence source, CodeSink output) {
+        this(source, output, new CompilerOptions());
+    }
+
+    public CompilationEngine(CharSequence source, CodeSink output, CompilerOptions options) {
+        this(new JackTokenizer(source), new VMCodeGenerator(output), options, SignatureIndex.OS);
+    }
+
+    private CompilationEngine(JackTokenizer jackTokenizer, VMWriter vmWriter, CompilerOptions options, SignatureIndex signatures) {
+        this.jackTokenizer = jackTokenizer;
+        names = jackTokenizer.getNames();
+        tree = new SyntaxTree(names);
+        generator = new TreeCodeGenerator(options.getOptimizationLevel() >= 1
+                ? new ArrayAccessOptimizer(new PeepholeOptimizer(new DeadCodeEliminator(vmWriter)))
+                : vmWriter, options, signatures);
+        optimizer = options.getOptimizationLevel() >= 1 ? new TreeOptimizer(options.getOptimizationLevel()) : null;
+        blockKinds = new int[16];
+        blockConditions = new int[16];
+        blockFirsts = new int[16];
+        blockLasts = new int[16];
+        operands = new int[16];
+        operators = new int[16];
+        operatorNames = new int[16];
+        operatorQualifiers = new int[16];
+        argumentCounts = new int[16];
+    }
+
+    public void compileClass() {
+        try {
+            try {
+                parseClass();
+            } finally {
+                jackTokenizer.close();
+            }
+        } finally {
+            generator.close();
+        }
     }
 
-    private String compileType() {
-        jackTokenizer.next();
+    /**
+     * @return the id of the type's name
+     */
+    private int compileType() {
+        jackTokenizer.consume();
         if (jackTokenizer.tokenType() == JackTokenizer.TYPE.KEYWORD
                 && (jackTokenizer.keyWord() == JackTokenizer.KEYWORD.INT
                 || jackTokenizer.keyWord() == JackTokenizer.KEYWORD.CHAR
                 || jackTokenizer.keyWord() == JackTokenizer.KEYWORD.BOOLEAN)) {
-            return jackTokenizer.getCurrentToken();
+            return names.intern(jackTokenizer.getCurrentToken());
         }
         if (jackTokenizer.tokenType() == JackTokenizer.TYPE.IDENTIFIER) {
-            return jackTokenizer.identifier();
+            return jackTokenizer.identifierId();
         }
         unexpectedToken("in|char|boolean|className");
-        return "";
+        return SyntaxTree.NONE;
     }
 
-    public void compileClass() {
-        jackTokenizer.next();
+    private void parseClass() {
+        jackTokenizer.consume();
         checkForKeyWordClass();
 
-        jackTokenizer.next();
+        jackTokenizer.consume();
         if (jackTokenizer.tokenType() != JackTokenizer.TYPE.IDENTIFIER) {
             unexpectedToken("className");
         }
-        currentClass = jackTokenizer.identifier();
+        var className = jackTokenizer.identifierId();
         expectedSymbol('{');
-        compileClassVarDec();
-        compileSubroutine();
+        generator.startClass(tree, className, compileClassVarDec());
+        var declarations = tree.size();
+        while (!jackTokenizer.peekSymbol(0, '}')) {
+            var subroutine = compileSubroutine(className);
+            if (optimizer != null) {
+                optimizer.optimize(tree, declarations);
+            }
+            generator.generateSubroutine(subroutine);
+            tree.truncate(declarations);
+        }
         expectedSymbol('}');
         if (jackTokenizer.hasNextToken()) {
             throw new IllegalStateException("Unexpected tokens");
         }
-        vmCodeGenerator.close();
+        generator.endClass();
     }
 
     private void checkForKeyWordClass() {
         if (jackTokenizer.tokenType() != JackTokenizer.TYPE.KEYWORD
                 || jackTokenizer.keyWord() != JackTokenizer.KEYWORD.CLASS) {
-            System.out.println(jackTokenizer.getCurrentToken());
             unexpectedToken("class");
         }
     }
 
-    private void compileClassVarDec() {
-        jackTokenizer.next();
-        if (jackTokenizer.tokenType() == JackTokenizer.TYPE.SYMBOL && jackTokenizer.symbol() == '}') {
-            jackTokenizer.previous();
-            return;
-        }
-        if (isSubroutineKeyword()) {
-            jackTokenizer.previous();
-            return;
-        } else {
-            unexpectedToken("Keywords");
-        }
-        if (jackTokenizer.keyWord() != JackTokenizer.KEYWORD.STATIC && jackTokenizer.keyWord() != JackTokenizer.KEYWORD.FIELD) {
-            unexpectedToken("static or field");
-        }
-        Symbol.Kind kind = null;
-        switch (jackTokenizer.keyWord()) {
-            case STATIC -> kind = Symbol.Kind.STATIC;
-            case FIELD -> kind = Symbol.Kind.FIELD;
-        }
+    /**
+     * @return the first declaration, linked to the others
+     */
+    private int compileClassVarDec() {
+        var first = SyntaxTree.NONE;
+        var last = SyntaxTree.NONE;
+        while (jackTokenizer.peekKeyWord(0, JackTokenizer.KEYWORD.STATIC)
+                || jackTokenizer.peekKeyWord(0, JackTokenizer.KEYWORD.FIELD)) {
+            jackTokenizer.consume();
+            var kind = jackTokenizer.keyWord() == JackTokenizer.KEYWORD.STATIC ? Symbol.Kind.STATIC : Symbol.Kind.FIELD;
 
-        var compileType = compileType();
-        do {
-            jackTokenizer.next();
-            if (jackTokenizer.tokenType() != JackTokenizer.TYPE.IDENTIFIER) {
-                unexpectedToken("identifier");
-            }
-            var variableName = jackTokenizer.identifier();
-            symbolTable.define(variableName, compileType, kind);
-            jackTokenizer.next();
-            if (jackTokenizer.tokenType() != JackTokenizer.TYPE.SYMBOL
-                    || (jackTokenizer.symbol() != ','
-                    && jackTokenizer.symbol() != ';')) {
-                unexpectedToken("',' or ';'");
-            }
-        } while (jackTokenizer.symbol() != ';');
-        compileClassVarDec();
+            var compileType = compileType();
+            do {
+                jackTokenizer.consume();
+                if (jackTokenizer.tokenType() != JackTokenizer.TYPE.IDENTIFIER) {
+                    unexpectedToken("identifier");
+                }
+                var variableName = jackTokenizer.identifierId();
+                last = tree.link(last, tree.add(SyntaxTree.DECLARATION, kind.ordinal(), variableName, compileType, SyntaxTree.NONE));
+                first = first == SyntaxTree.NONE ? last : first;
+                jackTokenizer.consume();
+                if (jackTokenizer.tokenType() != JackTokenizer.TYPE.SYMBOL
+                        || (jackTokenizer.symbol() != ','
+                        && jackTokenizer.symbol() != ';')) {
+                    unexpectedToken("',' or ';'");
+                }
+            } while (jackTokenizer.symbol() != ';');
+        }
+        return first;
     }
 
     private boolean isSubroutineKeyword() {
@@ -111,425 +203,455 @@ public class CompilationEngine {
                 || jackTokenizer.keyWord() == JackTokenizer.KEYWORD.METHOD);
     }
 
-    private void compileSubroutine() {
-        jackTokenizer.next();
-        if (jackTokenizer.tokenType() == JackTokenizer.TYPE.SYMBOL && jackTokenizer.symbol() == '}') {
-            jackTokenizer.previous();
-            return;
-        }
-
+    /**
+     * @return the {@link SyntaxTree#SUBROUTINE}
+     */
+    private int compileSubroutine(int className) {
+        jackTokenizer.consume();
         if (!isSubroutineKeyword()) {
             unexpectedToken("constructor|function|method");
         }
 
         var keyword = jackTokenizer.keyWord();
 
-        symbolTable.startSubroutine();
-
-        if (jackTokenizer.keyWord() == JackTokenizer.KEYWORD.METHOD) {
-            symbolTable.define("this", currentClass, Symbol.Kind.ARG);
+        // the receiver is argument 0 of a method
+        var declarations = SyntaxTree.NONE;
+        if (keyword == JackTokenizer.KEYWORD.METHOD) {
+            declarations = tree.add(SyntaxTree.DECLARATION, Symbol.Kind.ARG.ordinal(), names.intern("this"), className, SyntaxTree.NONE);
         }
 
-        jackTokenizer.next();
-        if (jackTokenizer.tokenType() != JackTokenizer.TYPE.KEYWORD || jackTokenizer.keyWord() != JackTokenizer.KEYWORD.VOID) {
-            jackTokenizer.previous();
+        int returnType;
+        if (jackTokenizer.peekKeyWord(0, JackTokenizer.KEYWORD.VOID)) {
+            jackTokenizer.consume();
+            returnType = names.intern("void");
+        } else {
+            returnType = compileType();
         }
 
-        jackTokenizer.next();
+        jackTokenizer.consume();
         if (jackTokenizer.tokenType() != JackTokenizer.TYPE.IDENTIFIER) {
             unexpectedToken("subroutineName");
         }
-        currentSubroutine = jackTokenizer.identifier();
+        var name = jackTokenizer.identifierId();
         expectedSymbol('(');
-        compileParameterList();
+        var parameters = compileParameterList();
         expectedSymbol(')');
-        compileSubroutineBody(keyword);
-        compileSubroutine();
+        declarations = concat(declarations, parameters);
+        return compileSubroutineBody(keyword, name, returnType, declarations);
     }
 
-    private void compileSubroutineBody(JackTokenizer.KEYWORD keyword) {
+    /**
+     * @return the list starting at {@code first}, followed by the one starting at {@code second}
+     */
+    private int concat(int first, int second) {
+        if (first == SyntaxTree.NONE) {
+            return second;
+        }
+        var last = first;
+        while (tree.nextSibling(last) != SyntaxTree.NONE) {
+            last = tree.nextSibling(last);
+        }
+        tree.link(last, second);
+        return first;
+    }
+
+    private int compileSubroutineBody(JackTokenizer.KEYWORD keyword, int name, int returnType, int declarations) {
         expectedSymbol('{');
-        compileVarDec();
-        genFunctionDec(keyword);
-        compileStatements();
+        var locals = compileVarDec();
+        var body = compileStatements();
         expectedSymbol('}');
+        return tree.add(SyntaxTree.SUBROUTINE, keyword.ordinal(), name, returnType, concat(declarations, concat(locals, body)));
     }
 
-    private void genFunctionDec(JackTokenizer.KEYWORD keyword) {
-        vmCodeGenerator.genFunction(currentFunction(), symbolTable.varCount(Symbol.Kind.VAR));
-        if (keyword == JackTokenizer.KEYWORD.METHOD) {
-            vmCodeGenerator.genPush(VMCodeGenerator.SEGMENT.ARG, 0);
-            vmCodeGenerator.genPop(VMCodeGenerator.SEGMENT.POINTER, 0);
-        } else if (keyword == JackTokenizer.KEYWORD.CONSTRUCTOR) {
-            vmCodeGenerator.genPush(VMCodeGenerator.SEGMENT.CONST, symbolTable.varCount(Symbol.Kind.FIELD));
-            vmCodeGenerator.genCall("Memory.alloc", 1);
-            vmCodeGenerator.genPop(VMCodeGenerator.SEGMENT.POINTER, 0);
+    /**
+     * Parses the statements of a subroutine body up to its closing '}'. The if and while blocks
+     * opened on the way are kept on an explicit stack instead of the Java stack, so nesting
+     * costs no frames.
+     *
+     * @return the {@link SyntaxTree#BLOCK} of the body
+     */
+    private int compileStatements() {
+        var depth = openBlock(0, BODY, SyntaxTree.NONE);
+        while (true) {
+            if (jackTokenizer.peekSymbol(0, '}')) {
+                var block = tree.add(SyntaxTree.BLOCK, 0, SyntaxTree.NONE, SyntaxTree.NONE, blockFirsts[depth]);
+                if (depth == 0) {
+                    return block;
+                }
+                jackTokenizer.consume();
+                var condition = blockConditions[depth];
+                var kind = blockKinds[depth--];
+                if (kind == THEN) {
+                    tree.link(condition, block);
+                    if (jackTokenizer.peekKeyWord(0, JackTokenizer.KEYWORD.ELSE)) {
+                        jackTokenizer.consume();
+                        expectedSymbol('{');
+                        depth = openBlock(depth + 1, ELSE, condition);
+                        continue;
+                    }
+                } else {
+                    tree.link(kind == ELSE ? tree.nextSibling(condition) : condition, block);
+                }
+                appendStatement(depth, tree.add(kind == LOOP ? SyntaxTree.WHILE : SyntaxTree.IF, 0, SyntaxTree.NONE, SyntaxTree.NONE, condition));
+                continue;
+            }
+            jackTokenizer.consume();
+            if (jackTokenizer.tokenType() != JackTokenizer.TYPE.KEYWORD) {
+                unexpectedToken("keyword");
+            }
+            switch (jackTokenizer.keyWord()) {
+                case LET -> appendStatement(depth, compileLet());
+                case IF -> depth = openBlock(depth + 1, THEN, compileBlockCondition());
+                case WHILE -> depth = openBlock(depth + 1, LOOP, compileBlockCondition());
+                case DO -> appendStatement(depth, compileDo());
+                case RETURN -> appendStatement(depth, compileReturn());
+                default -> unexpectedToken("'let'|'if'|'while'|'do'|'return'");
+            }
         }
     }
 
-    private void compileStatements() {
-        jackTokenizer.next();
-
-        if (jackTokenizer.tokenType() == JackTokenizer.TYPE.SYMBOL && jackTokenizer.symbol() == '}') {
-            jackTokenizer.previous();
-            return;
+    /**
+     * @return {@code depth}, now holding an empty block of the given kind
+     */
+    private int openBlock(int depth, int kind, int condition) {
+        if (depth == blockKinds.length) {
+            blockKinds = Arrays.copyOf(blockKinds, depth * 2);
+            blockConditions = Arrays.copyOf(blockConditions, depth * 2);
+            blockFirsts = Arrays.copyOf(blockFirsts, depth * 2);
+            blockLasts = Arrays.copyOf(blockLasts, depth * 2);
         }
+        blockKinds[depth] = kind;
+        blockConditions[depth] = condition;
+        blockFirsts[depth] = SyntaxTree.NONE;
+        blockLasts[depth] = SyntaxTree.NONE;
+        return depth;
+    }
 
-        if (jackTokenizer.tokenType() != JackTokenizer.TYPE.KEYWORD) {
-            unexpectedToken("keyword");
-        } else {
-            switch (jackTokenizer.keyWord()) {
-                case LET -> compileLet();
-                case IF -> compileIf();
-                case WHILE -> compileWhile();
-                case DO -> compileDo();
-                case RETURN -> compileReturn();
-                default -> unexpectedToken("'let'|'if'|'while'|'do'|'return'");
-            }
+    private void appendStatement(int depth, int statement) {
+        if (blockFirsts[depth] == SyntaxTree.NONE) {
+            blockFirsts[depth] = statement;
         }
+        blockLasts[depth] = tree.link(blockLasts[depth], statement);
+    }
 
-        compileStatements();
+    /**
+     * Parses the condition of an if or a while and the '{' that opens its block.
+     */
+    private int compileBlockCondition() {
+        expectedSymbol('(');
+        var condition = compileExpression();
+        expectedSymbol(')');
+        expectedSymbol('{');
+        return condition;
     }
 
-    private void compileParameterList() {
-        jackTokenizer.next();
-        if (jackTokenizer.tokenType() == JackTokenizer.TYPE.SYMBOL && jackTokenizer.symbol() == ')') {
-            jackTokenizer.previous();
-            return;
+    private int compileParameterList() {
+        var first = SyntaxTree.NONE;
+        var last = SyntaxTree.NONE;
+        if (jackTokenizer.peekSymbol(0, ')')) {
+            return first;
         }
 
-        jackTokenizer.previous();
         do {
             var compileType = compileType();
 
-            jackTokenizer.next();
+            jackTokenizer.consume();
             if (jackTokenizer.tokenType() != JackTokenizer.TYPE.IDENTIFIER) {
                 unexpectedToken("identifier");
             }
 
-            symbolTable.define(jackTokenizer.identifier(), compileType, Symbol.Kind.ARG);
+            last = tree.link(last, tree.add(SyntaxTree.DECLARATION, Symbol.Kind.ARG.ordinal(), jackTokenizer.identifierId(), compileType, SyntaxTree.NONE));
+            first = first == SyntaxTree.NONE ? last : first;
 
-            jackTokenizer.next();
-            if (jackTokenizer.tokenType() != JackTokenizer.TYPE.SYMBOL || (jackTokenizer.symbol() != ',' && jackTokenizer.symbol() != ')')) {
-                unexpectedToken("',' or ')'");
-            }
-
-            if (jackTokenizer.symbol() == ')') {
-                jackTokenizer.previous();
+            if (jackTokenizer.peekSymbol(0, ')')) {
                 break;
             }
+            jackTokenizer.consume();
+            if (jackTokenizer.tokenType() != JackTokenizer.TYPE.SYMBOL || jackTokenizer.symbol() != ',') {
+                unexpectedToken("',' or ')'");
+            }
 
         } while (true);
 
+        return first;
     }
 
-    private void compileVarDec() {
-        jackTokenizer.next();
-        if (jackTokenizer.tokenType() != JackTokenizer.TYPE.KEYWORD || jackTokenizer.keyWord() != JackTokenizer.KEYWORD.VAR) {
-            jackTokenizer.previous();
-            return;
-        }
-        var type = compileType();
+    private int compileVarDec() {
+        var first = SyntaxTree.NONE;
+        var last = SyntaxTree.NONE;
+        while (jackTokenizer.peekKeyWord(0, JackTokenizer.KEYWORD.VAR)) {
+            jackTokenizer.consume();
+            var type = compileType();
 
-        do {
-            jackTokenizer.next();
+            do {
+                jackTokenizer.consume();
 
-            if (jackTokenizer.tokenType() != JackTokenizer.TYPE.IDENTIFIER) {
-                unexpectedToken("identifier");
-            }
+                if (jackTokenizer.tokenType() != JackTokenizer.TYPE.IDENTIFIER) {
+                    unexpectedToken("identifier");
+                }
 
-            symbolTable.define(jackTokenizer.identifier(), type, Symbol.Kind.VAR);
-            jackTokenizer.next();
+                last = tree.link(last, tree.add(SyntaxTree.DECLARATION, Symbol.Kind.VAR.ordinal(), jackTokenizer.identifierId(), type, SyntaxTree.NONE));
+                first = first == SyntaxTree.NONE ? last : first;
+                jackTokenizer.consume();
 
-            if (jackTokenizer.tokenType() != JackTokenizer.TYPE.SYMBOL || (jackTokenizer.symbol() != ',' && jackTokenizer.symbol() != ';')) {
-                unexpectedToken("',' or ';'");
-            }
-        } while (jackTokenizer.symbol() != ';');
-        compileVarDec();
+                if (jackTokenizer.tokenType() != JackTokenizer.TYPE.SYMBOL || (jackTokenizer.symbol() != ',' && jackTokenizer.symbol() != ';')) {
+                    unexpectedToken("',' or ';'");
+                }
+            } while (jackTokenizer.symbol() != ';');
+        }
+        return first;
     }
 
-    private void compileDo() {
-        compileSubroutineCall();
+    private int compileDo() {
+        var call = compileSubroutineCall();
         expectedSymbol(';');
-        vmCodeGenerator.genPop(VMCodeGenerator.SEGMENT.TEMP, 0);
+        return tree.add(SyntaxTree.DO, 0, SyntaxTree.NONE, SyntaxTree.NONE, call);
     }
 
-    private void compileLet() {
-        jackTokenizer.next();
+    private int compileLet() {
+        jackTokenizer.consume();
         if (jackTokenizer.tokenType() != JackTokenizer.TYPE.IDENTIFIER) {
             unexpectedToken("varName");
         }
 
-        var varName = jackTokenizer.identifier();
-        jackTokenizer.next();
+        var varName = jackTokenizer.identifierId();
+        jackTokenizer.consume();
         if (jackTokenizer.tokenType() != JackTokenizer.TYPE.SYMBOL || (jackTokenizer.symbol() != '[' && jackTokenizer.symbol() != '=')) {
             unexpectedToken("'['|'='");
         }
 
-        var isexp = false;
+        var index = SyntaxTree.NONE;
         if (jackTokenizer.symbol() == '[') {
-            isexp = true;
-            vmCodeGenerator.genPush(getSeg(symbolTable.kindOf(varName)), symbolTable.indexOf(varName));
-            compileExpression();
+            index = compileExpression();
             expectedSymbol(']');
-            vmCodeGenerator.genArithmetic(VMCodeGenerator.COMMAND.ADD);
+            expectedSymbol('=');
         }
 
-        if (isexp) jackTokenizer.next();
-        compileExpression();
+        var value = compileExpression();
         expectedSymbol(';');
 
-        if (isexp) {
-            vmCodeGenerator.genPop(VMCodeGenerator.SEGMENT.TEMP, 0);
-            vmCodeGenerator.genPop(VMCodeGenerator.SEGMENT.POINTER, 1);
-            vmCodeGenerator.genPush(VMCodeGenerator.SEGMENT.TEMP, 0);
-            vmCodeGenerator.genPop(VMCodeGenerator.SEGMENT.THAT, 0);
-        } else {
-            vmCodeGenerator.genPop(getSeg(symbolTable.kindOf(varName)), symbolTable.indexOf(varName));
+        if (index != SyntaxTree.NONE) {
+            tree.link(index, value);
+            return tree.add(SyntaxTree.LET, 1, varName, SyntaxTree.NONE, index);
         }
+        return tree.add(SyntaxTree.LET, 0, varName, SyntaxTree.NONE, value);
     }
 
-    private VMCodeGenerator.SEGMENT getSeg(Symbol.Kind kind) {
-        return switch (kind) {
-            case FIELD -> VMCodeGenerator.SEGMENT.THIS;
-            case STATIC -> VMCodeGenerator.SEGMENT.STATIC;
-            case VAR -> VMCodeGenerator.SEGMENT.LOCAL;
-            case ARG -> VMCodeGenerator.SEGMENT.ARG;
-            default -> VMCodeGenerator.SEGMENT.NONE;
-        };
-
-    }
-
-    private void compileWhile() {
-        var continueLabel = newLabel();
-        var topLabel = newLabel();
-        vmCodeGenerator.genLabel(topLabel);
-
-        compileBlock(continueLabel, topLabel);
-    }
-
-    private void compileBlock(String label1, String label2) {
-        expectedSymbol('(');
-        compileExpression();
-        expectedSymbol(')');
-        vmCodeGenerator.genArithmetic(VMCodeGenerator.COMMAND.NOT);
-        vmCodeGenerator.genIf(label1);
-        expectedSymbol('{');
-        compileStatements();
-        expectedSymbol('}');
-        vmCodeGenerator.genGoto(label2);
-        vmCodeGenerator.genLabel(label1);
-    }
-
-    private String newLabel() {
-        return "LABEL_" + (labelIndex++);
-    }
-
-    private void compileReturn() {
-        jackTokenizer.next();
-
-        if (jackTokenizer.tokenType() == JackTokenizer.TYPE.SYMBOL && jackTokenizer.symbol() == ';') {
-            vmCodeGenerator.genPush(VMCodeGenerator.SEGMENT.CONST, 0);
+    private int compileReturn() {
+        var value = SyntaxTree.NONE;
+        if (jackTokenizer.peekSymbol(0, ';')) {
+            jackTokenizer.consume();
         } else {
-            jackTokenizer.previous();
-            compileExpression();
+            value = compileExpression();
             expectedSymbol(';');
         }
-        vmCodeGenerator.genReturn();
-
+        return tree.add(SyntaxTree.RETURN, 0, SyntaxTree.NONE, SyntaxTree.NONE, value);
     }
 
-    private void compileIf() {
-        var elseLabel = newLabel();
-        var endLabel = newLabel();
-        compileBlock(elseLabel, endLabel);
-        jackTokenizer.next();
-        if (jackTokenizer.tokenType() == JackTokenizer.TYPE.KEYWORD && jackTokenizer.keyWord() == JackTokenizer.KEYWORD.ELSE) {
-            expectedSymbol('{');
-            compileStatements();
-            expectedSymbol('}');
-        } else {
-            jackTokenizer.previous();
-        }
-        vmCodeGenerator.genLabel(endLabel);
-    }
-
-    private void compileTerm() {
-        jackTokenizer.next();
-        if (jackTokenizer.tokenType() == JackTokenizer.TYPE.IDENTIFIER) {
-            var id = jackTokenizer.identifier();
-            jackTokenizer.next();
-            if (jackTokenizer.tokenType() == JackTokenizer.TYPE.SYMBOL) {
-                final var symbol = jackTokenizer.symbol();
-                switch (symbol) {
-                    case '[' -> {
-                        vmCodeGenerator.genPush(getSeg(symbolTable.kindOf(id)), symbolTable.indexOf(id));
-                        compileExpression();
-                        expectedSymbol(']');
-                        vmCodeGenerator.genArithmetic(VMCodeGenerator.COMMAND.ADD);
-                        vmCodeGenerator.genPop(VMCodeGenerator.SEGMENT.POINTER, 1);
-                        vmCodeGenerator.genPush(VMCodeGenerator.SEGMENT.THAT, 0);
-                    }
-                    case '(', '.' -> {
-                        jackTokenizer.previous();
-                        jackTokenizer.previous();
-                        compileSubroutineCall();
-                    }
-                    default -> {
-                        jackTokenizer.previous();
-                        vmCodeGenerator.genPush(getSeg(symbolTable.kindOf(id)), symbolTable.indexOf(id));
-                    }
-                }
-            } else {
-                jackTokenizer.previous();
-                vmCodeGenerator.genPush(getSeg(symbolTable.kindOf(id)), symbolTable.indexOf(id));
+    /**
+     * Parses an expression with explicit operand and operator stacks rather than by recursion.
+     * Jack gives all binary operators the same precedence and groups them from the left, so an
+     * operator is applied as soon as its right operand is complete. Parentheses, array indices
+     * and call arguments push a marker and start a nested expression on the same stacks, and
+     * unary operators wait there for their term, so nesting costs no Java stack.
+     */
+    private int compileExpression() {
+        operandCount = 0;
+        operatorCount = 0;
+        while (true) {
+            var operand = compileOperand();
+            if (operand == SyntaxTree.NONE) {
+                continue;
             }
-        } else {
-            if (jackTokenizer.tokenType() == JackTokenizer.TYPE.INT_CONST) {
-                vmCodeGenerator.genPush(VMCodeGenerator.SEGMENT.CONST, jackTokenizer.intVal());
-            } else if (jackTokenizer.tokenType() == JackTokenizer.TYPE.STRING_CONST) {
-                var str = jackTokenizer.stringVal();
-
-                vmCodeGenerator.genPush(VMCodeGenerator.SEGMENT.CONST, str.length());
-                vmCodeGenerator.genCall("String.new", 1);
-
-                for (var c : str.toCharArray()) {
-                    vmCodeGenerator.genPush(VMCodeGenerator.SEGMENT.CONST, c);
-                    vmCodeGenerator.genCall("String.appendChar", 2);
+            while (true) {
+                operand = applyOperators(operand);
+                if (jackTokenizer.peekOperation(0)) {
+                    jackTokenizer.consume();
+                    pushOperand(operand);
+                    pushOperator(jackTokenizer.symbol(), SyntaxTree.NONE, SyntaxTree.NONE);
+                    break;
                 }
-            } else if (jackTokenizer.tokenType() == JackTokenizer.TYPE.KEYWORD) {
-                if (jackTokenizer.keyWord() == JackTokenizer.KEYWORD.TRUE) {
-                    vmCodeGenerator.genPush(VMCodeGenerator.SEGMENT.CONST, 0);
-                    vmCodeGenerator.genArithmetic(VMCodeGenerator.COMMAND.NOT);
-                } else if (jackTokenizer.keyWord() == JackTokenizer.KEYWORD.THIS) {
-                    vmCodeGenerator.genPush(VMCodeGenerator.SEGMENT.POINTER, 0);
-                } else if (jackTokenizer.keyWord() == JackTokenizer.KEYWORD.FALSE || jackTokenizer.keyWord() == JackTokenizer.KEYWORD.NULL) {
-                    vmCodeGenerator.genPush(VMCodeGenerator.SEGMENT.CONST, 0);
+                if (operatorCount == 0) {
+                    return operand;
                 }
-            } else if (jackTokenizer.tokenType() == JackTokenizer.TYPE.SYMBOL) {
-                final var symbol = jackTokenizer.symbol();
-                switch (symbol) {
-                    case '(' -> {
-                        compileExpression();
-                        expectedSymbol(')');
+                var top = --operatorCount;
+                if (operators[top] == CALL && jackTokenizer.peekSymbol(0, ',')) {
+                    jackTokenizer.consume();
+                    pushOperand(operand);
+                    operatorCount++;
+                    argumentCounts[top]++;
+                    break;
+                }
+                switch (operators[top]) {
+                    case PARENTHESES -> expectedSymbol(')');
+                    case ELEMENT -> {
+                        expectedSymbol(']');
+                        operand = tree.add(SyntaxTree.ELEMENT, 0, operatorNames[top], SyntaxTree.NONE, operand);
                     }
-                    case '-', '~' -> {
-                        compileTerm();
-                        if (symbol == '-') {
-                            vmCodeGenerator.genArithmetic(VMCodeGenerator.COMMAND.NEG);
-                        } else {
-                            vmCodeGenerator.genArithmetic(VMCodeGenerator.COMMAND.NOT);
+                    default -> {
+                        expectedSymbol(')');
+                        var first = operand;
+                        if (argumentCounts[top] > 0) {
+                            operandCount -= argumentCounts[top];
+                            first = operands[operandCount];
+                            var last = first;
+                            for (var i = operandCount + 1; i < operandCount + argumentCounts[top]; i++) {
+                                last = tree.link(last, operands[i]);
+                            }
+                            tree.link(last, operand);
                         }
+                        operand = tree.add(SyntaxTree.CALL, 0, operatorNames[top], operatorQualifiers[top], first);
                     }
                 }
-            } else {
-                unexpectedToken("integerConstant|stringConstant|keywordConstant|'(' expression ')'|unaryOp term");
             }
         }
     }
 
-    private void compileSubroutineCall() {
-        jackTokenizer.next();
-        if (jackTokenizer.tokenType() != JackTokenizer.TYPE.IDENTIFIER) {
-            unexpectedToken("identifier");
+    /**
+     * Applies the unary operators waiting for a complete term, then the binary operator
+     * waiting for its right operand, if any.
+     */
+    private int applyOperators(int operand) {
+        while (operatorCount > 0 && operators[operatorCount - 1] >= UNARY) {
+            operand = tree.add(SyntaxTree.UNARY, operators[--operatorCount] - UNARY, SyntaxTree.NONE, SyntaxTree.NONE, operand);
         }
+        if (operatorCount > 0 && operators[operatorCount - 1] > 0) {
+            var left = operands[--operandCount];
+            tree.link(left, operand);
+            operand = tree.add(SyntaxTree.BINARY, operators[--operatorCount], SyntaxTree.NONE, SyntaxTree.NONE, left);
+        }
+        return operand;
+    }
 
-        var name = jackTokenizer.identifier();
-        var num = 0;
-
-        jackTokenizer.next();
-        if (jackTokenizer.tokenType() == JackTokenizer.TYPE.SYMBOL) {
-            switch (jackTokenizer.symbol()) {
-                case '(' -> {
-                    vmCodeGenerator.genPush(VMCodeGenerator.SEGMENT.POINTER, 0);
-                    num = compileExpressionList() + 1;
-                    expectedSymbol(')');
-                    vmCodeGenerator.genCall(currentClass + '.' + name, num);
-                }
-                case '.' -> {
-                    var objName = name;
-                    jackTokenizer.next();
-                    if (jackTokenizer.tokenType() != JackTokenizer.TYPE.IDENTIFIER) {
-                        unexpectedToken("identifier");
-                    }
-                    name = jackTokenizer.identifier();
-                    var type = symbolTable.typeOf(objName);
-                    switch (type) {
-                        case "int", "boolean", "char", "void" -> unexpectedToken("no built-in type");
-                        case "" -> name = objName + "." + name;
-                        default -> {
-                            num = 1;
-                            vmCodeGenerator.genPush(getSeg(symbolTable.kindOf(objName)), symbolTable.indexOf(objName));
-                            name = symbolTable.typeOf(objName) + "." + name;
-                        }
-                    }
-                    expectedSymbol('(');
-                    num += compileExpressionList();
-                    expectedSymbol(')');
-                    vmCodeGenerator.genCall(name, num);
+    /**
+     * Parses a term, or only its opening part when it contains an expression.
+     *
+     * @return the term, or {@link SyntaxTree#NONE} if a marker or unary operator was pushed
+     */
+    private int compileOperand() {
+        if (jackTokenizer.peek(0) == JackTokenizer.TYPE.IDENTIFIER) {
+            if (jackTokenizer.peekSymbol(1, '(') || jackTokenizer.peekSymbol(1, '.')) {
+                compileCallHead();
+                if (jackTokenizer.peekSymbol(0, ')')) {
+                    jackTokenizer.consume();
+                    return tree.add(SyntaxTree.CALL, 0, callName, callQualifier, SyntaxTree.NONE);
                 }
-                default -> unexpectedToken("'('|'.'");
+                pushOperator(CALL, callName, callQualifier);
+                return SyntaxTree.NONE;
+            }
+            jackTokenizer.consume();
+            var id = jackTokenizer.identifierId();
+            if (jackTokenizer.peekSymbol(0, '[')) {
+                jackTokenizer.consume();
+                pushOperator(ELEMENT, id, SyntaxTree.NONE);
+                return SyntaxTree.NONE;
+            }
+            return tree.add(SyntaxTree.VARIABLE, 0, id, SyntaxTree.NONE, SyntaxTree.NONE);
+        }
+        jackTokenizer.consume();
+        if (jackTokenizer.tokenType() == JackTokenizer.TYPE.INT_CONST) {
+            return tree.add(SyntaxTree.INT, jackTokenizer.intVal(), SyntaxTree.NONE, SyntaxTree.NONE, SyntaxTree.NONE);
+        } else if (jackTokenizer.tokenType() == JackTokenizer.TYPE.STRING_CONST) {
+            return tree.add(SyntaxTree.STRING, 0, names.intern(jackTokenizer.stringVal()), SyntaxTree.NONE, SyntaxTree.NONE);
+        } else if (jackTokenizer.tokenType() == JackTokenizer.TYPE.KEYWORD) {
+            var keyword = jackTokenizer.keyWord();
+            if (keyword != JackTokenizer.KEYWORD.TRUE && keyword != JackTokenizer.KEYWORD.FALSE
+                    && keyword != JackTokenizer.KEYWORD.NULL && keyword != JackTokenizer.KEYWORD.THIS) {
+                unexpectedToken("keywordConstant");
+            }
+            return tree.add(SyntaxTree.KEYWORD, keyword.ordinal(), SyntaxTree.NONE, SyntaxTree.NONE, SyntaxTree.NONE);
+        } else if (jackTokenizer.tokenType() == JackTokenizer.TYPE.SYMBOL) {
+            final var symbol = jackTokenizer.symbol();
+            switch (symbol) {
+                case '(' -> pushOperator(PARENTHESES, SyntaxTree.NONE, SyntaxTree.NONE);
+                case '-', '~' -> pushOperator(UNARY + symbol, SyntaxTree.NONE, SyntaxTree.NONE);
+                default -> unexpectedToken("'(' expression ')'|unaryOp term");
             }
         } else {
-            unexpectedToken("'('|'.'");
+            unexpectedToken("integerConstant|stringConstant|keywordConstant|'(' expression ')'|unaryOp term");
         }
+        return SyntaxTree.NONE;
     }
-    
-
-    private void compileExpression() {
-        compileTerm();
-        do {
-            jackTokenizer.next();
-            if (jackTokenizer.tokenType() == JackTokenizer.TYPE.SYMBOL && jackTokenizer.isOperation()) {
-                var opCmd = "";
-                switch (jackTokenizer.symbol()) {
-                    case '+' -> opCmd = "add";
-                    case '-' -> opCmd = "sub";
-                    case '*' -> opCmd = "call Math.multiply 2";
-                    case '/' -> opCmd = "call Math.divide 2";
-                    case '<' -> opCmd = "lt";
-                    case '>' -> opCmd = "gt";
-                    case '=' -> opCmd = "eq";
-                    case '&' -> opCmd = "and";
-                    case '|' -> opCmd = "or";
-                    default -> unexpectedToken("Unknown op!");
-                }
-                compileTerm();
-                vmCodeGenerator.genCommand(opCmd, "", "");
 
-            } else {
-                jackTokenizer.previous();
-                break;
-            }
+    private void pushOperand(int operand) {
+        if (operandCount == operands.length) {
+            operands = Arrays.copyOf(operands, operandCount * 2);
+        }
+        operands[operandCount++] = operand;
+    }
 
-        } while (true);
+    private void pushOperator(int operator, int name, int qualifier) {
+        if (operatorCount == operators.length) {
+            var capacity = operatorCount * 2;
+            operators = Arrays.copyOf(operators, capacity);
+            operatorNames = Arrays.copyOf(operatorNames, capacity);
+            operatorQualifiers = Arrays.copyOf(operatorQualifiers, capacity);
+            argumentCounts = Arrays.copyOf(argumentCounts, capacity);
+        }
+        operators[operatorCount] = operator;
+        operatorNames[operatorCount] = name;
+        operatorQualifiers[operatorCount] = qualifier;
+        argumentCounts[operatorCount++] = 0;
+    }
 
+    private int compileSubroutineCall() {
+        compileCallHead();
+        var name = callName;
+        var qualifier = callQualifier;
+        var arguments = compileExpressionList();
+        expectedSymbol(')');
+        return tree.add(SyntaxTree.CALL, 0, name, qualifier, arguments);
     }
 
-    private int compileExpressionList() {
-        var num = 0;
+    /**
+     * Parses a call up to and including its '(', into {@link #callName} and
+     * {@link #callQualifier}.
+     */
+    private void compileCallHead() {
+        jackTokenizer.consume();
+        if (jackTokenizer.tokenType() != JackTokenizer.TYPE.IDENTIFIER) {
+            unexpectedToken("identifier");
+        }
 
-        jackTokenizer.next();
-        if (jackTokenizer.tokenType() == JackTokenizer.TYPE.SYMBOL && jackTokenizer.symbol() == ')') {
-            jackTokenizer.previous();
-        } else {
-            num = 1;
-            jackTokenizer.previous();
-            compileExpression();
-            do {
-                jackTokenizer.next();
-                if (jackTokenizer.tokenType() == JackTokenizer.TYPE.SYMBOL && jackTokenizer.symbol() == ',') {
-                    compileExpression();
-                    num++;
-                } else {
-                    jackTokenizer.previous();
-                    break;
+        callName = jackTokenizer.identifierId();
+        callQualifier = SyntaxTree.NONE;
+
+        jackTokenizer.consume();
+        if (jackTokenizer.tokenType() != JackTokenizer.TYPE.SYMBOL) {
+            unexpectedToken("'('|'.'");
+        }
+        switch (jackTokenizer.symbol()) {
+            case '(' -> {
+            }
+            case '.' -> {
+                callQualifier = callName;
+                jackTokenizer.consume();
+                if (jackTokenizer.tokenType() != JackTokenizer.TYPE.IDENTIFIER) {
+                    unexpectedToken("identifier");
                 }
+                callName = jackTokenizer.identifierId();
+                expectedSymbol('(');
+            }
+            default -> unexpectedToken("'('|'.'");
+        }
+    }
 
-            } while (true);
+    /**
+     * @return the first argument, linked to the others
+     */
+    private int compileExpressionList() {
+        var first = SyntaxTree.NONE;
+
+        if (!jackTokenizer.peekSymbol(0, ')')) {
+            first = compileExpression();
+            var last = first;
+            while (jackTokenizer.peekSymbol(0, ',')) {
+                jackTokenizer.consume();
+                last = tree.link(last, compileExpression());
+            }
         }
 
-        return num;
+        return first;
     }
 
     private void unexpectedToken(String expectedToken) {
@@ -537,7 +659,7 @@ public class CompilationEngine {
     }
 
     private void expectedSymbol(char symbol) {
-        jackTokenizer.next();
+        jackTokenizer.consume();
         if (jackTokenizer.tokenType() != JackTokenizer.TYPE.SYMBOL || jackTokenizer.symbol() != symbol) {
             unexpectedToken("'" + symbol + "'");
         }
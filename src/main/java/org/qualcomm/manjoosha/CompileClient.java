@@ -0,0 +1,72 @@
+package org.qualcomm.manjoosha;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * Thin front end for {@link CompileDaemon}: takes the same arguments as {@link JackCompiler},
+ * has a running daemon do the work and prints its report. Without a daemon it compiles in
+ * this process instead. {@code CompileClient --shutdown} stops the daemon.
+ */
+public class CompileClient {
+
+    public static void main(String[] args) {
+        var status = forward(args);
+        if (status < 0) {
+            if (args.length == 1 && args[0].equals(CompileDaemon.SHUTDOWN)) {
+                System.out.println("No compile daemon is running");
+                return;
+            }
+            JackCompiler.main(args);
+        } else if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    /**
+     * @return the daemon's exit status, or -1 if no daemon could be reached
+     */
+    private static int forward(String[] args) {
+        var endpoint = CompileDaemon.readEndpoint();
+        if (endpoint == null) {
+            return -1;
+        }
+        Socket socket;
+        try {
+            socket = new Socket(InetAddress.getLoopbackAddress(), endpoint.port);
+        } catch (IOException e) {
+            return -1;
+        }
+        try (socket;
+             var out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+             var in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            out.writeUTF(endpoint.token);
+            out.writeUTF(new File("").getAbsolutePath());
+            out.writeInt(args.length);
+            for (var arg : args) {
+                out.writeUTF(arg);
+            }
+            out.flush();
+            while (true) {
+                var kind = in.readByte();
+                switch (kind) {
+                    case CompileDaemon.OUT -> System.out.print(in.readUTF());
+                    case CompileDaemon.ERR -> System.err.print(in.readUTF());
+                    case CompileDaemon.EXIT -> {
+                        return in.readInt();
+                    }
+                    default -> throw new IOException("Unexpected frame " + kind);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Lost connection to the compile daemon : " + e.getMessage());
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package org.qualcomm.manjoosha;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.concurrent.Executors;
+
+/**
+ * Long-lived compiler process, started with {@code JackCompiler --daemon}, that keeps the
+ * lexer tables and the JIT-compiled parser and code generator warm between builds.
+ * {@link CompileClient} forwards its arguments and working directory and streams the report
+ * back.
+ * <p>
+ * Unix-domain sockets need a newer runtime than this project targets, so the daemon listens
+ * on an ephemeral loopback TCP port instead. The port and a random token that every request
+ * must present are published in {@link #endpointFile()}, which only the owner can read.
+ * <p>
+ * Wire format: the request is the token, the working directory, the argument count and the
+ * arguments, all as {@link DataOutputStream#writeUTF} strings except the int count. The
+ * response is a sequence of {@link #OUT}/{@link #ERR} text frames followed by an {@link #EXIT}
+ * frame holding the exit status.
+ */
+public class CompileDaemon {
+
+    public static final String SHUTDOWN = "--shutdown";
+
+    static final byte OUT = 'O';
+    static final byte ERR = 'E';
+    static final byte EXIT = 'X';
+
+    private static final int MAX_ARGS = 1024;
+    private static final int MAX_FRAME = 16 * 1024;
+
+    public static File endpointFile() {
+        return new File(System.getProperty("user.home"), ".jackc-daemon");
+    }
+
+    public static void serve() {
+        var token = newToken();
+        try (var server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            writeEndpoint(server.getLocalPort(), token);
+            System.out.println("Jack compile daemon listening on port " + server.getLocalPort());
+            var workers = Executors.newCachedThreadPool();
+            try {
+                while (!server.isClosed()) {
+                    var socket = server.accept();
+                    workers.execute(() -> handle(socket, token, server));
+                }
+            } catch (SocketException e) {
+                // the server socket was closed by a shutdown request
+            } finally {
+                workers.shutdown();
+                endpointFile().delete();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void handle(Socket socket, String token, ServerSocket server) {
+        try (socket;
+             var in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             var out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            if (!token.equals(in.readUTF())) {
+                return;
+            }
+            var workingDir = new File(in.readUTF());
+            var argCount = in.readInt();
+            if (argCount < 0 || argCount > MAX_ARGS) {
+                return;
+            }
+            var args = new String[argCount];
+            for (var i = 0; i < argCount; i++) {
+                args[i] = in.readUTF();
+            }
+
+            var stdout = new PrintStream(new FrameOutputStream(out, OUT), true, StandardCharsets.UTF_8);
+            var stderr = new PrintStream(new FrameOutputStream(out, ERR), true, StandardCharsets.UTF_8);
+            var status = 0;
+            if (args.length == 1 && args[0].equals(SHUTDOWN)) {
+                stdout.println("Jack compile daemon stopped");
+                server.close();
+            } else {
+                try {
+                    var options = CompilerOptions.parse(args, workingDir);
+                    if (options.isDaemon()) {
+                        stderr.println("Already running as a daemon");
+                        status = 1;
+                    } else {
+                        status = JackCompiler.run(options, stdout, stderr);
+                    }
+                } catch (IllegalArgumentException e) {
+                    stderr.println(e.getMessage());
+                    status = 1;
+                }
+            }
+            stdout.flush();
+            stderr.flush();
+            synchronized (out) {
+                out.writeByte(EXIT);
+                out.writeInt(status);
+                out.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("Compile request failed : " + e.getMessage());
+        }
+    }
+
+    private static String newToken() {
+        var bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        var hex = new StringBuilder();
+        for (var b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static void writeEndpoint(int port, String token) throws IOException {
+        var path = endpointFile().toPath();
+        Files.deleteIfExists(path);
+        try {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            Files.createFile(path);
+        }
+        Files.writeString(path, port + " " + token + "\n");
+    }
+
+    /**
+     * @return the endpoint of a running daemon, or null if none has been started
+     */
+    static Endpoint readEndpoint() {
+        try {
+            var fields = Files.readString(endpointFile().toPath()).trim().split(" ");
+            return fields.length == 2 ? new Endpoint(Integer.parseInt(fields[0]), fields[1]) : null;
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    static class Endpoint {
+
+        final int port;
+        final String token;
+
+        Endpoint(int port, String token) {
+            this.port = port;
+            this.token = token;
+        }
+    }
+
+    /**
+     * Sends everything written to it as frames of one kind, a line at a time, so the client sees
+     * the report while the build is still running.
+     */
+    private static class FrameOutputStream extends OutputStream {
+
+        private final DataOutputStream out;
+        private final byte kind;
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+        private FrameOutputStream(DataOutputStream out, byte kind) {
+            this.out = out;
+            this.kind = kind;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            pending.write(b);
+            if (b == '\n' || pending.size() >= MAX_FRAME) {
+                flush();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (pending.size() == 0) {
+                return;
+            }
+            var text = pending.toString(StandardCharsets.UTF_8);
+            pending.reset();
+            synchronized (out) {
+                out.writeByte(kind);
+                out.writeUTF(text);
+                out.flush();
+            }
+        }
+    }
+}
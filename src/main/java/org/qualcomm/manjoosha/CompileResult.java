@@ -0,0 +1,69 @@
+package org.qualcomm.manjoosha;
+
+import java.io.File;
+
+public class CompileResult {
+
+    private final File source;
+    private final File output;
+    private final Status status;
+    private final Throwable error;
+
+    public CompileResult(File source, File output, Status status) {
+        this.source = source;
+        this.output = output;
+        this.status = status;
+        this.error = null;
+    }
+
+    public CompileResult(File source, File output, Throwable error) {
+        this.source = source;
+        this.output = output;
+        this.status = Status.FAILED;
+        this.error = error;
+    }
+
+    public File getSource() {
+        return source;
+    }
+
+    public File getOutput() {
+        return output;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public Throwable getError() {
+        return error;
+    }
+
+    public boolean isSuccess() {
+        return status != Status.FAILED;
+    }
+
+    @Override
+    public String toString() {
+        return switch (status) {
+            case CREATED -> "File created : " + output.getPath();
+            case UNCHANGED -> "File unchanged : " + output.getPath();
+            case UP_TO_DATE -> "File up to date : " + output.getPath();
+            case OMITTED -> "File omitted, nothing in it is reachable : " + source.getPath();
+            case FAILED -> "Failed to compile " + source.getPath() + " : "
+                    + (error.getMessage() != null ? error.getMessage() : error.getClass().getSimpleName());
+        };
+    }
+
+    public enum Status {
+        /** The output was (re)written. */
+        CREATED,
+        /** The file was recompiled but its output bytes did not change, so it was left untouched. */
+        UNCHANGED,
+        /** The build cache showed nothing had changed, so the file was not compiled. */
+        UP_TO_DATE,
+        /** Whole-program mode found no reachable code in the file, so it has no output. */
+        OMITTED,
+        FAILED
+    }
+}
@@ -0,0 +1,50 @@
+package org.qualcomm.manjoosha;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * One source file compiled into memory for whole-program mode, or the reason it failed.
+ */
+public class CompiledClass {
+
+    private final File source;
+    private final List<CompiledFunction> functions;
+    private final Throwable error;
+
+    private CompiledClass(File source, List<CompiledFunction> functions, Throwable error) {
+        this.source = source;
+        this.functions = functions;
+        this.error = error;
+    }
+
+    public static CompiledClass compile(File source, CompilerOptions options, SignatureIndex signatures) {
+        try {
+            var recorder = new FunctionRecorder();
+            new CompilationEngine(source, recorder, options, signatures).compileClass();
+            return new CompiledClass(source, recorder.getFunctions(), null);
+        } catch (RuntimeException | StackOverflowError e) {
+            return failed(source, e);
+        }
+    }
+
+    public static CompiledClass failed(File source, Throwable error) {
+        return new CompiledClass(source, List.of(), error);
+    }
+
+    public File getSource() {
+        return source;
+    }
+
+    public List<CompiledFunction> getFunctions() {
+        return functions;
+    }
+
+    public Throwable getError() {
+        return error;
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+}
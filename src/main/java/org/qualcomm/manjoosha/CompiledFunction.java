@@ -0,0 +1,50 @@
+package org.qualcomm.manjoosha;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The VM code of one subroutine, starting with its {@code function} instruction.
+ */
+public class CompiledFunction {
+
+    private final String name;
+    private InstructionList code;
+
+    public CompiledFunction(String name, InstructionList code) {
+        this.name = name;
+        this.code = code;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public InstructionList getCode() {
+        return code;
+    }
+
+    public void setCode(InstructionList code) {
+        this.code = code;
+    }
+
+    /**
+     * @return the name of the class the function belongs to
+     */
+    public String getClassName() {
+        return name.substring(0, name.indexOf('.'));
+    }
+
+    /**
+     * @return the names of the functions this one calls, in order of first call
+     */
+    public Set<String> callees() {
+        var callees = new LinkedHashSet<String>();
+        for (var i = 0; i < code.size(); i++) {
+            if (code.kind(i) == InstructionList.CALL) {
+                callees.add(code.name(i));
+            }
+        }
+        return callees;
+    }
+}
@@ -0,0 +1,202 @@
+package org.qualcomm.manjoosha;
+
+import java.io.File;
+
+public class CompilerOptions {
+
+    public static final String USAGE = "Usage:java JackCompiler [-O0|-O1|-O2] [--intern-strings] [--whole-program [--inline-limit n] [--inline-growth n]] [--asm] [--stream] [--jobs n] [--virtual-threads] [--incremental] [filename|directory]\n"
+            + "       java JackCompiler --daemon";
+
+    private static final int MAX_OPTIMIZATION_LEVEL = 2;
+    private static final int DEFAULT_INLINE_LIMIT = 12;
+    private static final int DEFAULT_INLINE_GROWTH = 400;
+
+    private File input;
+    private int optimizationLevel;
+    private boolean internStrings;
+    private boolean wholeProgram;
+    private int inlineLimit;
+    private int inlineGrowth;
+    private boolean assembly;
+    private boolean streaming;
+    private int jobs;
+    private boolean virtualThreads;
+    private boolean incremental;
+    private boolean daemon;
+
+    public CompilerOptions() {
+        optimizationLevel = 0;
+        internStrings = false;
+        wholeProgram = false;
+        inlineLimit = DEFAULT_INLINE_LIMIT;
+        inlineGrowth = DEFAULT_INLINE_GROWTH;
+        assembly = false;
+        streaming = false;
+        jobs = 1;
+        virtualThreads = false;
+        incremental = false;
+        daemon = false;
+    }
+
+    public static CompilerOptions parse(String[] args) {
+        return parse(args, null);
+    }
+
+    /**
+     * @param workingDir directory relative input paths are resolved against, or null for the
+     *                   current directory of this process
+     */
+    public static CompilerOptions parse(String[] args, File workingDir) {
+        var options = new CompilerOptions();
+        for (var i = 0; i < args.length; i++) {
+            var arg = args[i];
+            if (arg.matches("-O[0-9]")) {
+                options.optimizationLevel = Math.min(arg.charAt(2) - '0', MAX_OPTIMIZATION_LEVEL);
+            } else if (arg.equals("--intern-strings")) {
+                options.internStrings = true;
+            } else if (arg.equals("--whole-program")) {
+                options.wholeProgram = true;
+            } else if (arg.equals("--inline-limit") && i + 1 < args.length) {
+                options.inlineLimit = parseAtLeast(args[++i], 0);
+            } else if (arg.equals("--inline-growth") && i + 1 < args.length) {
+                options.inlineGrowth = parseAtLeast(args[++i], 0);
+            } else if (arg.equals("--asm")) {
+                options.assembly = true;
+            } else if (arg.equals("--stream")) {
+                options.streaming = true;
+            } else if (arg.equals("--jobs") && i + 1 < args.length) {
+                options.jobs = parseAtLeast(args[++i], 1);
+            } else if (arg.equals("--virtual-threads")) {
+                options.virtualThreads = true;
+            } else if (arg.equals("--incremental")) {
+                options.incremental = true;
+            } else if (arg.equals("--daemon")) {
+                options.daemon = true;
+            } else if (arg.startsWith("--") || options.input != null) {
+                throw new IllegalArgumentException(USAGE);
+            } else {
+                var input = new File(arg);
+                options.input = workingDir == null || input.isAbsolute() ? input : new File(workingDir, arg);
+            }
+        }
+        if (options.input == null && !options.daemon) {
+            throw new IllegalArgumentException(USAGE);
+        }
+        return options;
+    }
+
+    private static int parseAtLeast(String value, int minimum) {
+        try {
+            var number = Integer.parseInt(value);
+            if (number >= minimum) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException(USAGE);
+    }
+
+    public File getInput() {
+        return input;
+    }
+
+    /**
+     * 0 emits every construct exactly as written; 1 folds constant expressions and algebraic
+     * identities, rotates loops, turns self tail calls into jumps and runs the
+     * {@link ArrayAccessOptimizer}, the {@link PeepholeOptimizer} and the
+     * {@link DeadCodeEliminator}; 2 also replaces multiplication by small constants with add
+     * chains.
+     */
+    public int getOptimizationLevel() {
+        return optimizationLevel;
+    }
+
+    /**
+     * Builds each distinct string literal of a class once into a static and reuses it. Only safe
+     * for programs that never modify or dispose of a string literal.
+     */
+    public boolean isInterningStrings() {
+        return internStrings;
+    }
+
+    /**
+     * Compiles all files into memory first, then writes only the functions reachable from
+     * {@link Program#ENTRY_POINTS}. The build cache is not used, as every output depends on
+     * every source.
+     */
+    public boolean isWholeProgram() {
+        return wholeProgram;
+    }
+
+    /**
+     * Largest subroutine, in VM instructions, that whole-program mode inlines into its callers
+     * at -O1 and above; 0 turns inlining off. See {@link Inliner}.
+     */
+    public int getInlineLimit() {
+        return inlineLimit;
+    }
+
+    /**
+     * How many VM instructions inlining may add to any one subroutine.
+     */
+    public int getInlineGrowth() {
+        return inlineGrowth;
+    }
+
+    /**
+     * Writes the whole input as one Hack assembly file, named after the directory or file,
+     * instead of a .vm file per class. See {@link HackAssemblyWriter}. The build cache is not
+     * used, as there is only the one output.
+     */
+    public boolean isAssembly() {
+        return assembly;
+    }
+
+    /**
+     * Lexes each file through a bounded lookahead window instead of holding all its tokens.
+     * Classes are parsed and generated a subroutine at a time either way, so what remains is
+     * the largest subroutine's tree and the class's distinct names.
+     */
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * Number of files compiled concurrently; 1 compiles on the calling thread.
+     */
+    public int getJobs() {
+        return jobs;
+    }
+
+    /**
+     * Runs the compile workers on virtual threads where the runtime provides them.
+     */
+    public boolean useVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Skips files whose source and options are unchanged since the last build, see {@link BuildCache}.
+     */
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * Serves compile requests from {@link CompileClient} instead of compiling an input.
+     */
+    public boolean isDaemon() {
+        return daemon;
+    }
+
+    /**
+     * Identifies everything besides the source that influences the generated code. Cached
+     * outputs are only reused under the same fingerprint.
+     */
+    public String fingerprint() {
+        return (assembly ? "asm" : "vm") + " -O" + optimizationLevel + (internStrings ? " intern-strings" : "")
+                + (wholeProgram ? " whole-program inline " + inlineLimit + "/" + inlineGrowth : "");
+    }
+
+}
@@ -0,0 +1,119 @@
+package org.qualcomm.manjoosha;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Removes code no execution can reach. Each function is buffered whole; instructions are then
+ * marked reachable from its entry by following fall-through, goto and if-goto edges, and
+ * everything unmarked is dropped. That covers statements after a return and branches that
+ * folding and the {@link PeepholeOptimizer} turned into unconditional jumps or nothing at all,
+ * such as {@code if (false)} and {@code while (false)}. Gotos to the label right after them
+ * and labels nothing jumps to are then cleaned up until the function stops shrinking.
+ */
+public class DeadCodeEliminator extends InstructionRecorder {
+
+    private final VMWriter downstream;
+    private final InstructionList function;
+
+    public DeadCodeEliminator(VMWriter downstream) {
+        this.downstream = downstream;
+        function = new InstructionList();
+    }
+
+    @Override
+    protected void add(byte kind, int operand, int number, String name) {
+        if (kind == InstructionList.FUNCTION) {
+            flush();
+        }
+        function.add(kind, operand, number, name);
+    }
+
+    @Override
+    public void close() {
+        try {
+            flush();
+        } finally {
+            downstream.close();
+        }
+    }
+
+    private void flush() {
+        if (function.isEmpty()) {
+            return;
+        }
+        function.retain(reachable());
+        while (function.retain(withoutRedundantJumps()) | function.retain(withoutUnusedLabels())) {
+            // dropping a goto can orphan a label and dropping a label can make a goto redundant
+        }
+        function.emitAll(downstream);
+        function.clear();
+    }
+
+    private boolean[] reachable() {
+        var size = function.size();
+        var labels = new HashMap<String, Integer>();
+        for (var i = 0; i < size; i++) {
+            if (function.kind(i) == InstructionList.LABEL) {
+                labels.put(function.name(i), i);
+            }
+        }
+        var reached = new boolean[size];
+        var pending = new ArrayDeque<Integer>();
+        pending.push(0);
+        while (!pending.isEmpty()) {
+            int i = pending.pop();
+            if (i >= size || reached[i]) {
+                continue;
+            }
+            reached[i] = true;
+            var kind = function.kind(i);
+            if (kind == InstructionList.GOTO || kind == InstructionList.IF) {
+                var target = labels.get(function.name(i));
+                if (target != null) {
+                    pending.push(target);
+                }
+            }
+            if (kind != InstructionList.GOTO && kind != InstructionList.RETURN) {
+                pending.push(i + 1);
+            }
+        }
+        return reached;
+    }
+
+    /**
+     * @return a mask without the gotos that only skip over labels to one of them
+     */
+    private boolean[] withoutRedundantJumps() {
+        var size = function.size();
+        var keep = new boolean[size];
+        for (var i = 0; i < size; i++) {
+            keep[i] = true;
+            if (function.kind(i) == InstructionList.GOTO) {
+                for (var j = i + 1; j < size && function.kind(j) == InstructionList.LABEL; j++) {
+                    if (function.name(j).equals(function.name(i))) {
+                        keep[i] = false;
+                        break;
+                    }
+                }
+            }
+        }
+        return keep;
+    }
+
+    private boolean[] withoutUnusedLabels() {
+        var size = function.size();
+        var targets = new HashSet<String>();
+        for (var i = 0; i < size; i++) {
+            if (function.kind(i) == InstructionList.GOTO || function.kind(i) == InstructionList.IF) {
+                targets.add(function.name(i));
+            }
+        }
+        var keep = new boolean[size];
+        for (var i = 0; i < size; i++) {
+            keep[i] = function.kind(i) != InstructionList.LABEL || targets.contains(function.name(i));
+        }
+        return keep;
+    }
+}
@@ -0,0 +1,565 @@
+package org.qualcomm.manjoosha;
+
+import java.util.Arrays;
+
+/**
+ * One expression in postfix order, held in parallel primitive arrays so it can be rewritten
+ * before any VM code is emitted. The parser appends operands and operators exactly as the
+ * stack machine will evaluate them; {@link #optimize()} then simplifies the instruction list in a
+ * single pass and {@link #emit(VMWriter)} writes it out.
+ * <p>
+ * Constants are kept as 16-bit two's-complement values. Negative ones are emitted as
+ * {@code push constant ~v; not}, which is also how {@code true} has always been written.
+ * <p>
+ * At -O2 a multiplication by a small constant becomes a {@code SCALE} instruction, emitted as
+ * an add-based doubling chain instead of a call to Math.multiply. The chain keeps the operand
+ * in temp 1 and the running product in temp 2; nothing between its first and last instruction
+ * touches them. A multiplication by zero whose other operand has side effects becomes a
+ * {@code SCALE} by zero, which drops the operand and pushes 0.
+ */
+public class Expression {
+
+    private static final byte CONST = 0;
+    private static final byte PUSH = 1;
+    private static final byte STRING = 2;
+    private static final byte CALL = 3;
+    private static final byte UNARY = 4;
+    private static final byte BINARY = 5;
+    private static final byte DEREF = 6;
+    private static final byte SCALE = 7;
+
+    /**
+     * Longest doubling chain, in doublings plus additions, worth emitting instead of a call
+     * to Math.multiply. Covers every power of two up to 256 and most factors below 100.
+     */
+    private static final int MAX_SCALE_STEPS = 8;
+
+    private static final VMCodeGenerator.SEGMENT[] SEGMENTS = VMCodeGenerator.SEGMENT.values();
+
+    private byte[] ops;
+    private int[] args;
+    private int[] indices;
+    private String[] names;
+    private int size;
+
+    private int[] starts;
+
+    private final int optimizationLevel;
+
+    public Expression() {
+        this(0);
+    }
+
+    /**
+     * @param optimizationLevel see {@link CompilerOptions#getOptimizationLevel()}
+     */
+    public Expression(int optimizationLevel) {
+        this.optimizationLevel = optimizationLevel;
+        ops = new byte[32];
+        args = new int[32];
+        indices = new int[32];
+        names = new String[32];
+        starts = new int[32];
+        size = 0;
+    }
+
+    public void clear() {
+        Arrays.fill(names, 0, size, null);
+        size = 0;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return true if the expression folded down to a single constant
+     */
+    public boolean isConstant() {
+        return size == 1 && ops[0] == CONST;
+    }
+
+    public int constantValue() {
+        if (!isConstant()) {
+            throw new IllegalStateException("Expression is not constant");
+        }
+        return args[0];
+    }
+
+    /**
+     * @return true if the value of the expression is the result of calling {@code name} with
+     * {@code nArgs} arguments, that is if the call is the last op
+     */
+    public boolean isCallTo(String name, int nArgs) {
+        return size > 0 && ops[size - 1] == CALL && args[size - 1] == nArgs && names[size - 1].equals(name);
+    }
+
+    /**
+     * Drops the final call, leaving only the code that pushes its arguments.
+     */
+    public void removeCall() {
+        if (size == 0 || ops[size - 1] != CALL) {
+            throw new IllegalStateException("Expression does not end in a call");
+        }
+        names[--size] = null;
+    }
+
+    /**
+     * @return an independent copy, for emitting the same instructions again later
+     */
+    public Expression copy() {
+        var copy = new Expression(optimizationLevel);
+        copy.ops = Arrays.copyOf(ops, ops.length);
+        copy.args = Arrays.copyOf(args, args.length);
+        copy.indices = Arrays.copyOf(indices, indices.length);
+        copy.names = Arrays.copyOf(names, names.length);
+        copy.size = size;
+        return copy;
+    }
+
+    public void constant(int value) {
+        add(CONST, (short) value, 0, null);
+    }
+
+    public void push(VMCodeGenerator.SEGMENT segment, int index) {
+        add(PUSH, segment.ordinal(), index, null);
+    }
+
+    public void string(String value) {
+        add(STRING, 0, 0, value);
+    }
+
+    /**
+     * @param nArgs number of operands already appended that the call consumes, receiver included
+     */
+    public void call(String name, int nArgs) {
+        add(CALL, nArgs, 0, name);
+    }
+
+    /**
+     * @param operator '-' or '~'
+     */
+    public void unary(char operator) {
+        add(UNARY, operator, 0, null);
+    }
+
+    /**
+     * @param operator one of {@code + - * / & | < > =}
+     */
+    public void binary(char operator) {
+        add(BINARY, operator, 0, null);
+    }
+
+    /**
+     * Replaces the address on top of the stack with the word stored there.
+     */
+    public void deref() {
+        add(DEREF, 0, 0, null);
+    }
+
+    private void add(byte op, int arg, int index, String name) {
+        if (size == ops.length) {
+            var capacity = size * 2;
+            ops = Arrays.copyOf(ops, capacity);
+            args = Arrays.copyOf(args, capacity);
+            indices = Arrays.copyOf(indices, capacity);
+            names = Arrays.copyOf(names, capacity);
+        }
+        ops[size] = op;
+        args[size] = arg;
+        indices[size] = index;
+        names[size] = name;
+        size++;
+    }
+
+    /**
+     * Applies the rewrites enabled at this expression's optimization level.
+     */
+    public void optimize() {
+        if (optimizationLevel >= 1) {
+            fold();
+        }
+    }
+
+    /**
+     * Folds constant subexpressions and removes algebraic identities. The list is rewritten in
+     * place: a write cursor trails the read cursor and {@link #starts} tracks where each value
+     * on the abstract operand stack begins, so an operand can be dropped or replaced by its
+     * constant value as soon as the operator that consumes it is seen. Operands whose
+     * evaluation has side effects (calls, string literals, division) are never dropped.
+     */
+    private void fold() {
+        var depth = 0;
+        var w = 0;
+        for (var r = 0; r < size; r++) {
+            var op = ops[r];
+            move(r, w);
+            switch (op) {
+                case CONST, PUSH, STRING -> {
+                    depth = pushStart(depth, w);
+                    w++;
+                }
+                case DEREF, SCALE -> w++;
+                case CALL -> {
+                    var nArgs = args[w];
+                    var start = nArgs > 0 ? starts[depth - nArgs] : w;
+                    depth = pushStart(depth - nArgs, start);
+                    w++;
+                }
+                case UNARY -> w = foldUnary((char) args[w], starts[depth - 1], w);
+                case BINARY -> {
+                    w = foldBinary((char) args[w], starts[depth - 2], starts[depth - 1], w);
+                    depth--;
+                }
+                default -> throw new IllegalStateException("Unknown expression op " + op);
+            }
+        }
+        Arrays.fill(names, w, size, null);
+        size = w;
+    }
+
+    private int pushStart(int depth, int start) {
+        if (depth == starts.length) {
+            starts = Arrays.copyOf(starts, depth * 2);
+        }
+        starts[depth] = start;
+        return depth + 1;
+    }
+
+    /**
+     * Operators always end their own operand list, so an operand whose last instruction is a
+     * constant is that constant alone.
+     *
+     * @param operand where the operand starts
+     * @return the new write position, past the rewritten operand
+     */
+    private int foldUnary(char operator, int operand, int w) {
+        var last = w - 1;
+        if (ops[last] == CONST) {
+            args[last] = operator == '-' ? (short) -args[last] : (short) ~args[last];
+            return w;
+        }
+        if (ops[last] == UNARY && args[last] == operator) {
+            // -(-x) and ~(~x) are both x in 16-bit arithmetic
+            return w - 1;
+        }
+        if (operator == '~' && ops[last] == BINARY && invertComparison(operand, last)) {
+            return w;
+        }
+        return w + 1;
+    }
+
+    /**
+     * Rewrites a comparison against a constant into its negation, so a condition needs no
+     * {@code not}: {@code ~(x < c)} is {@code x > c - 1} and {@code ~(x > c)} is
+     * {@code x < c + 1}, and likewise with the constant on the left. Declines when the
+     * adjusted constant would overflow.
+     *
+     * @return true if the comparison ending at {@code last} was inverted
+     */
+    private boolean invertComparison(int operand, int last) {
+        var comparison = (char) args[last];
+        if (comparison != '<' && comparison != '>') {
+            return false;
+        }
+        int constant;
+        boolean constantOnLeft;
+        if (ops[last - 1] == CONST) {
+            constant = last - 1;
+            constantOnLeft = false;
+        } else if (ops[operand] == CONST && operandStart(last - 1) == operand + 1) {
+            // the left operand only counts if it is that constant alone, not a call with a
+            // constant first argument
+            constant = operand;
+            constantOnLeft = true;
+        } else {
+            return false;
+        }
+        // x < c and c > x both hold below c; their negations hold from c on
+        var below = (comparison == '<') != constantOnLeft;
+        var value = args[constant];
+        if (below ? value == Short.MIN_VALUE : value == Short.MAX_VALUE) {
+            return false;
+        }
+        args[constant] = below ? value - 1 : value + 1;
+        args[last] = comparison == '<' ? '>' : '<';
+        return true;
+    }
+
+    /**
+     * @return where the operand whose last instruction is at {@code end} starts, found by
+     * walking back until the instructions seen produce exactly one value
+     */
+    private int operandStart(int end) {
+        var needed = 1;
+        for (var i = end; ; i--) {
+            needed += switch (ops[i]) {
+                case CONST, PUSH, STRING -> -1;
+                case CALL -> args[i] - 1;
+                case BINARY -> 1;
+                default -> 0;
+            };
+            if (needed == 0) {
+                return i;
+            }
+        }
+    }
+
+    /**
+     * @return the new write position, past the rewritten result
+     */
+    private int foldBinary(char operator, int left, int right, int w) {
+        var leftConstant = ops[left] == CONST && right == left + 1;
+        var rightConstant = ops[right] == CONST && w == right + 1;
+        if (leftConstant && rightConstant && isFoldable(operator, args[left], args[right])) {
+            args[left] = evaluate(operator, args[left], args[right]);
+            return left + 1;
+        }
+        if (rightConstant) {
+            var value = args[right];
+            if (isRightIdentity(operator, value)) {
+                return right;
+            }
+            if (isAbsorbing(operator, value) && isPure(left, right)) {
+                setConstant(left, value);
+                return left + 1;
+            }
+            if (operator == '*' && value == 0 && optimizationLevel >= 2) {
+                return scaleAt(right, 0);
+            }
+            if (operator == '*' && value == -1) {
+                return unaryAt(left, right, '-');
+            }
+            if (operator == '*' && isScalable(value)) {
+                return scaleAt(right, value);
+            }
+        }
+        if (leftConstant) {
+            var value = args[left];
+            if (isLeftIdentity(operator, value)) {
+                return removeLeft(right, w);
+            }
+            if (isAbsorbing(operator, value) && isPure(right, w)) {
+                setConstant(left, value);
+                return left + 1;
+            }
+            if (operator == '*' && value == 0 && optimizationLevel >= 2) {
+                return scaleAt(removeLeft(right, w), 0);
+            }
+            if ((operator == '-' && value == 0) || (operator == '*' && value == -1)) {
+                return unaryAt(left, removeLeft(right, w), '-');
+            }
+            if (operator == '*' && isScalable(value)) {
+                return scaleAt(removeLeft(right, w), value);
+            }
+        }
+        return w + 1;
+    }
+
+    private static boolean isFoldable(char operator, int left, int right) {
+        // Math.divide reports division by zero at run time and cannot negate -32768
+        return operator != '/' || (right != 0 && left != Short.MIN_VALUE && right != Short.MIN_VALUE);
+    }
+
+    private static int evaluate(char operator, int left, int right) {
+        return switch (operator) {
+            case '+' -> (short) (left + right);
+            case '-' -> (short) (left - right);
+            case '*' -> (short) (left * right);
+            case '/' -> (short) (left / right);
+            case '&' -> left & right;
+            case '|' -> left | right;
+            case '<' -> left < right ? -1 : 0;
+            case '>' -> left > right ? -1 : 0;
+            case '=' -> left == right ? -1 : 0;
+            default -> throw new IllegalStateException("Unknown operator " + operator);
+        };
+    }
+
+    private static boolean isRightIdentity(char operator, int value) {
+        return switch (operator) {
+            case '+', '-', '|' -> value == 0;
+            case '*', '/' -> value == 1;
+            case '&' -> value == -1;
+            default -> false;
+        };
+    }
+
+    private static boolean isLeftIdentity(char operator, int value) {
+        return switch (operator) {
+            case '+', '|' -> value == 0;
+            case '*' -> value == 1;
+            case '&' -> value == -1;
+            default -> false;
+        };
+    }
+
+    /**
+     * @return true if {@code value} determines the result regardless of the other operand
+     */
+    private static boolean isAbsorbing(char operator, int value) {
+        return switch (operator) {
+            case '*', '&' -> value == 0;
+            case '|' -> value == -1;
+            default -> false;
+        };
+    }
+
+    private boolean isPure(int from, int to) {
+        for (var i = from; i < to; i++) {
+            if (ops[i] == CALL || ops[i] == STRING || (ops[i] == BINARY && args[i] == '/')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void setConstant(int at, int value) {
+        ops[at] = CONST;
+        args[at] = value;
+        indices[at] = 0;
+        names[at] = null;
+    }
+
+    /**
+     * Drops the single-instruction left operand, shifting the right one down into its place.
+     *
+     * @return the new write position
+     */
+    private int removeLeft(int right, int w) {
+        for (var i = right; i < w; i++) {
+            move(i, i - 1);
+        }
+        return w - 1;
+    }
+
+    private int unaryAt(int operand, int w, char operator) {
+        ops[w] = UNARY;
+        args[w] = operator;
+        indices[w] = 0;
+        names[w] = null;
+        return foldUnary(operator, operand, w);
+    }
+
+    private boolean isScalable(int factor) {
+        return optimizationLevel >= 2 && Math.abs(factor) >= 2 && scaleSteps(factor) <= MAX_SCALE_STEPS;
+    }
+
+    private static int scaleSteps(int factor) {
+        var magnitude = Math.abs(factor);
+        return 31 - Integer.numberOfLeadingZeros(magnitude) + Integer.bitCount(magnitude) - 1;
+    }
+
+    private int scaleAt(int w, int factor) {
+        ops[w] = SCALE;
+        args[w] = factor;
+        indices[w] = 0;
+        names[w] = null;
+        return w + 1;
+    }
+
+    private void move(int from, int to) {
+        if (from != to) {
+            ops[to] = ops[from];
+            args[to] = args[from];
+            indices[to] = indices[from];
+            names[to] = names[from];
+        }
+    }
+
+    public void emit(VMWriter generator) {
+        for (var i = 0; i < size; i++) {
+            switch (ops[i]) {
+                case CONST -> {
+                    var value = args[i];
+                    if (value >= 0) {
+                        generator.genPush(VMCodeGenerator.SEGMENT.CONST, value);
+                    } else {
+                        generator.genPush(VMCodeGenerator.SEGMENT.CONST, ~value);
+                        generator.genArithmetic(VMCodeGenerator.COMMAND.NOT);
+                    }
+                }
+                case PUSH -> {
+                    if (i + 1 < size && ops[i + 1] == SCALE) {
+                        // a variable can be pushed again, so it needs no copy in temp 1
+                        emitScale(generator, SEGMENTS[args[i]], indices[i], args[++i]);
+                    } else {
+                        generator.genPush(SEGMENTS[args[i]], indices[i]);
+                    }
+                }
+                case STRING -> {
+                    var value = names[i];
+                    generator.genPush(VMCodeGenerator.SEGMENT.CONST, value.length());
+                    generator.genCall("String.new", 1);
+                    for (var c : value.toCharArray()) {
+                        generator.genPush(VMCodeGenerator.SEGMENT.CONST, c);
+                        generator.genCall("String.appendChar", 2);
+                    }
+                }
+                case CALL -> generator.genCall(names[i], args[i]);
+                case UNARY -> generator.genArithmetic(args[i] == '-'
+                        ? VMCodeGenerator.COMMAND.NEG
+                        : VMCodeGenerator.COMMAND.NOT);
+                case BINARY -> emitBinary((char) args[i], generator);
+                case DEREF -> {
+                    generator.genPop(VMCodeGenerator.SEGMENT.POINTER, 1);
+                    generator.genPush(VMCodeGenerator.SEGMENT.THAT, 0);
+                }
+                case SCALE -> {
+                    if (args[i] == 0) {
+                        // the operand still has to run for its side effects
+                        generator.genPop(VMCodeGenerator.SEGMENT.TEMP, 0);
+                        generator.genPush(VMCodeGenerator.SEGMENT.CONST, 0);
+                    } else {
+                        generator.genPop(VMCodeGenerator.SEGMENT.TEMP, 1);
+                        emitScale(generator, VMCodeGenerator.SEGMENT.TEMP, 1, args[i]);
+                    }
+                }
+                default -> throw new IllegalStateException("Unknown expression op " + ops[i]);
+            }
+        }
+    }
+
+    /**
+     * Pushes {@code x * factor} for the x held in {@code segment index}, scanning the factor's
+     * bits from the top: every bit doubles the running product and every set bit adds x.
+     */
+    private static void emitScale(VMWriter generator, VMCodeGenerator.SEGMENT segment, int index, int factor) {
+        var magnitude = Math.abs(factor);
+        var top = 31 - Integer.numberOfLeadingZeros(magnitude);
+        generator.genPush(segment, index);
+        for (var bit = top - 1; bit >= 0; bit--) {
+            if (bit == top - 1) {
+                // the product is still x itself
+                generator.genPush(segment, index);
+            } else {
+                generator.genPop(VMCodeGenerator.SEGMENT.TEMP, 2);
+                generator.genPush(VMCodeGenerator.SEGMENT.TEMP, 2);
+                generator.genPush(VMCodeGenerator.SEGMENT.TEMP, 2);
+            }
+            generator.genArithmetic(VMCodeGenerator.COMMAND.ADD);
+            if ((magnitude >> bit & 1) != 0) {
+                generator.genPush(segment, index);
+                generator.genArithmetic(VMCodeGenerator.COMMAND.ADD);
+            }
+        }
+        if (factor < 0) {
+            generator.genArithmetic(VMCodeGenerator.COMMAND.NEG);
+        }
+    }
+
+    private static void emitBinary(char operator, VMWriter generator) {
+        switch (operator) {
+            case '+' -> generator.genArithmetic(VMCodeGenerator.COMMAND.ADD);
+            case '-' -> generator.genArithmetic(VMCodeGenerator.COMMAND.SUB);
+            case '*' -> generator.genCall("Math.multiply", 2);
+            case '/' -> generator.genCall("Math.divide", 2);
+            case '<' -> generator.genArithmetic(VMCodeGenerator.COMMAND.LT);
+            case '>' -> generator.genArithmetic(VMCodeGenerator.COMMAND.GT);
+            case '=' -> generator.genArithmetic(VMCodeGenerator.COMMAND.EQ);
+            case '&' -> generator.genArithmetic(VMCodeGenerator.COMMAND.AND);
+            case '|' -> generator.genArithmetic(VMCodeGenerator.COMMAND.OR);
+            default -> throw new IllegalStateException("Unknown operator " + operator);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package org.qualcomm.manjoosha;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the instruction stream in memory, split into one {@link CompiledFunction} per
+ * {@code function} instruction, for whole-program passes that run once every class is compiled.
+ */
+public class FunctionRecorder extends InstructionRecorder {
+
+    private final List<CompiledFunction> functions;
+    private InstructionList current;
+
+    public FunctionRecorder() {
+        functions = new ArrayList<>();
+    }
+
+    public List<CompiledFunction> getFunctions() {
+        return functions;
+    }
+
+    @Override
+    protected void add(byte kind, int operand, int number, String name) {
+        if (kind == InstructionList.FUNCTION) {
+            current = new InstructionList();
+            functions.add(new CompiledFunction(name, current));
+        } else if (current == null) {
+            throw new IllegalStateException("VM code outside of a function");
+        }
+        current.add(kind, operand, number, name);
+    }
+
+    @Override
+    public void close() {
+        current = null;
+    }
+}
@@ -0,0 +1,561 @@
+package org.qualcomm.manjoosha;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Translates the instruction stream straight into Hack assembly, with no .vm text in between.
+ * <p>
+ * A push is held back until the next instruction shows where its value goes: into a pop it
+ * becomes a register move, into arithmetic the operand never touches the stack, and into an
+ * {@code if-goto} it is tested in D. A comparison likewise stays in D, as a number with the
+ * sign of the difference, until it is either branched on, which needs no boolean at all, or
+ * pushed. Calls, returns and ordering comparisons jump to one shared copy of their code,
+ * emitted by {@link #genBootstrap(String)}, so each costs a handful of instructions at the
+ * site.
+ * <p>
+ * Labels are scoped to their function as {@code function$label}, and statics are named
+ * {@code Class.index} after the function's class, so the output of several writers can be
+ * concatenated behind one bootstrap. Each writer notes which functions it defines and which
+ * it calls, so whoever joins them can tell whether every call has somewhere to go.
+ */
+public class HackAssemblyWriter implements VMWriter {
+
+    private static final String CALL = "$CALL";
+    private static final String RETURN = "$RETURN";
+    private static final String HALT = "$HALT";
+    private static final String COMPARE = "$COMPARE";
+
+    // segment offsets up to this are reached by incrementing A rather than adding in D
+    private static final int MAX_STEPS = 6;
+
+    private static final int BUFFER_SIZE = 1 << 13;
+    private static final int MAX_LINE_LENGTH = 256;
+
+    // what is held back in place of the top of the stack
+    private static final int NOTHING = 0;
+    private static final int VALUE = 1;
+    private static final int COMPARISON = 2;
+
+    private final CodeSink sink;
+    private final byte[] buffer;
+    private int position;
+
+    private String function;
+    private String className;
+    private int labels;
+    private final Set<String> definedFunctions;
+    private final Set<String> calledFunctions;
+
+    private int pending;
+    private VMCodeGenerator.SEGMENT pendingSegment;
+    private int pendingIndex;
+    private VMCodeGenerator.COMMAND pendingComparison;
+    private boolean pendingNegated;
+
+    public HackAssemblyWriter(CodeSink sink) {
+        this.sink = sink;
+        buffer = new byte[BUFFER_SIZE];
+        position = 0;
+        labels = 0;
+        definedFunctions = new HashSet<>();
+        calledFunctions = new HashSet<>();
+        pending = NOTHING;
+    }
+
+    public Set<String> getDefinedFunctions() {
+        return definedFunctions;
+    }
+
+    /**
+     * @return every function called, including the bootstrap's entry point
+     */
+    public Set<String> getCalledFunctions() {
+        return calledFunctions;
+    }
+
+    /**
+     * Emits the code a program starts with: the stack pointer set up, a call of
+     * {@code entryPoint} with no arguments, a halt loop it returns into and the call and return
+     * code every function shares. Goes first in the program, once.
+     */
+    public void genBootstrap(String entryPoint) {
+        flush();
+        line("@256");
+        line("D=A");
+        line("@SP");
+        line("M=D");
+        calledFunctions.add(entryPoint);
+        call(entryPoint, 0, HALT);
+        line("@" + HALT);
+        line("0;JMP");
+
+        // D: return address, R13: argument count, R14: callee
+        label(CALL);
+        line("@SP");
+        line("A=M");
+        line("M=D");
+        for (var register : new String[]{"LCL", "ARG", "THIS", "THAT"}) {
+            line("@" + register);
+            line("D=M");
+            line("@SP");
+            line("AM=M+1");
+            line("M=D");
+        }
+        line("@SP");
+        line("MD=M+1");
+        line("@LCL");
+        line("M=D");
+        line("@R13");
+        line("D=D-M");
+        line("@5");
+        line("D=D-A");
+        line("@ARG");
+        line("M=D");
+        line("@R14");
+        line("A=M");
+        line("0;JMP");
+
+        // D: return value. The return address is read first, as without arguments the value
+        // overwrites it.
+        label(RETURN);
+        line("@R13");
+        line("M=D");
+        line("@LCL");
+        line("D=M");
+        line("@R14");
+        line("M=D");
+        line("@5");
+        line("A=D-A");
+        line("D=M");
+        line("@R15");
+        line("M=D");
+        line("@R13");
+        line("D=M");
+        line("@ARG");
+        line("A=M");
+        line("M=D");
+        line("D=A+1");
+        line("@SP");
+        line("M=D");
+        for (var register : new String[]{"THAT", "THIS", "ARG", "LCL"}) {
+            line("@R14");
+            line("AM=M-1");
+            line("D=M");
+            line("@" + register);
+            line("M=D");
+        }
+        line("@R15");
+        line("A=M");
+        line("0;JMP");
+
+        // R13: y, x on top of the stack, R15: return address. Leaves D with the sign of x - y,
+        // subtracting only when the signs agree, as otherwise the 16-bit difference can overflow.
+        label(COMPARE);
+        line("@SP");
+        line("A=M-1");
+        line("D=M");
+        line("@" + COMPARE + ".below");
+        line("D;JLT");
+        line("@R13");
+        line("D=M");
+        line("@" + COMPARE + ".same");
+        line("D;JGE");
+        line("D=1");
+        line("@R15");
+        line("A=M");
+        line("0;JMP");
+        label(COMPARE + ".below");
+        line("@R13");
+        line("D=M");
+        line("@" + COMPARE + ".same");
+        line("D;JLT");
+        line("D=-1");
+        line("@R15");
+        line("A=M");
+        line("0;JMP");
+        label(COMPARE + ".same");
+        line("@SP");
+        line("A=M-1");
+        line("D=M");
+        line("@R13");
+        line("D=D-M");
+        line("@R15");
+        line("A=M");
+        line("0;JMP");
+    }
+
+    @Override
+    public void genPush(VMCodeGenerator.SEGMENT segment, int index) {
+        flush();
+        check(segment, index);
+        pending = VALUE;
+        pendingSegment = segment;
+        pendingIndex = index;
+    }
+
+    @Override
+    public void genPop(VMCodeGenerator.SEGMENT segment, int index) {
+        check(segment, index);
+        if (segment == VMCodeGenerator.SEGMENT.CONST) {
+            throw new IllegalArgumentException("Cannot pop into constant");
+        }
+        if (pending != VALUE) {
+            flush();
+        }
+        var far = !isDirect(segment) && index > MAX_STEPS;
+        if (far) {
+            // the address needs D, so it is worked out before the value takes D
+            line("@" + index);
+            line("D=A");
+            line("@" + base(segment));
+            line("D=D+M");
+            line("@R13");
+            line("M=D");
+        }
+        if (pending == VALUE) {
+            pending = NOTHING;
+            load(pendingSegment, pendingIndex);
+        } else {
+            popD();
+        }
+        if (far) {
+            line("@R13");
+            line("A=M");
+        } else {
+            address(segment, index);
+        }
+        line("M=D");
+    }
+
+    @Override
+    public void genArithmetic(VMCodeGenerator.COMMAND command) {
+        switch (command) {
+            case ADD, SUB, AND, OR -> {
+                if (pending == VALUE && pendingSegment == VMCodeGenerator.SEGMENT.CONST && pendingIndex == 1
+                        && (command == VMCodeGenerator.COMMAND.ADD || command == VMCodeGenerator.COMMAND.SUB)) {
+                    pending = NOTHING;
+                    line("@SP");
+                    line("A=M-1");
+                    line(command == VMCodeGenerator.COMMAND.ADD ? "M=M+1" : "M=M-1");
+                    return;
+                }
+                operandD();
+                line("@SP");
+                line("A=M-1");
+                line(switch (command) {
+                    case ADD -> "M=D+M";
+                    case SUB -> "M=M-D";
+                    case AND -> "M=D&M";
+                    default -> "M=D|M";
+                });
+            }
+            case EQ, GT, LT -> {
+                if (pending == VALUE && pendingSegment == VMCodeGenerator.SEGMENT.CONST && pendingIndex == 0) {
+                    // x itself has the sign of x - 0
+                    pending = NOTHING;
+                    line("@SP");
+                    line("A=M-1");
+                    line("D=M");
+                } else if (command == VMCodeGenerator.COMMAND.EQ) {
+                    // a difference that wraps around is still only 0 when the operands are equal
+                    operandD();
+                    line("@SP");
+                    line("A=M-1");
+                    line("D=M-D");
+                } else {
+                    operandD();
+                    var back = function + "$cmp." + labels++;
+                    line("@R13");
+                    line("M=D");
+                    line("@" + back);
+                    line("D=A");
+                    line("@R15");
+                    line("M=D");
+                    line("@" + COMPARE);
+                    line("0;JMP");
+                    label(back);
+                }
+                pending = COMPARISON;
+                pendingComparison = command;
+                pendingNegated = false;
+            }
+            case NEG, NOT -> {
+                if (pending == COMPARISON && command == VMCodeGenerator.COMMAND.NOT) {
+                    pendingNegated = !pendingNegated;
+                } else if (pending == VALUE) {
+                    pending = NOTHING;
+                    load(pendingSegment, pendingIndex);
+                    line("@SP");
+                    line("AM=M+1");
+                    line("A=A-1");
+                    line(command == VMCodeGenerator.COMMAND.NEG ? "M=-D" : "M=!D");
+                } else {
+                    flush();
+                    line("@SP");
+                    line("A=M-1");
+                    line(command == VMCodeGenerator.COMMAND.NEG ? "M=-M" : "M=!M");
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes the right operand of a binary command into D, off the stack unless it is pending.
+     */
+    private void operandD() {
+        if (pending == VALUE) {
+            pending = NOTHING;
+            load(pendingSegment, pendingIndex);
+        } else {
+            flush();
+            popD();
+        }
+    }
+
+    @Override
+    public void genLabel(String label) {
+        flush();
+        label(function + "$" + label);
+    }
+
+    @Override
+    public void genGoto(String label) {
+        flush();
+        line("@" + function + "$" + label);
+        line("0;JMP");
+    }
+
+    @Override
+    public void genIf(String label) {
+        var jump = "D;JNE";
+        if (pending == COMPARISON) {
+            pending = NOTHING;
+            // the left operand's slot is still on the stack
+            line("@SP");
+            line("M=M-1");
+            jump = "D;" + jump(pendingComparison, pendingNegated);
+        } else if (pending == VALUE) {
+            pending = NOTHING;
+            load(pendingSegment, pendingIndex);
+        } else {
+            popD();
+        }
+        line("@" + function + "$" + label);
+        line(jump);
+    }
+
+    @Override
+    public void genCall(String name, int nArgs) {
+        flush();
+        calledFunctions.add(name);
+        call(name, nArgs, function + "$ret." + labels++);
+    }
+
+    private void call(String name, int nArgs, String returnLabel) {
+        if (nArgs <= 1) {
+            line("@R13");
+            line("M=" + nArgs);
+        } else {
+            line("@" + nArgs);
+            line("D=A");
+            line("@R13");
+            line("M=D");
+        }
+        line("@" + name);
+        line("D=A");
+        line("@R14");
+        line("M=D");
+        line("@" + returnLabel);
+        line("D=A");
+        line("@" + CALL);
+        line("0;JMP");
+        label(returnLabel);
+    }
+
+    @Override
+    public void genFunction(String name, int nLocals) {
+        flush();
+        function = name;
+        definedFunctions.add(name);
+        var dot = name.indexOf('.');
+        className = dot < 0 ? name : name.substring(0, dot);
+        label(name);
+        if (nLocals > 0) {
+            line("@SP");
+            line("A=M");
+            line("M=0");
+            for (var i = 1; i < nLocals; i++) {
+                line("A=A+1");
+                line("M=0");
+            }
+            line("D=A+1");
+            line("@SP");
+            line("M=D");
+        }
+    }
+
+    @Override
+    public void genReturn() {
+        if (pending == VALUE) {
+            pending = NOTHING;
+            load(pendingSegment, pendingIndex);
+        } else {
+            flush();
+            popD();
+        }
+        line("@" + RETURN);
+        line("0;JMP");
+    }
+
+    private void check(VMCodeGenerator.SEGMENT segment, int index) {
+        var valid = switch (segment) {
+            case CONST -> index <= Short.MAX_VALUE;
+            case POINTER -> index <= 1;
+            case TEMP -> index <= 7;
+            case NONE -> throw new IllegalArgumentException("No VM segment for an undefined variable");
+            default -> true;
+        };
+        if (!valid || index < 0) {
+            throw new IllegalArgumentException("Index out of range : " + segment + " " + index);
+        }
+        if (segment == VMCodeGenerator.SEGMENT.STATIC && className == null) {
+            throw new IllegalStateException("VM code outside of a function");
+        }
+    }
+
+    /**
+     * Materializes whatever is pending onto the stack.
+     */
+    private void flush() {
+        if (pending == VALUE) {
+            pending = NOTHING;
+            if (pendingSegment == VMCodeGenerator.SEGMENT.CONST && pendingIndex <= 1) {
+                line("@SP");
+                line("AM=M+1");
+                line("A=A-1");
+                line("M=" + pendingIndex);
+                return;
+            }
+            load(pendingSegment, pendingIndex);
+            line("@SP");
+            line("AM=M+1");
+            line("A=A-1");
+            line("M=D");
+        } else if (pending == COMPARISON) {
+            pending = NOTHING;
+            var end = function + "$cmp." + labels++;
+            line("@SP");
+            line("A=M-1");
+            line("M=-1");
+            line("@" + end);
+            line("D;" + jump(pendingComparison, pendingNegated));
+            line("@SP");
+            line("A=M-1");
+            line("M=0");
+            label(end);
+        }
+    }
+
+    private static String jump(VMCodeGenerator.COMMAND comparison, boolean negated) {
+        return switch (comparison) {
+            case EQ -> negated ? "JNE" : "JEQ";
+            case GT -> negated ? "JLE" : "JGT";
+            default -> negated ? "JGE" : "JLT";
+        };
+    }
+
+    private void popD() {
+        line("@SP");
+        line("AM=M-1");
+        line("D=M");
+    }
+
+    private void load(VMCodeGenerator.SEGMENT segment, int index) {
+        if (segment == VMCodeGenerator.SEGMENT.CONST) {
+            if (index <= 1) {
+                line("D=" + index);
+            } else {
+                line("@" + index);
+                line("D=A");
+            }
+            return;
+        }
+        if (!isDirect(segment) && index > MAX_STEPS) {
+            line("@" + index);
+            line("D=A");
+            line("@" + base(segment));
+            line("A=D+M");
+        } else {
+            address(segment, index);
+        }
+        line("D=M");
+    }
+
+    /**
+     * Points A at a direct segment's register, or at a near slot of an indirect one.
+     */
+    private void address(VMCodeGenerator.SEGMENT segment, int index) {
+        switch (segment) {
+            case POINTER -> line(index == 0 ? "@THIS" : "@THAT");
+            case TEMP -> line("@R" + (5 + index));
+            case STATIC -> line("@" + className + "." + index);
+            default -> {
+                line("@" + base(segment));
+                line(index == 0 ? "A=M" : "A=M+1");
+                for (var i = 1; i < index; i++) {
+                    line("A=A+1");
+                }
+            }
+        }
+    }
+
+    private static boolean isDirect(VMCodeGenerator.SEGMENT segment) {
+        return segment == VMCodeGenerator.SEGMENT.POINTER || segment == VMCodeGenerator.SEGMENT.TEMP
+                || segment == VMCodeGenerator.SEGMENT.STATIC;
+    }
+
+    private static String base(VMCodeGenerator.SEGMENT segment) {
+        return switch (segment) {
+            case LOCAL -> "LCL";
+            case ARG -> "ARG";
+            case THIS -> "THIS";
+            case THAT -> "THAT";
+            default -> throw new IllegalArgumentException("No base register for " + segment);
+        };
+    }
+
+    private void label(String name) {
+        line("(" + name + ")");
+    }
+
+    private void line(String text) {
+        if (position + MAX_LINE_LENGTH + 1 > buffer.length) {
+            drain();
+        }
+        if (text.length() > MAX_LINE_LENGTH) {
+            throw new IllegalArgumentException("Assembly line too long");
+        }
+        for (var i = 0; i < text.length(); i++) {
+            buffer[position++] = (byte) text.charAt(i);
+        }
+        buffer[position++] = '\n';
+    }
+
+    private void drain() {
+        if (position > 0) {
+            sink.write(buffer, 0, position);
+        }
+        position = 0;
+    }
+
+    @Override
+    public void close() {
+        try {
+            flush();
+            drain();
+        } finally {
+            sink.close();
+        }
+    }
+}
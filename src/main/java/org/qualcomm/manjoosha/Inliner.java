@@ -0,0 +1,307 @@
+package org.qualcomm.manjoosha;
+
+import java.util.HashMap;
+
+/**
+ * Replaces calls to small leaf subroutines, such as getters and setters, with a copy of their
+ * body, across classes. Runs on a whole {@link Program} after it is compiled.
+ * <p>
+ * The inlined body gets locals past the end of the caller's own. The arguments already on the
+ * stack are popped into the first ones, and the callee's locals follow and are zeroed as a call
+ * would. One body is done before the next starts, so all call sites share the same slots.
+ * Labels get a prefix unique to the call site. Every {@code return} becomes a jump to the end of
+ * the body, leaving the result on the stack like the call did.
+ * <p>
+ * A call saves and restores {@code this} and {@code that}, so a callee that moves
+ * {@code pointer 0} or {@code pointer 1} needs care. A body that only uses {@code this} is
+ * moved onto {@code that} when the caller only needs {@code this}. Otherwise the pointer is
+ * saved in a local around the body, but only if the caller reads it. Code inlined earlier sets
+ * its own pointers before reading them, so it is judged from the caller's own code. A leaf has
+ * no calls, so nothing recursive is ever inlined. Bodies that use statics are only inlined
+ * within their own class, as statics belong to a file.
+ */
+public class Inliner {
+
+    private static final int THIS = 0;
+    private static final int THAT = 1;
+
+    private final int maxCalleeSize;
+    private final int maxGrowth;
+    private final HashMap<CompiledFunction, boolean[]> pointersRead;
+    private final HashMap<CompiledFunction, Integer> growth;
+    private int sites;
+
+    /**
+     * @param maxCalleeSize largest body, in VM instructions, that is inlined
+     * @param maxGrowth     how many instructions inlining may add to any one function
+     */
+    public Inliner(int maxCalleeSize, int maxGrowth) {
+        this.maxCalleeSize = maxCalleeSize;
+        this.maxGrowth = maxGrowth;
+        pointersRead = new HashMap<>();
+        growth = new HashMap<>();
+        sites = 0;
+    }
+
+    /**
+     * Inlines until no call site is left that fits the budgets. A caller whose last calls were
+     * inlined becomes a leaf itself and can then be inlined into its own callers.
+     *
+     * @return the number of call sites inlined
+     */
+    public int inline(Program program) {
+        for (var compiledClass : program.getClasses()) {
+            for (var function : compiledClass.getFunctions()) {
+                pointersRead.put(function, pointersRead(function.getCode()));
+            }
+        }
+        var inlined = 0;
+        var changed = true;
+        while (changed) {
+            changed = false;
+            for (var compiledClass : program.getClasses()) {
+                for (var caller : compiledClass.getFunctions()) {
+                    var count = inlineCalls(program, caller);
+                    inlined += count;
+                    changed |= count > 0;
+                }
+            }
+        }
+        return inlined;
+    }
+
+    private int inlineCalls(Program program, CompiledFunction caller) {
+        var code = caller.getCode();
+        InstructionList result = null;
+        var ownLocals = code.number(0);
+        var locals = ownLocals;
+        var inlined = 0;
+        for (var i = 0; i < code.size(); i++) {
+            var callee = code.kind(i) == InstructionList.CALL ? program.getFunction(code.name(i)) : null;
+            if (callee != null && isInlinable(callee, caller)) {
+                if (result == null) {
+                    result = new InstructionList();
+                    for (var j = 0; j < i; j++) {
+                        result.add(code, j);
+                    }
+                }
+                var before = result.size();
+                locals = Math.max(locals, expand(callee.getCode(), code.number(i), ownLocals, pointersRead.get(caller), result));
+                growth.merge(caller, result.size() - before - 1, Integer::sum);
+                inlined++;
+            } else if (result != null) {
+                result.add(code, i);
+            }
+        }
+        if (result != null) {
+            result.setNumber(0, locals);
+            caller.setCode(result);
+        }
+        return inlined;
+    }
+
+    private boolean isInlinable(CompiledFunction callee, CompiledFunction caller) {
+        if (callee == caller) {
+            return false;
+        }
+        var code = callee.getCode();
+        var size = 0;
+        var usesStatics = false;
+        for (var i = 1; i < code.size(); i++) {
+            var kind = code.kind(i);
+            if (kind == InstructionList.CALL) {
+                return false;
+            }
+            if (kind != InstructionList.RETURN && kind != InstructionList.LABEL) {
+                size++;
+            }
+            usesStatics |= isMemoryAccess(code, i) && code.segment(i) == VMCodeGenerator.SEGMENT.STATIC;
+        }
+        if (size > maxCalleeSize || (usesStatics && !callee.getClassName().equals(caller.getClassName()))) {
+            return false;
+        }
+        return growth.getOrDefault(caller, 0) + code.size() + 2 * code.number(0) + 8 <= maxGrowth;
+    }
+
+    /**
+     * Appends {@code body} in place of a call to it with {@code nArgs} arguments.
+     *
+     * @param base the first local of the caller that is free for the body
+     * @param uses which of {@code this} and {@code that} the caller reads
+     * @return the number of locals the caller needs for it
+     */
+    private int expand(InstructionList body, int nArgs, int base, boolean[] uses, InstructionList result) {
+        var prefix = "INLINE" + (sites++) + "_";
+
+        // a getter's first move, push argument 0; pop pointer 0, can take its argument straight off the stack
+        var stacked = nArgs > 0 && consumesLastArgument(body, nArgs - 1) ? nArgs - 1 : nArgs;
+        var argumentBase = base;
+        var localBase = argumentBase + stacked;
+        var next = localBase + body.number(0);
+
+        var writes = pointersWritten(body);
+        var swap = writes[THIS] && !writes[THAT] && !touchesThat(body) && uses[THIS] && !uses[THAT];
+        if (swap) {
+            writes[THIS] = false;
+            writes[THAT] = true;
+        }
+        var saved = new int[]{-1, -1};
+        for (var pointer = THIS; pointer <= THAT; pointer++) {
+            if (writes[pointer] && uses[pointer]) {
+                saved[pointer] = next++;
+                result.add(InstructionList.PUSH, VMCodeGenerator.SEGMENT.POINTER.ordinal(), pointer, null);
+                result.add(InstructionList.POP, VMCodeGenerator.SEGMENT.LOCAL.ordinal(), saved[pointer], null);
+            }
+        }
+
+        var start = 1;
+        if (stacked < nArgs) {
+            addRemapped(body, 2, argumentBase, localBase, swap, prefix, result);
+            start = 3;
+        }
+        for (var argument = stacked - 1; argument >= 0; argument--) {
+            result.add(InstructionList.POP, VMCodeGenerator.SEGMENT.LOCAL.ordinal(), argumentBase + argument, null);
+        }
+        var unset = localsReadBeforeSet(body);
+        for (var local = 0; local < unset.length; local++) {
+            if (unset[local]) {
+                result.add(InstructionList.PUSH, VMCodeGenerator.SEGMENT.CONST.ordinal(), 0, null);
+                result.add(InstructionList.POP, VMCodeGenerator.SEGMENT.LOCAL.ordinal(), localBase + local, null);
+            }
+        }
+
+        var last = body.size() - 1;
+        var returns = 0;
+        for (var i = start; i <= last; i++) {
+            returns += body.kind(i) == InstructionList.RETURN ? 1 : 0;
+        }
+        var endLabel = prefix + "RETURN";
+        var jumpToEnd = returns > 1 || body.kind(last) != InstructionList.RETURN;
+        for (var i = start; i <= last; i++) {
+            if (body.kind(i) != InstructionList.RETURN) {
+                addRemapped(body, i, argumentBase, localBase, swap, prefix, result);
+            } else if (jumpToEnd) {
+                result.add(InstructionList.GOTO, 0, 0, endLabel);
+            }
+        }
+        if (jumpToEnd) {
+            result.add(InstructionList.LABEL, 0, 0, endLabel);
+        }
+
+        for (var pointer = THIS; pointer <= THAT; pointer++) {
+            if (saved[pointer] >= 0) {
+                result.add(InstructionList.PUSH, VMCodeGenerator.SEGMENT.LOCAL.ordinal(), saved[pointer], null);
+                result.add(InstructionList.POP, VMCodeGenerator.SEGMENT.POINTER.ordinal(), pointer, null);
+            }
+        }
+        return next;
+    }
+
+    private static void addRemapped(InstructionList body, int i, int argumentBase, int localBase, boolean swap,
+                                    String prefix, InstructionList result) {
+        var kind = body.kind(i);
+        if (kind == InstructionList.LABEL || kind == InstructionList.GOTO || kind == InstructionList.IF) {
+            result.add(kind, 0, 0, prefix + body.name(i));
+            return;
+        }
+        if (!isMemoryAccess(body, i)) {
+            result.add(body, i);
+            return;
+        }
+        var segment = body.segment(i);
+        var index = body.number(i);
+        switch (segment) {
+            case ARG -> {
+                segment = VMCodeGenerator.SEGMENT.LOCAL;
+                index += argumentBase;
+            }
+            case LOCAL -> index += localBase;
+            case THIS -> segment = swap ? VMCodeGenerator.SEGMENT.THAT : segment;
+            case POINTER -> index = swap ? THAT : index;
+            default -> {
+                // constants, statics, temps and that are shared with the caller
+            }
+        }
+        result.add(kind, segment.ordinal(), index, null);
+    }
+
+    /**
+     * @return true if the body starts by moving the given argument somewhere outside the
+     * frame and never touches it again
+     */
+    private static boolean consumesLastArgument(InstructionList body, int argument) {
+        if (body.size() < 3
+                || body.kind(1) != InstructionList.PUSH || body.segment(1) != VMCodeGenerator.SEGMENT.ARG
+                || body.number(1) != argument || body.kind(2) != InstructionList.POP
+                || (body.segment(2) != VMCodeGenerator.SEGMENT.POINTER && body.segment(2) != VMCodeGenerator.SEGMENT.TEMP)) {
+            return false;
+        }
+        for (var i = 3; i < body.size(); i++) {
+            if (isMemoryAccess(body, i) && body.segment(i) == VMCodeGenerator.SEGMENT.ARG && body.number(i) == argument) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return which locals the body may read before storing to them, and so must be zeroed.
+     * Only stores ahead of the first label or jump are sure to happen before every later read.
+     */
+    private static boolean[] localsReadBeforeSet(InstructionList body) {
+        var unset = new boolean[body.number(0)];
+        var assigned = new boolean[body.number(0)];
+        var straight = true;
+        for (var i = 1; i < body.size(); i++) {
+            var kind = body.kind(i);
+            straight &= kind != InstructionList.LABEL && kind != InstructionList.GOTO && kind != InstructionList.IF;
+            if (isMemoryAccess(body, i) && body.segment(i) == VMCodeGenerator.SEGMENT.LOCAL) {
+                var local = body.number(i);
+                unset[local] |= kind == InstructionList.PUSH && !assigned[local];
+                assigned[local] |= straight && kind == InstructionList.POP;
+            }
+        }
+        return unset;
+    }
+
+    private static boolean[] pointersRead(InstructionList code) {
+        var reads = new boolean[2];
+        for (var i = 0; i < code.size(); i++) {
+            if (isMemoryAccess(code, i)) {
+                switch (code.segment(i)) {
+                    case THIS -> reads[THIS] = true;
+                    case THAT -> reads[THAT] = true;
+                    case POINTER -> reads[code.number(i)] |= code.kind(i) == InstructionList.PUSH;
+                    default -> {
+                        // not a pointer
+                    }
+                }
+            }
+        }
+        return reads;
+    }
+
+    private static boolean[] pointersWritten(InstructionList code) {
+        var writes = new boolean[2];
+        for (var i = 0; i < code.size(); i++) {
+            if (code.kind(i) == InstructionList.POP && code.segment(i) == VMCodeGenerator.SEGMENT.POINTER) {
+                writes[code.number(i)] = true;
+            }
+        }
+        return writes;
+    }
+
+    private static boolean touchesThat(InstructionList code) {
+        for (var i = 0; i < code.size(); i++) {
+            if (isMemoryAccess(code, i) && (code.segment(i) == VMCodeGenerator.SEGMENT.THAT
+                    || (code.segment(i) == VMCodeGenerator.SEGMENT.POINTER && code.number(i) == THAT))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isMemoryAccess(InstructionList code, int i) {
+        return code.kind(i) == InstructionList.PUSH || code.kind(i) == InstructionList.POP;
+    }
+}
@@ -0,0 +1,141 @@
+package org.qualcomm.manjoosha;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of VM instructions in compact form, held in parallel arrays: a kind, a
+ * segment or command ordinal, a number (index, argument or local count) and a name (label or
+ * function). Used by the stages that need to see a whole function before writing it out.
+ */
+public class InstructionList {
+
+    public static final byte PUSH = 0;
+    public static final byte POP = 1;
+    public static final byte ARITHMETIC = 2;
+    public static final byte LABEL = 3;
+    public static final byte GOTO = 4;
+    public static final byte IF = 5;
+    public static final byte CALL = 6;
+    public static final byte FUNCTION = 7;
+    public static final byte RETURN = 8;
+
+    private static final VMCodeGenerator.SEGMENT[] SEGMENTS = VMCodeGenerator.SEGMENT.values();
+    private static final VMCodeGenerator.COMMAND[] COMMANDS = VMCodeGenerator.COMMAND.values();
+
+    private byte[] kinds;
+    private byte[] operands;
+    private int[] numbers;
+    private String[] names;
+    private int size;
+
+    public InstructionList() {
+        kinds = new byte[64];
+        operands = new byte[64];
+        numbers = new int[64];
+        names = new String[64];
+        size = 0;
+    }
+
+    public void add(byte kind, int operand, int number, String name) {
+        if (size == kinds.length) {
+            var capacity = size * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            operands = Arrays.copyOf(operands, capacity);
+            numbers = Arrays.copyOf(numbers, capacity);
+            names = Arrays.copyOf(names, capacity);
+        }
+        kinds[size] = kind;
+        operands[size] = (byte) operand;
+        numbers[size] = number;
+        names[size] = name;
+        size++;
+    }
+
+    /**
+     * Appends a copy of instruction {@code i} of {@code source}.
+     */
+    public void add(InstructionList source, int i) {
+        add(source.kinds[i], source.operands[i], source.numbers[i], source.names[i]);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public byte kind(int i) {
+        return kinds[i];
+    }
+
+    public VMCodeGenerator.SEGMENT segment(int i) {
+        return SEGMENTS[operands[i]];
+    }
+
+    public VMCodeGenerator.COMMAND command(int i) {
+        return COMMANDS[operands[i]];
+    }
+
+    public int number(int i) {
+        return numbers[i];
+    }
+
+    public String name(int i) {
+        return names[i];
+    }
+
+    public void setNumber(int i, int number) {
+        numbers[i] = number;
+    }
+
+    public void clear() {
+        Arrays.fill(names, 0, size, null);
+        size = 0;
+    }
+
+    /**
+     * Drops every instruction whose entry in {@code keep} is false, preserving the order of the
+     * rest.
+     *
+     * @return true if anything was dropped
+     */
+    public boolean retain(boolean[] keep) {
+        var w = 0;
+        for (var r = 0; r < size; r++) {
+            if (keep[r]) {
+                kinds[w] = kinds[r];
+                operands[w] = operands[r];
+                numbers[w] = numbers[r];
+                names[w] = names[r];
+                w++;
+            }
+        }
+        Arrays.fill(names, w, size, null);
+        var dropped = w < size;
+        size = w;
+        return dropped;
+    }
+
+    public void emit(int i, VMWriter writer) {
+        switch (kinds[i]) {
+            case PUSH -> writer.genPush(segment(i), numbers[i]);
+            case POP -> writer.genPop(segment(i), numbers[i]);
+            case ARITHMETIC -> writer.genArithmetic(command(i));
+            case LABEL -> writer.genLabel(names[i]);
+            case GOTO -> writer.genGoto(names[i]);
+            case IF -> writer.genIf(names[i]);
+            case CALL -> writer.genCall(names[i], numbers[i]);
+            case FUNCTION -> writer.genFunction(names[i], numbers[i]);
+            case RETURN -> writer.genReturn();
+            default -> throw new IllegalStateException("Unknown instruction kind " + kinds[i]);
+        }
+    }
+
+    public void emitAll(VMWriter writer) {
+        for (var i = 0; i < size; i++) {
+            emit(i, writer);
+        }
+    }
+}
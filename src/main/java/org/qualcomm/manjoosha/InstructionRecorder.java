@@ -0,0 +1,61 @@
+package org.qualcomm.manjoosha;
+
+/**
+ * A {@link VMWriter} that hands every instruction to {@link #add} in the compact form of
+ * {@link InstructionList}, for the stages that collect instructions before passing them on.
+ */
+public abstract class InstructionRecorder implements VMWriter {
+
+    /**
+     * @param kind    one of the {@link InstructionList} kinds
+     * @param operand the segment or command ordinal, or 0
+     * @param number  the index, argument count or local count, or 0
+     * @param name    the label or function name, or null
+     */
+    protected abstract void add(byte kind, int operand, int number, String name);
+
+    @Override
+    public void genPush(VMCodeGenerator.SEGMENT segment, int index) {
+        add(InstructionList.PUSH, segment.ordinal(), index, null);
+    }
+
+    @Override
+    public void genPop(VMCodeGenerator.SEGMENT segment, int index) {
+        add(InstructionList.POP, segment.ordinal(), index, null);
+    }
+
+    @Override
+    public void genArithmetic(VMCodeGenerator.COMMAND command) {
+        add(InstructionList.ARITHMETIC, command.ordinal(), 0, null);
+    }
+
+    @Override
+    public void genLabel(String label) {
+        add(InstructionList.LABEL, 0, 0, label);
+    }
+
+    @Override
+    public void genGoto(String label) {
+        add(InstructionList.GOTO, 0, 0, label);
+    }
+
+    @Override
+    public void genIf(String label) {
+        add(InstructionList.IF, 0, 0, label);
+    }
+
+    @Override
+    public void genCall(String name, int nArgs) {
+        add(InstructionList.CALL, 0, nArgs, name);
+    }
+
+    @Override
+    public void genFunction(String name, int nLocals) {
+        add(InstructionList.FUNCTION, 0, nLocals, name);
+    }
+
+    @Override
+    public void genReturn() {
+        add(InstructionList.RETURN, 0, 0, null);
+    }
+}
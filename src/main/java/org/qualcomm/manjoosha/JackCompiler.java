@@ -1,40 +1,517 @@
 package org.qualcomm.manjoosha;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 public class JackCompiler {
 
     public static void main(String[] args) {
-        if (args.length != 1) {
-            System.out.println("Usage:java JackCompiler [filename|directory]");
+        CompilerOptions options;
+        try {
+            options = CompilerOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+        if (options.isDaemon()) {
+            CompileDaemon.serve();
+            return;
+        }
+        var status = run(options, System.out, System.err);
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    /**
+     * Compiles the input named by the options, reporting to the given streams instead of the
+     * process's own, so it can serve both the command line and {@link CompileDaemon} requests.
+     *
+     * @return the process exit status
+     */
+    public static int run(CompilerOptions options, PrintStream out, PrintStream err) {
+        var inputFile = options.getInput();
+        List<File> jackFiles = new ArrayList<>();
+        if (inputFile.isFile()) {
+            var path = inputFile.getAbsolutePath();
+            if (isNotAJackFile(path)) {
+                err.println(".jack file is required!");
+                return 1;
+            }
+            jackFiles.add(inputFile);
+        } else if (inputFile.isDirectory()) {
+            jackFiles = readJackFilesInDir(inputFile);
+            if (jackFiles.isEmpty()) {
+                err.println("Jack file expected");
+                return 1;
+            }
+        }
+        Consumer<CompileResult> reporter = result -> {
+            if (result.isSuccess()) {
+                out.println(result);
+            } else {
+                err.println(result);
+            }
+        };
+        int failures;
+        if (options.isWholeProgram()) {
+            failures = compileWholeProgram(jackFiles, options, reporter, out, err);
+        } else if (options.isAssembly()) {
+            failures = compileToAssembly(jackFiles, assemblyFileFor(inputFile), options, reporter, err);
         } else {
-            var inputFile = new File(args[0]);
-            List<File> jackFiles = new ArrayList<>();
-            if (inputFile.isFile()) {
-                var path = inputFile.getAbsolutePath();
-                if (isNotAJackFile(path)) {
-                    throw new IllegalArgumentException(".jack file is required!");
+            failures = compile(jackFiles, options, reporter, err);
+        }
+        return failures > 0 ? 1 : 0;
+    }
+
+    /**
+     * Compiles every file, on a pool of {@link CompilerOptions#getJobs()} workers when more than
+     * one is requested. Results are handed to the reporter in input order whatever order the
+     * workers finish in, and a failing file never affects the others.
+     *
+     * @param err receives warnings that concern no single file, such as an unreadable build cache
+     * @return the number of files that failed to compile
+     */
+    public static int compile(List<File> jackFiles, CompilerOptions options, Consumer<CompileResult> reporter,
+                              PrintStream err) {
+        if (jackFiles.isEmpty()) {
+            return 0;
+        }
+        var signatures = scanSignatures(jackFiles, options, options.getInput() != null && options.getInput().isDirectory(), err);
+        // a file's code depends on the other files' signatures, so a change to those invalidates it too
+        var cache = options.isIncremental()
+                ? BuildCache.load(jackFiles.get(0).getAbsoluteFile().getParentFile(),
+                options.fingerprint() + " signatures " + signatures.fingerprint(), err)
+                : null;
+        var results = forEachFile(jackFiles, options,
+                jackFile -> compileFile(jackFile, options, signatures, cache),
+                (jackFile, e) -> new CompileResult(jackFile, outputFileFor(jackFile), e),
+                reporter, err);
+        if (cache != null) {
+            cache.save(err);
+        }
+        return (int) results.stream().filter(result -> !result.isSuccess()).count();
+    }
+
+    /**
+     * Compiles every file straight to Hack assembly and joins them behind the bootstrap into
+     * one .asm file, in a single pass and without any .vm text. The files compile into memory
+     * in parallel like {@link #compile}; nothing is written if any of them fails. See
+     * {@link #link} for what else goes into the file.
+     *
+     * @return the number of files that failed to compile
+     */
+    public static int compileToAssembly(List<File> jackFiles, File outputFile, CompilerOptions options,
+                                        Consumer<CompileResult> reporter, PrintStream err) {
+        var signatures = scanSignatures(jackFiles, options, true, err);
+        var code = new ConcurrentHashMap<File, byte[]>();
+        var writers = new ConcurrentHashMap<File, HackAssemblyWriter>();
+        var results = forEachFile(jackFiles, options,
+                jackFile -> {
+                    var output = new MemoryCodeSink();
+                    var writer = new HackAssemblyWriter(output);
+                    new CompilationEngine(jackFile, writer, options, signatures).compileClass();
+                    code.put(jackFile, output.toByteArray());
+                    writers.put(jackFile, writer);
+                    return new CompileResult(jackFile, outputFile, CompileResult.Status.CREATED);
+                },
+                (jackFile, e) -> new CompileResult(jackFile, outputFile, e),
+                result -> {
+                    if (!result.isSuccess()) {
+                        reporter.accept(result);
+                    }
+                }, err);
+        var failures = (int) results.stream().filter(result -> !result.isSuccess()).count();
+        if (failures > 0) {
+            return failures;
+        }
+        var parts = new ArrayList<byte[]>();
+        var compiled = new ArrayList<HackAssemblyWriter>();
+        for (var jackFile : jackFiles) {
+            parts.add(code.get(jackFile));
+            compiled.add(writers.get(jackFile));
+        }
+        return link(jackFiles, parts, compiled, outputFile, reporter);
+    }
+
+    /**
+     * Joins the compiled code behind the bootstrap into one .asm file, together with every .vm
+     * file next to the sources whose class none of them replaces, which is how the stock OS
+     * ships. The program starts at Sys.init when it has one, which then calls Main.main, and
+     * otherwise at Main.main itself. A call to a function that is defined nowhere fails the
+     * build, as the assembler would silently take its name for a variable.
+     *
+     * @param writers the writers that produced {@code parts}, already closed
+     * @return 1 if linking failed, and 0 otherwise
+     */
+    private static int link(List<File> jackFiles, List<byte[]> parts, List<HackAssemblyWriter> writers,
+                            File outputFile, Consumer<CompileResult> reporter) {
+        try {
+            var library = new MemoryCodeSink();
+            var libraryWriter = new HackAssemblyWriter(library);
+            try {
+                for (var vmFile : libraryFiles(jackFiles)) {
+                    VMReader.read(vmFile, libraryWriter);
                 }
-                jackFiles.add(inputFile);
-            } else if (inputFile.isDirectory()) {
-                jackFiles = readJackFilesInDir(inputFile);
-                if (jackFiles.isEmpty()) {
-                    throw new IllegalArgumentException("Jack file expected");
+            } finally {
+                libraryWriter.close();
+            }
+            var defined = new HashSet<>(libraryWriter.getDefinedFunctions());
+            var called = new TreeSet<>(libraryWriter.getCalledFunctions());
+            for (var writer : writers) {
+                defined.addAll(writer.getDefinedFunctions());
+                called.addAll(writer.getCalledFunctions());
+            }
+            var entryPoint = defined.contains("Sys.init") ? "Sys.init" : "Main.main";
+            called.add(entryPoint);
+            called.removeAll(defined);
+            if (!called.isEmpty()) {
+                throw new IllegalStateException("Undefined functions " + String.join(", ", called)
+                        + "; put the .vm files of the OS next to the program");
+            }
+            var bootstrap = new MemoryCodeSink();
+            var writer = new HackAssemblyWriter(bootstrap);
+            writer.genBootstrap(entryPoint);
+            writer.close();
+            var sink = new FileCodeSink(outputFile);
+            try {
+                sink.write(bootstrap.toByteArray(), 0, bootstrap.size());
+                for (var bytes : parts) {
+                    sink.write(bytes, 0, bytes.length);
                 }
+                sink.write(library.toByteArray(), 0, library.size());
+            } finally {
+                sink.close();
             }
-            jackFiles.stream().flatMap(jackFile -> Stream.of(jackFile)
-                    .map(File::getAbsolutePath)
-                    .map(path -> path.substring(0, path.lastIndexOf('.')) + ".vm")
-                    .peek(fileOutPath -> System.out.println("File created : " + fileOutPath))
-                    .map(File::new)
-                    .map(outputFile -> new CompilationEngine(jackFile, outputFile))
-            ).forEach(CompilationEngine::compileClass);
+        } catch (RuntimeException e) {
+            reporter.accept(new CompileResult(outputFile, outputFile, e));
+            return 1;
+        }
+        reporter.accept(new CompileResult(outputFile, outputFile, CompileResult.Status.CREATED));
+        return 0;
+    }
+
+    /**
+     * @return the .vm files in the sources' directories whose class has no source among them,
+     * by name
+     */
+    private static List<File> libraryFiles(List<File> jackFiles) {
+        var classes = new HashSet<String>();
+        var dirs = new TreeSet<File>();
+        for (var jackFile : jackFiles) {
+            classes.add(className(jackFile));
+            dirs.add(jackFile.getAbsoluteFile().getParentFile());
+        }
+        var vmFiles = new ArrayList<File>();
+        for (var dir : dirs) {
+            var files = dir.listFiles((parent, name) -> name.endsWith(".vm"));
+            if (files != null) {
+                Arrays.sort(files);
+                for (var file : files) {
+                    if (!classes.contains(className(file))) {
+                        vmFiles.add(file);
+                    }
+                }
+            }
+        }
+        return vmFiles;
+    }
+
+    private static String className(File file) {
+        var name = file.getName();
+        return name.substring(0, name.lastIndexOf('.'));
+    }
+
+    /**
+     * Compiles every file into memory, drops the functions no call chain from
+     * {@link Program#ENTRY_POINTS} reaches, and only then writes the .vm files. Nothing is
+     * written if any file fails, as its calls could keep other functions alive. At -O1 and above
+     * small subroutines are inlined first, which can leave more of them unreachable. With
+     * {@link CompilerOptions#isAssembly()} the functions that are left go into one .asm file.
+     *
+     * @param report receives the names of the removed functions and a summary
+     * @return the number of files that failed to compile
+     */
+    public static int compileWholeProgram(List<File> jackFiles, CompilerOptions options,
+                                          Consumer<CompileResult> reporter, PrintStream report, PrintStream err) {
+        var signatures = scanSignatures(jackFiles, options, true, err);
+        var classes = forEachFile(jackFiles, options,
+                jackFile -> CompiledClass.compile(jackFile, options, signatures),
+                CompiledClass::failed,
+                compiled -> {
+                    if (!compiled.isSuccess()) {
+                        reporter.accept(new CompileResult(compiled.getSource(), outputFileFor(compiled.getSource()), compiled.getError()));
+                    }
+                }, err);
+        var failures = (int) classes.stream().filter(compiled -> !compiled.isSuccess()).count();
+        if (failures > 0) {
+            return failures;
+        }
+
+        var program = new Program(classes);
+        var total = program.functionCount();
+        var inline = options.getOptimizationLevel() >= 1 && options.getInlineLimit() > 0;
+        var inlined = 0;
+        if (inline) {
+            inlined = new Inliner(options.getInlineLimit(), options.getInlineGrowth()).inline(program);
+        }
+        var removed = program.shake(Program.ENTRY_POINTS);
+
+        if (options.isAssembly()) {
+            failures += writeAssembly(jackFiles, program, inline, assemblyFileFor(options.getInput()), reporter);
+        } else {
+            for (var compiled : program.getClasses()) {
+                var outputFile = outputFileFor(compiled.getSource());
+                try {
+                    if (compiled.getFunctions().isEmpty()) {
+                        Files.deleteIfExists(outputFile.toPath());
+                        reporter.accept(new CompileResult(compiled.getSource(), outputFile, CompileResult.Status.OMITTED));
+                        continue;
+                    }
+                    // inlined bodies meet their callers' code only now, so give the peephole rules another look
+                    VMWriter writer = new VMCodeGenerator(outputFile);
+                    if (inline) {
+                        writer = new PeepholeOptimizer(new DeadCodeEliminator(writer));
+                    }
+                    try {
+                        for (var function : compiled.getFunctions()) {
+                            function.getCode().emitAll(writer);
+                        }
+                    } finally {
+                        writer.close();
+                    }
+                    reporter.accept(new CompileResult(compiled.getSource(), outputFile, CompileResult.Status.CREATED));
+                } catch (IOException | RuntimeException e) {
+                    reporter.accept(new CompileResult(compiled.getSource(), outputFile, e));
+                    failures++;
+                }
+            }
+        }
+        for (var name : removed) {
+            report.println("Removed unreachable function " + name);
+        }
+        if (inline) {
+            report.println("Inlined " + inlined + " calls");
+        }
+        report.println("Tree shaking kept " + (total - removed.size()) + " of " + total + " functions");
+        return failures;
+    }
+
+    private static int writeAssembly(List<File> jackFiles, Program program, boolean inline, File outputFile,
+                                     Consumer<CompileResult> reporter) {
+        var code = new MemoryCodeSink();
+        var assembly = new HackAssemblyWriter(code);
+        try {
+            VMWriter writer = inline ? new PeepholeOptimizer(new DeadCodeEliminator(assembly)) : assembly;
+            try {
+                for (var compiled : program.getClasses()) {
+                    for (var function : compiled.getFunctions()) {
+                        function.getCode().emitAll(writer);
+                    }
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (RuntimeException e) {
+            reporter.accept(new CompileResult(outputFile, outputFile, e));
+            return 1;
+        }
+        return link(jackFiles, List.of(code.toByteArray()), List.of(assembly), outputFile, reporter);
+    }
+
+    /**
+     * Reads the subroutine declarations of every file, in parallel like the compile itself, so
+     * calls between them can be resolved and checked. A file that cannot be scanned is left out
+     * and its compile reports the error; the index is then not closed either, as calls into that
+     * class cannot be told from calls into a missing one.
+     *
+     * @param closed whether the files are the whole program
+     */
+    public static SignatureIndex scanSignatures(List<File> jackFiles, CompilerOptions options, boolean closed,
+                                                PrintStream err) {
+        var parts = forEachFile(jackFiles, options,
+                jackFile -> SignatureIndex.scan(jackFile, options.isStreaming()),
+                (jackFile, e) -> null,
+                part -> {
+                    // scan failures are reported by the compile
+                }, err);
+        var complete = !parts.contains(null);
+        parts.removeIf(Objects::isNull);
+        return SignatureIndex.merge(parts, closed && complete);
+    }
+
+    /**
+     * Runs {@code task} on every file, on a pool of {@link CompilerOptions#getJobs()} workers
+     * when more than one is requested. Results are handed to the consumer in input order
+     * whatever order the workers finish in; a task that throws is turned into a result by
+     * {@code failure}.
+     *
+     * @return the results, in input order
+     */
+    private static <T> List<T> forEachFile(List<File> jackFiles, CompilerOptions options, Function<File, T> task,
+                                           BiFunction<File, Throwable, T> failure, Consumer<T> consumer,
+                                           PrintStream err) {
+        var results = new ArrayList<T>();
+        if (options.getJobs() == 1 || jackFiles.size() == 1) {
+            for (var jackFile : jackFiles) {
+                T result;
+                try {
+                    result = task.apply(jackFile);
+                } catch (RuntimeException | Error e) {
+                    result = failure.apply(jackFile, e);
+                }
+                consumer.accept(result);
+                results.add(result);
+            }
+            return results;
+        }
+        var executor = newExecutor(options, err);
+        try {
+            var futures = new ArrayList<Future<T>>();
+            for (var jackFile : jackFiles) {
+                futures.add(executor.submit(() -> task.apply(jackFile)));
+            }
+            for (var i = 0; i < futures.size(); i++) {
+                var result = await(futures.get(i), jackFiles.get(i), failure);
+                consumer.accept(result);
+                results.add(result);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return results;
+    }
+
+    /**
+     * Incremental variant of {@link #compileFile(File, CompilerOptions, SignatureIndex)}: skips the
+     * file when the cache shows neither it nor its output changed, and otherwise compiles into
+     * memory and only rewrites the .vm file if its bytes differ.
+     */
+    public static CompileResult compileFile(File jackFile, CompilerOptions options, SignatureIndex signatures, BuildCache cache) {
+        if (cache == null) {
+            return compileFile(jackFile, options, signatures);
+        }
+        var outputFile = outputFileFor(jackFile);
+        try {
+            var source = cache.inspect(jackFile);
+            if (cache.isUpToDate(source, outputFile)) {
+                cache.record(source, outputFile);
+                return new CompileResult(jackFile, outputFile, CompileResult.Status.UP_TO_DATE);
+            }
+            var output = new MemoryCodeSink();
+            new CompilationEngine(jackFile, new VMCodeGenerator(output), options, signatures).compileClass();
+            var written = writeIfChanged(outputFile, output.toByteArray());
+            cache.record(source, outputFile);
+            return new CompileResult(jackFile, outputFile, written ? CompileResult.Status.CREATED : CompileResult.Status.UNCHANGED);
+        } catch (IOException | RuntimeException | StackOverflowError e) {
+            cache.forget(jackFile);
+            return new CompileResult(jackFile, outputFile, e);
+        }
+    }
+
+    private static boolean writeIfChanged(File file, byte[] bytes) throws IOException {
+        if (file.isFile() && file.length() == bytes.length && Arrays.equals(Files.readAllBytes(file.toPath()), bytes)) {
+            return false;
+        }
+        Files.write(file.toPath(), bytes);
+        return true;
+    }
+
+    /**
+     * Compiles a single class from source text and returns its VM code, without any file I/O.
+     */
+    public static String compile(CharSequence source) {
+        return compile(source, new CompilerOptions());
+    }
+
+    public static String compile(CharSequence source, CompilerOptions options) {
+        var output = new MemoryCodeSink();
+        new CompilationEngine(source, output, options).compileClass();
+        return output.toString();
+    }
+
+    public static CompileResult compileFile(File jackFile, CompilerOptions options) {
+        return compileFile(jackFile, options, SignatureIndex.OS);
+    }
+
+    public static CompileResult compileFile(File jackFile, CompilerOptions options, SignatureIndex signatures) {
+        var outputFile = outputFileFor(jackFile);
+        try {
+            new CompilationEngine(jackFile, new VMCodeGenerator(outputFile), options, signatures).compileClass();
+            return new CompileResult(jackFile, outputFile, CompileResult.Status.CREATED);
+        } catch (RuntimeException | StackOverflowError e) {
+            outputFile.delete();
+            return new CompileResult(jackFile, outputFile, e);
+        }
+    }
+
+    /**
+     * @return {@code Dir/Dir.asm} for a directory, {@code Name.asm} next to a single file
+     */
+    public static File assemblyFileFor(File input) {
+        var file = input.getAbsoluteFile();
+        if (file.isDirectory()) {
+            return new File(file, file.getName() + ".asm");
+        }
+        var path = file.getPath();
+        return new File(path.substring(0, path.lastIndexOf('.')) + ".asm");
+    }
+
+    private static File outputFileFor(File jackFile) {
+        var path = jackFile.getAbsolutePath();
+        return new File(path.substring(0, path.lastIndexOf('.')) + ".vm");
+    }
+
+    private static <T> T await(Future<T> result, File jackFile, BiFunction<File, Throwable, T> failure) {
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            return failure.apply(jackFile, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return failure.apply(jackFile, e);
+        }
+    }
+
+    private static ExecutorService newExecutor(CompilerOptions options, PrintStream err) {
+        var threadFactory = options.useVirtualThreads() ? virtualThreadFactory(err) : null;
+        if (threadFactory == null) {
+            threadFactory = Executors.defaultThreadFactory();
+        }
+        return Executors.newFixedThreadPool(options.getJobs(), threadFactory);
+    }
+
+    /**
+     * Looks up {@code Thread.ofVirtual().factory()} reflectively, since virtual threads only
+     * exist on newer runtimes than the one this project targets.
+     */
+    private static ThreadFactory virtualThreadFactory(PrintStream err) {
+        try {
+            var builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            err.println("Virtual threads are not available, using platform threads");
+            return null;
         }
     }
 
@@ -49,6 +526,7 @@ public class JackCompiler {
         }
         return Arrays.stream(files)
                 .filter(file -> file.getName().endsWith(".jack"))
+                .sorted(Comparator.comparing(File::getName))
                 .collect(Collectors.toList());
     }
 
@@ -2,14 +2,14 @@ package org.qualcomm.manjoosha;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.util.ArrayList;
-import java.util.EnumMap;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 public class JackTokenizer {
 
@@ -33,15 +33,44 @@ public class JackTokenizer {
         THIS
     }
 
-    private String currentToken;
-    private TYPE currentTokenType;
+    private static final TYPE[] TYPES = TYPE.values();
+    private static final KEYWORD[] KEYWORDS = KEYWORD.values();
+
+    private byte[] types;
+    private int[] codes;
+    private int[] starts;
+    private int[] lengths;
+    private String[] texts;
+    private final NameTable names;
+    private int mask;
+    private int count;
     private int pointer;
-    private final ArrayList<String> tokens;
+    private int current;
+
+    private byte[] buffer;
+    private int bufferLimit;
+    private int bufferOffset;
+    private int scan;
+    private int tokenStart;
+    private FileChannel channel;
 
     private static final HashMap<String, KEYWORD> KEYWORD_TO_STRING = new HashMap<>();
-    private static final HashSet<Character> OPERATIONS = new HashSet<>();
-    private static final EnumMap<TYPE, String> TYPE_TO_REGEX = new EnumMap<>(TYPE.class);
-    private static final Pattern tokenPatterns;
+    private static final boolean[] OPERATIONS = new boolean[128];
+    private static final byte[][] KEYWORD_SPELLINGS = new byte[KEYWORDS.length][];
+    private static final int[][] KEYWORD_BUCKETS = new int[26 * 12][];
+    private static final byte[] CHAR_CLASS = new byte[256];
+
+    private static final byte OTHER = 0;
+    private static final byte WHITESPACE = 1;
+    private static final byte DIGIT = 2;
+    private static final byte LETTER = 3;
+    private static final byte SYMBOL = 4;
+    private static final byte QUOTE = 5;
+    private static final byte SLASH = 6;
+
+    private static final int MAX_INT_CONST = 32767;
+    private static final int CHUNK_SIZE = 1 << 16;
+    private static final int WINDOW_SIZE = 16;
 
     static {
         KEYWORD_TO_STRING.put("class", KEYWORD.CLASS);
@@ -66,114 +95,428 @@ public class JackTokenizer {
         KEYWORD_TO_STRING.put("while", KEYWORD.WHILE);
         KEYWORD_TO_STRING.put("return", KEYWORD.RETURN);
 
-        OPERATIONS.add('+');
-        OPERATIONS.add('-');
-        OPERATIONS.add('*');
-        OPERATIONS.add('/');
-        OPERATIONS.add('&');
-        OPERATIONS.add('|');
-        OPERATIONS.add('<');
-        OPERATIONS.add('>');
-        OPERATIONS.add('=');
-
-        var keyWordRegex = String.join("|", KEYWORD_TO_STRING.keySet());
-        var symbolRegex = "[&*+()./,\\-\\];~}|{>=\\[<]";
-        var intRegex = "[0-9]+";
-        var strRegex = "\"[^\"\n]*\"";
-        var idRegex = "[a-zA-Z_]\\w*";
-        TYPE_TO_REGEX.put(TYPE.KEYWORD, keyWordRegex);
-        TYPE_TO_REGEX.put(TYPE.SYMBOL, symbolRegex);
-        TYPE_TO_REGEX.put(TYPE.INT_CONST, intRegex);
-        TYPE_TO_REGEX.put(TYPE.STRING_CONST, strRegex);
-        TYPE_TO_REGEX.put(TYPE.IDENTIFIER, idRegex);
-
-        tokenPatterns = Pattern.compile(String.join("|", TYPE_TO_REGEX.values()));
+        for (var c : "+-*/&|<>=".toCharArray()) {
+            OPERATIONS[c] = true;
+        }
+
+        KEYWORD_TO_STRING.forEach((spelling, keyword) -> {
+            var bytes = spelling.getBytes(StandardCharsets.ISO_8859_1);
+            KEYWORD_SPELLINGS[keyword.ordinal()] = bytes;
+            var bucket = keywordBucket(bytes[0], bytes.length);
+            var candidates = KEYWORD_BUCKETS[bucket];
+            if (candidates == null) {
+                KEYWORD_BUCKETS[bucket] = new int[]{keyword.ordinal()};
+            } else {
+                candidates = Arrays.copyOf(candidates, candidates.length + 1);
+                candidates[candidates.length - 1] = keyword.ordinal();
+                KEYWORD_BUCKETS[bucket] = candidates;
+            }
+        });
+
+        for (var c = 0; c <= ' '; c++) {
+            CHAR_CLASS[c] = WHITESPACE;
+        }
+        for (var c = '0'; c <= '9'; c++) {
+            CHAR_CLASS[c] = DIGIT;
+        }
+        for (var c = 'a'; c <= 'z'; c++) {
+            CHAR_CLASS[c] = LETTER;
+            CHAR_CLASS[Character.toUpperCase(c)] = LETTER;
+        }
+        CHAR_CLASS['_'] = LETTER;
+        for (var c : "&*+().,-];~}|{>=[<".toCharArray()) {
+            CHAR_CLASS[c] = SYMBOL;
+        }
+        CHAR_CLASS['"'] = QUOTE;
+        CHAR_CLASS['/'] = SLASH;
     }
 
     public JackTokenizer(File jackFile) {
-        var parsed = readAndConcatAllLines(jackFile);
-        var tokenMatcher = tokenPatterns.matcher(parsed);
-        tokens = new ArrayList<>();
+        this(jackFile, false);
+    }
+
+    /**
+     * In streaming mode the file is read through a fixed-size chunk buffer and tokens are
+     * lexed on demand into a small ring window, so heap use does not grow with the file.
+     * Otherwise the whole file is read and tokenized up front.
+     */
+    public JackTokenizer(File jackFile, boolean streaming) {
+        names = new NameTable();
+        count = 0;
         pointer = 0;
-        while (tokenMatcher.find()) {
-            tokens.add(tokenMatcher.group());
+        current = -1;
+        if (streaming) {
+            try {
+                channel = FileChannel.open(jackFile.toPath(), StandardOpenOption.READ);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            buffer = new byte[CHUNK_SIZE];
+            allocateTokens(WINDOW_SIZE);
+            texts = new String[WINDOW_SIZE];
+            mask = WINDOW_SIZE - 1;
+        } else {
+            tokenizeAll(readAllBytes(jackFile));
         }
+    }
+
+    /**
+     * Tokenizes source text held in memory, encoded as UTF-8 like the files are read.
+     */
+    public JackTokenizer(CharSequence source) {
+        names = new NameTable();
+        count = 0;
+        pointer = 0;
+        current = -1;
+        tokenizeAll(source.toString().getBytes(StandardCharsets.UTF_8));
+    }
 
-        currentToken = "";
-        currentTokenType = TYPE.NONE;
+    private void tokenizeAll(byte[] source) {
+        buffer = source;
+        bufferLimit = buffer.length;
+        allocateTokens(buffer.length / 4 + 16);
+        mask = -1;
+        while (scanToken()) {
+            // tokenize everything up front
+        }
+    }
 
+    private void allocateTokens(int capacity) {
+        types = new byte[capacity];
+        codes = new int[capacity];
+        starts = new int[capacity];
+        lengths = new int[capacity];
     }
 
-    private String readAndConcatAllLines(File jackFile) {
+    private static byte[] readAllBytes(File jackFile) {
         try {
-            return Files.readAllLines(jackFile.toPath()).stream()
-                    .filter(line -> !line.isEmpty())
-                    .map(JackTokenizer::removeAllComments)
-                    .map(String::trim)
-                    .collect(Collectors.joining("\n"));
+            return Files.readAllBytes(jackFile.toPath());
         } catch (IOException e) {
             e.printStackTrace();
         }
-        return "";
+        return new byte[0];
+    }
+
+    /**
+     * Scans the next token from the input, driven by {@link #CHAR_CLASS}. Whitespace, comments
+     * and string literals are handled inline, so no cleaned-up copy of the source is ever built.
+     *
+     * @return false once the input is exhausted
+     */
+    private boolean scanToken() {
+        while (true) {
+            tokenStart = scan;
+            var c = peekByte(0);
+            if (c < 0) {
+                return false;
+            }
+            switch (CHAR_CLASS[c]) {
+                case WHITESPACE -> scan++;
+                case DIGIT -> {
+                    var value = 0;
+                    do {
+                        value = value * 10 + (c - '0');
+                        if (value > MAX_INT_CONST) {
+                            throw new IllegalArgumentException("Integer constant out of range at offset " + offset(tokenStart));
+                        }
+                        scan++;
+                        c = peekByte(0);
+                    } while (c >= 0 && CHAR_CLASS[c] == DIGIT);
+                    addToken(TYPE.INT_CONST, value);
+                    return true;
+                }
+                case LETTER -> {
+                    do {
+                        scan++;
+                        c = peekByte(0);
+                    } while (c >= 0 && (CHAR_CLASS[c] == LETTER || CHAR_CLASS[c] == DIGIT));
+                    var keyword = keywordCode(buffer, tokenStart, scan - tokenStart);
+                    if (keyword < 0) {
+                        addToken(TYPE.IDENTIFIER, names.intern(buffer, tokenStart, scan - tokenStart));
+                    } else {
+                        addToken(TYPE.KEYWORD, keyword);
+                    }
+                    return true;
+                }
+                case QUOTE -> {
+                    do {
+                        scan++;
+                        c = peekByte(0);
+                        if (c < 0 || c == '\n') {
+                            throw new IllegalArgumentException("Unterminated string constant at offset " + offset(tokenStart));
+                        }
+                    } while (c != '"');
+                    scan++;
+                    addToken(TYPE.STRING_CONST, 0);
+                    return true;
+                }
+                case SLASH -> {
+                    var next = peekByte(1);
+                    if (next == '/') {
+                        skipLineComment();
+                    } else if (next == '*') {
+                        skipBlockComment();
+                    } else {
+                        scan++;
+                        addToken(TYPE.SYMBOL, '/');
+                        return true;
+                    }
+                }
+                case SYMBOL -> {
+                    scan++;
+                    addToken(TYPE.SYMBOL, c);
+                    return true;
+                }
+                default -> throw new IllegalArgumentException("Unknown character '" + (char) c + "' at offset " + offset(tokenStart));
+            }
+        }
+    }
+
+    private void skipLineComment() {
+        scan += 2;
+        int c;
+        while ((c = peekByte(0)) >= 0 && c != '\n') {
+            scan++;
+            tokenStart = scan;
+        }
+    }
+
+    private void skipBlockComment() {
+        var start = offset(tokenStart);
+        scan += 2;
+        while (true) {
+            tokenStart = scan;
+            var c = peekByte(0);
+            if (c < 0) {
+                throw new IllegalArgumentException("Unterminated comment at offset " + start);
+            }
+            if (c == '*' && peekByte(1) == '/') {
+                scan += 2;
+                return;
+            }
+            scan++;
+        }
+    }
+
+    /**
+     * @return the byte {@code ahead} positions past the scan position, or -1 at end of input
+     */
+    private int peekByte(int ahead) {
+        while (scan + ahead >= bufferLimit) {
+            if (!fill()) {
+                return -1;
+            }
+        }
+        return buffer[scan + ahead] & 0xFF;
+    }
+
+    /**
+     * Streaming mode only: drops the bytes before the token being scanned and reads the next
+     * chunk behind the rest. The buffer only grows for a single token longer than a chunk.
+     */
+    private boolean fill() {
+        if (channel == null) {
+            return false;
+        }
+        var kept = bufferLimit - tokenStart;
+        if (kept == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        System.arraycopy(buffer, tokenStart, buffer, 0, kept);
+        bufferOffset += tokenStart;
+        scan -= tokenStart;
+        tokenStart = 0;
+        bufferLimit = kept;
+        try {
+            var read = channel.read(ByteBuffer.wrap(buffer, bufferLimit, buffer.length - bufferLimit));
+            if (read < 0) {
+                close();
+                return false;
+            }
+            bufferLimit += read;
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private int offset(int bufferIndex) {
+        return bufferOffset + bufferIndex;
+    }
+
+    private void addToken(TYPE type, int code) {
+        if (mask < 0 && count == types.length) {
+            var capacity = count * 2;
+            types = Arrays.copyOf(types, capacity);
+            codes = Arrays.copyOf(codes, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+        }
+        var slot = count & mask;
+        types[slot] = (byte) type.ordinal();
+        codes[slot] = code;
+        starts[slot] = offset(tokenStart);
+        lengths[slot] = scan - tokenStart;
+        if (texts != null && type == TYPE.STRING_CONST) {
+            texts[slot] = new String(buffer, tokenStart, scan - tokenStart, StandardCharsets.UTF_8);
+        }
+        count++;
+    }
+
+    private static int keywordBucket(int first, int length) {
+        return first >= 'a' && first <= 'z' && length < 12 ? (first - 'a') * 12 + length : -1;
+    }
+
+    private static int keywordCode(byte[] src, int start, int length) {
+        var bucket = keywordBucket(src[start], length);
+        if (bucket < 0 || KEYWORD_BUCKETS[bucket] == null) {
+            return -1;
+        }
+        for (var candidate : KEYWORD_BUCKETS[bucket]) {
+            if (Arrays.equals(KEYWORD_SPELLINGS[candidate], 0, length, src, start, start + length)) {
+                return candidate;
+            }
+        }
+        return -1;
+    }
+
+    private String text(int token) {
+        var slot = token & mask;
+        return switch (TYPES[types[slot]]) {
+            case KEYWORD -> new String(KEYWORD_SPELLINGS[codes[slot]], StandardCharsets.ISO_8859_1);
+            case SYMBOL -> String.valueOf((char) codes[slot]);
+            case INT_CONST -> String.valueOf(codes[slot]);
+            case IDENTIFIER -> names.name(codes[slot]);
+            default -> texts != null
+                    ? texts[slot]
+                    : new String(buffer, starts[slot], lengths[slot], StandardCharsets.UTF_8);
+        };
+    }
+
+    /**
+     * Releases the input channel of a streaming tokenizer; a no-op otherwise.
+     */
+    public void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            channel = null;
+        }
     }
 
     public boolean hasNextToken() {
-        return pointer < tokens.size();
+        return fetch(pointer);
     }
 
-    public void next() {
-        if (hasNextToken()) {
-            currentToken = tokens.get(pointer);
-            pointer++;
-        } else {
+    /**
+     * Makes the token at {@code index} available, lexing ahead as needed.
+     *
+     * @return false if the input ends before that token
+     */
+    private boolean fetch(int index) {
+        if (mask >= 0 && index - current >= WINDOW_SIZE) {
+            throw new IllegalStateException("Lookahead beyond the token window");
+        }
+        while (count <= index) {
+            if (!scanToken()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Advances to the next token, which becomes the current token.
+     */
+    public void consume() {
+        if (!fetch(pointer)) {
             throw new IllegalStateException("No more tokens");
         }
-        currentTokenType = matchCurrentTokenType();
+        current = pointer;
+        pointer++;
     }
 
-    private TYPE matchCurrentTokenType() {
-        return TYPE_TO_REGEX.entrySet().stream()
-                .filter(entry -> currentToken.matches(entry.getValue()))
-                .findFirst()
-                .map(Map.Entry::getKey)
-                .orElseThrow(() -> new IllegalArgumentException("Unknown token:" + currentToken));
+    /**
+     * @return the type of the token {@code k} positions past the current one (0 is the next
+     * token), or {@link TYPE#NONE} past the end of the input
+     */
+    public TYPE peek(int k) {
+        var index = pointer + k;
+        return fetch(index) ? TYPES[types[index & mask]] : TYPE.NONE;
+    }
+
+    public boolean peekSymbol(int k, char symbol) {
+        return peek(k) == TYPE.SYMBOL && codes[(pointer + k) & mask] == symbol;
+    }
+
+    public boolean peekKeyWord(int k, KEYWORD keyword) {
+        return peek(k) == TYPE.KEYWORD && codes[(pointer + k) & mask] == keyword.ordinal();
+    }
+
+    public boolean peekOperation(int k) {
+        if (peek(k) != TYPE.SYMBOL) {
+            return false;
+        }
+        var symbol = codes[(pointer + k) & mask];
+        return symbol < OPERATIONS.length && OPERATIONS[symbol];
     }
 
     public String getCurrentToken() {
-        return currentToken;
+        return current < 0 ? "" : text(current);
     }
 
     public TYPE tokenType() {
-        return currentTokenType;
+        return current < 0 ? TYPE.NONE : TYPES[types[current & mask]];
     }
 
     public KEYWORD keyWord() {
-        if (currentTokenType == TYPE.KEYWORD) {
-            return KEYWORD_TO_STRING.get(currentToken);
+        if (tokenType() == TYPE.KEYWORD) {
+            return KEYWORDS[codes[current & mask]];
         } else {
             throw new IllegalStateException(" keyword token expected!");
         }
     }
     
     public char symbol() {
-        if (currentTokenType == TYPE.SYMBOL) {
-            return currentToken.charAt(0);
+        if (tokenType() == TYPE.SYMBOL) {
+            return (char) codes[current & mask];
         } else {
             throw new IllegalStateException("symbol token expected!");
         }
     }
     
     public String identifier() {
-        if (currentTokenType == TYPE.IDENTIFIER) {
-            return currentToken;
+        if (tokenType() == TYPE.IDENTIFIER) {
+            return text(current);
         } else {
-            throw new IllegalStateException("identifier is expected! current type:" + currentTokenType);
+            throw new IllegalStateException("identifier is expected! current type:" + tokenType());
         }
     }
     
+    /**
+     * @return the id the current identifier has in {@link #getNames()}
+     */
+    public int identifierId() {
+        if (tokenType() == TYPE.IDENTIFIER) {
+            return codes[current & mask];
+        } else {
+            throw new IllegalStateException("identifier is expected! current type:" + tokenType());
+        }
+    }
+
+    /**
+     * The names of the identifiers lexed so far.
+     */
+    public NameTable getNames() {
+        return names;
+    }
+
     public int intVal() {
-        if (currentTokenType == TYPE.INT_CONST) {
-            return Integer.parseInt(currentToken);
+        if (tokenType() == TYPE.INT_CONST) {
+            return codes[current & mask];
         } else {
             throw new IllegalStateException("Integer constant is expected!");
         }
@@ -181,29 +524,14 @@ public class JackTokenizer {
     
     public String stringVal() {
 
-        if (currentTokenType == TYPE.STRING_CONST) {
+        if (tokenType() == TYPE.STRING_CONST) {
 
-            return currentToken.substring(1, currentToken.length() - 1);
+            var text = text(current);
+            return text.substring(1, text.length() - 1);
 
         } else {
             throw new IllegalStateException("Current token is not a string constant!");
         }
     }
-    
-    public void previous() {
-        if (pointer > 0) {
-            pointer--;
-            currentToken = tokens.get(pointer);
-        }
-
-    }
 
-    public boolean isOperation() {
-        return OPERATIONS.contains(symbol());
-    }
-    
-    public static String removeAllComments(String strIn) {
-        return strIn.replaceAll("//.*|(\"(?:\\\\[^\"]|\\\\\"|.)*?\")|(?s)/\\*.*?\\*/", "$1");
-    }
-    
 }
@@ -0,0 +1,45 @@
+package org.qualcomm.manjoosha;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Collects the generated code in a growable byte array, for callers that never want it on disk.
+ */
+public class MemoryCodeSink implements CodeSink {
+
+    private byte[] bytes;
+    private int size;
+
+    public MemoryCodeSink() {
+        bytes = new byte[1 << 12];
+        size = 0;
+    }
+
+    @Override
+    public void write(byte[] chunk, int offset, int length) {
+        if (size + length > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + length));
+        }
+        System.arraycopy(chunk, offset, bytes, size, length);
+        size += length;
+    }
+
+    @Override
+    public void close() {
+        // nothing to release
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(bytes, size);
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, 0, size, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,112 @@
+package org.qualcomm.manjoosha;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Numbers the distinct names of one class: identifiers, type names and string literals. The
+ * tokenizer interns every identifier straight from its input bytes, so a name seen before costs
+ * a hash and a compare, and no {@code String}. Ids are dense, starting at 0, which lets the
+ * {@link SymbolTable} index arrays by them.
+ */
+public class NameTable {
+
+    private String[] names;
+    private int[] hashes;
+    private int size;
+
+    // open addressing, each slot holding id + 1, or 0 when empty
+    private int[] slots;
+
+    public NameTable() {
+        names = new String[64];
+        hashes = new int[64];
+        size = 0;
+        slots = new int[128];
+    }
+
+    /**
+     * @return the id of the Latin-1 text {@code source[start..start+length)}
+     */
+    public int intern(byte[] source, int start, int length) {
+        var hash = 0;
+        for (var i = start; i < start + length; i++) {
+            hash = 31 * hash + (source[i] & 0xff);
+        }
+        var mask = slots.length - 1;
+        for (var slot = hash & mask; ; slot = (slot + 1) & mask) {
+            var id = slots[slot] - 1;
+            if (id < 0) {
+                return add(slot, hash, new String(source, start, length, StandardCharsets.ISO_8859_1));
+            }
+            if (hashes[id] == hash && matches(names[id], source, start, length)) {
+                return id;
+            }
+        }
+    }
+
+    public int intern(String name) {
+        // the same hash as the byte version, for Latin-1 text
+        var hash = name.hashCode();
+        var mask = slots.length - 1;
+        for (var slot = hash & mask; ; slot = (slot + 1) & mask) {
+            var id = slots[slot] - 1;
+            if (id < 0) {
+                return add(slot, hash, name);
+            }
+            if (hashes[id] == hash && names[id].equals(name)) {
+                return id;
+            }
+        }
+    }
+
+    private static boolean matches(String name, byte[] source, int start, int length) {
+        if (name.length() != length) {
+            return false;
+        }
+        for (var i = 0; i < length; i++) {
+            if (name.charAt(i) != (char) (source[start + i] & 0xff)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int add(int slot, int hash, String name) {
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        names[size] = name;
+        hashes[size] = hash;
+        slots[slot] = size + 1;
+        var id = size++;
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        var mask = slots.length - 1;
+        for (var id = 0; id < size; id++) {
+            var slot = hashes[id] & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id + 1;
+        }
+    }
+
+    public String name(int id) {
+        return names[id];
+    }
+
+    /**
+     * @return one more than the largest id handed out so far
+     */
+    public int size() {
+        return size;
+    }
+}
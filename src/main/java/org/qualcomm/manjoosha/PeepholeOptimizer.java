@@ -0,0 +1,346 @@
+package org.qualcomm.manjoosha;
+
+/**
+ * Peephole stage between {@link CompilationEngine} and the writer that produces the output.
+ * Instructions are held in a small ring window in compact form (a kind, a segment or command
+ * ordinal, a number and a name). After every instruction the rule table is tried against the
+ * end of the window until no rule applies, so one rewrite can enable the next; the oldest
+ * instruction moves on downstream once the window is full.
+ * <p>
+ * Rules only ever match straight-line sequences: a label in the middle of a pattern breaks the
+ * match, so code that can be jumped into is never rewritten. Temp 0 is treated as scratch, as
+ * the engine only ever reads it back right after storing it.
+ */
+public class PeepholeOptimizer extends InstructionRecorder {
+
+    private static final int WINDOW_SIZE = 16;
+
+    private static final VMCodeGenerator.SEGMENT[] SEGMENTS = VMCodeGenerator.SEGMENT.values();
+    private static final VMCodeGenerator.COMMAND[] COMMANDS = VMCodeGenerator.COMMAND.values();
+
+    private final VMWriter downstream;
+
+    private final byte[] kinds;
+    private final byte[] operands;
+    private final int[] numbers;
+    private final String[] names;
+    private int head;
+    private int size;
+
+    private final Rule[] rules;
+
+    public PeepholeOptimizer(VMWriter downstream) {
+        this.downstream = downstream;
+        kinds = new byte[WINDOW_SIZE];
+        operands = new byte[WINDOW_SIZE];
+        numbers = new int[WINDOW_SIZE];
+        names = new String[WINDOW_SIZE];
+        head = 0;
+        size = 0;
+        rules = new Rule[]{
+                this::removePushPop,
+                this::removeScratchRoundTrip,
+                this::removeDoubleUnary,
+                this::removeArithmeticIdentity,
+                this::resolveConstantIf,
+                this::branchOnNonZero,
+                this::removeGotoNextLabel,
+                this::reuseArrayElement,
+                this::storeWithoutTemp,
+        };
+    }
+
+    @FunctionalInterface
+    private interface Rule {
+
+        /**
+         * @return true if the rule rewrote the end of the window
+         */
+        boolean apply();
+    }
+
+    @Override
+    public void close() {
+        try {
+            flush();
+        } finally {
+            downstream.close();
+        }
+    }
+
+    private void flush() {
+        while (size > 0) {
+            emitOldest();
+        }
+    }
+
+    @Override
+    protected void add(byte kind, int operand, int number, String name) {
+        if (size == WINDOW_SIZE) {
+            emitOldest();
+        }
+        append(kind, operand, number, name);
+        while (applyRules()) {
+            // each rewrite may expose another pattern at the end of the window
+        }
+    }
+
+    private boolean applyRules() {
+        for (var rule : rules) {
+            if (rule.apply()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void emitOldest() {
+        var slot = head;
+        switch (kinds[slot]) {
+            case InstructionList.PUSH -> downstream.genPush(SEGMENTS[operands[slot]], numbers[slot]);
+            case InstructionList.POP -> downstream.genPop(SEGMENTS[operands[slot]], numbers[slot]);
+            case InstructionList.ARITHMETIC -> downstream.genArithmetic(COMMANDS[operands[slot]]);
+            case InstructionList.LABEL -> downstream.genLabel(names[slot]);
+            case InstructionList.GOTO -> downstream.genGoto(names[slot]);
+            case InstructionList.IF -> downstream.genIf(names[slot]);
+            case InstructionList.CALL -> downstream.genCall(names[slot], numbers[slot]);
+            case InstructionList.FUNCTION -> downstream.genFunction(names[slot], numbers[slot]);
+            case InstructionList.RETURN -> downstream.genReturn();
+            default -> throw new IllegalStateException("Unknown instruction kind " + kinds[slot]);
+        }
+        names[slot] = null;
+        head = (head + 1) & (WINDOW_SIZE - 1);
+        size--;
+    }
+
+    /**
+     * @param k position counted back from the newest instruction, which is 0
+     */
+    private int slot(int k) {
+        return (head + size - 1 - k) & (WINDOW_SIZE - 1);
+    }
+
+    /**
+     * Appends an instruction without running the rules.
+     */
+    private void append(byte kind, int operand, int number, String name) {
+        var slot = (head + size) & (WINDOW_SIZE - 1);
+        kinds[slot] = kind;
+        operands[slot] = (byte) operand;
+        numbers[slot] = number;
+        names[slot] = name;
+        size++;
+    }
+
+    /**
+     * Drops the {@code count} newest instructions.
+     */
+    private void truncate(int count) {
+        for (var k = 0; k < count; k++) {
+            names[slot(0)] = null;
+            size--;
+        }
+    }
+
+    /**
+     * Drops the instruction at {@code k}, moving the newer ones back by one.
+     */
+    private void remove(int k) {
+        for (var i = k; i > 0; i--) {
+            var from = slot(i - 1);
+            var to = slot(i);
+            kinds[to] = kinds[from];
+            operands[to] = operands[from];
+            numbers[to] = numbers[from];
+            names[to] = names[from];
+        }
+        truncate(1);
+    }
+
+    private boolean is(int k, byte kind) {
+        return k < size && kinds[slot(k)] == kind;
+    }
+
+    private boolean isPush(int k, VMCodeGenerator.SEGMENT segment) {
+        return is(k, InstructionList.PUSH) && operands[slot(k)] == segment.ordinal();
+    }
+
+    private boolean isPop(int k, VMCodeGenerator.SEGMENT segment, int index) {
+        return is(k, InstructionList.POP) && operands[slot(k)] == segment.ordinal() && numbers[slot(k)] == index;
+    }
+
+    private boolean isArithmetic(int k, VMCodeGenerator.COMMAND command) {
+        return is(k, InstructionList.ARITHMETIC) && operands[slot(k)] == command.ordinal();
+    }
+
+    private boolean sameInstruction(int a, int b) {
+        return kinds[slot(a)] == kinds[slot(b)]
+                && operands[slot(a)] == operands[slot(b)]
+                && numbers[slot(a)] == numbers[slot(b)];
+    }
+
+    /**
+     * @return true if the instruction at k pushes a value that pointer 1 and that 0 cannot change
+     */
+    private boolean isStablePush(int k) {
+        return is(k, InstructionList.PUSH)
+                && operands[slot(k)] != VMCodeGenerator.SEGMENT.THAT.ordinal()
+                && operands[slot(k)] != VMCodeGenerator.SEGMENT.POINTER.ordinal();
+    }
+
+    /**
+     * {@code push x; pop x} leaves everything as it was.
+     */
+    private boolean removePushPop() {
+        if (is(1, InstructionList.PUSH) && is(0, InstructionList.POP) && operands[slot(0)] == operands[slot(1)] && numbers[slot(0)] == numbers[slot(1)]) {
+            truncate(2);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * {@code pop temp 0; push temp 0}: the value only took a detour through the scratch slot.
+     */
+    private boolean removeScratchRoundTrip() {
+        if (isPush(0, VMCodeGenerator.SEGMENT.TEMP) && numbers[slot(0)] == 0 && isPop(1, VMCodeGenerator.SEGMENT.TEMP, 0)) {
+            truncate(2);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * {@code not; not} and {@code neg; neg}.
+     */
+    private boolean removeDoubleUnary() {
+        if ((isArithmetic(0, VMCodeGenerator.COMMAND.NOT) && isArithmetic(1, VMCodeGenerator.COMMAND.NOT))
+                || (isArithmetic(0, VMCodeGenerator.COMMAND.NEG) && isArithmetic(1, VMCodeGenerator.COMMAND.NEG))) {
+            truncate(2);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * {@code push constant 0} followed by {@code add}, {@code sub} or {@code or}.
+     */
+    private boolean removeArithmeticIdentity() {
+        if (isPush(1, VMCodeGenerator.SEGMENT.CONST) && numbers[slot(1)] == 0
+                && (isArithmetic(0, VMCodeGenerator.COMMAND.ADD)
+                || isArithmetic(0, VMCodeGenerator.COMMAND.SUB)
+                || isArithmetic(0, VMCodeGenerator.COMMAND.OR))) {
+            truncate(2);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * An if-goto on a constant either never jumps or always does: {@code push constant 0;
+     * if-goto L} disappears, {@code push constant 0; not; if-goto L} and any other constant
+     * become {@code goto L}.
+     */
+    private boolean resolveConstantIf() {
+        if (!is(0, InstructionList.IF)) {
+            return false;
+        }
+        var label = names[slot(0)];
+        int length;
+        boolean jumps;
+        if (isPush(1, VMCodeGenerator.SEGMENT.CONST)) {
+            length = 2;
+            jumps = numbers[slot(1)] != 0;
+        } else if (isArithmetic(1, VMCodeGenerator.COMMAND.NOT) && isPush(2, VMCodeGenerator.SEGMENT.CONST)) {
+            length = 3;
+            jumps = ~numbers[slot(2)] != 0;
+        } else {
+            return false;
+        }
+        truncate(length);
+        if (jumps) {
+            append(InstructionList.GOTO, 0, 0, label);
+        }
+        return true;
+    }
+
+    /**
+     * if-goto already jumps on any non-zero value, so {@code push constant 0; eq; not; if-goto L}
+     * is just {@code if-goto L}.
+     */
+    private boolean branchOnNonZero() {
+        if (is(0, InstructionList.IF) && isArithmetic(1, VMCodeGenerator.COMMAND.NOT) && isArithmetic(2, VMCodeGenerator.COMMAND.EQ)
+                && isPush(3, VMCodeGenerator.SEGMENT.CONST) && numbers[slot(3)] == 0) {
+            remove(1);
+            remove(1);
+            remove(1);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * A goto whose target is among the labels directly after it.
+     */
+    private boolean removeGotoNextLabel() {
+        var labels = 0;
+        while (is(labels, InstructionList.LABEL)) {
+            labels++;
+        }
+        if (labels == 0 || !is(labels, InstructionList.GOTO)) {
+            return false;
+        }
+        var target = names[slot(labels)];
+        for (var k = 0; k < labels; k++) {
+            if (names[slot(k)].equals(target)) {
+                remove(labels);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reading the same array element twice in a row: the second
+     * {@code push a; push i; add; pop pointer 1} recomputes the address that pointer 1 still
+     * holds, so only its {@code push that 0} is kept.
+     */
+    private boolean reuseArrayElement() {
+        if (size < 10
+                || !isPush(0, VMCodeGenerator.SEGMENT.THAT) || numbers[slot(0)] != 0
+                || !isPop(1, VMCodeGenerator.SEGMENT.POINTER, 1)
+                || !isArithmetic(2, VMCodeGenerator.COMMAND.ADD)
+                || !isStablePush(3) || !isStablePush(4)
+                || !sameInstruction(0, 5) || !sameInstruction(1, 6) || !sameInstruction(2, 7)
+                || !sameInstruction(3, 8) || !sameInstruction(4, 9)) {
+            return false;
+        }
+        remove(1);
+        remove(1);
+        remove(1);
+        remove(1);
+        return true;
+    }
+
+    /**
+     * Storing a plain value into an array element:
+     * {@code push x; pop temp 0; pop pointer 1; push temp 0; pop that 0} becomes
+     * {@code pop pointer 1; push x; pop that 0}.
+     */
+    private boolean storeWithoutTemp() {
+        if (!isPop(0, VMCodeGenerator.SEGMENT.THAT, 0)
+                || !isPush(1, VMCodeGenerator.SEGMENT.TEMP) || numbers[slot(1)] != 0
+                || !isPop(2, VMCodeGenerator.SEGMENT.POINTER, 1)
+                || !isPop(3, VMCodeGenerator.SEGMENT.TEMP, 0)
+                || !isStablePush(4)) {
+            return false;
+        }
+        var segment = operands[slot(4)];
+        var index = numbers[slot(4)];
+        truncate(5);
+        append(InstructionList.POP, VMCodeGenerator.SEGMENT.POINTER.ordinal(), 1, null);
+        append(InstructionList.PUSH, segment, index, null);
+        append(InstructionList.POP, VMCodeGenerator.SEGMENT.THAT.ordinal(), 0, null);
+        return true;
+    }
+}
@@ -0,0 +1,85 @@
+package org.qualcomm.manjoosha;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Every class of a program, compiled into memory, for the passes that need to see all of it at
+ * once.
+ */
+public class Program {
+
+    /**
+     * Where execution can enter the program: the application's main and the OS routines the VM
+     * bootstrap and Sys.init call, for programs that compile their own OS classes.
+     */
+    public static final List<String> ENTRY_POINTS = List.of(
+            "Main.main", "Sys.init", "Memory.init", "Math.init", "Screen.init", "Output.init", "Keyboard.init");
+
+    private final List<CompiledClass> classes;
+    private final HashMap<String, CompiledFunction> functions;
+
+    public Program(List<CompiledClass> classes) {
+        this.classes = classes;
+        functions = new HashMap<>();
+        for (var compiledClass : classes) {
+            for (var function : compiledClass.getFunctions()) {
+                functions.put(function.getName(), function);
+            }
+        }
+    }
+
+    public List<CompiledClass> getClasses() {
+        return classes;
+    }
+
+    /**
+     * @return the function with the given full name, or null if the program has none
+     */
+    public CompiledFunction getFunction(String name) {
+        return functions.get(name);
+    }
+
+    public int functionCount() {
+        return functions.size();
+    }
+
+    /**
+     * Drops every function no chain of calls from {@code roots} can reach. Calls to functions
+     * outside the program, such as a prebuilt OS, are simply not followed.
+     *
+     * @return the names of the dropped functions, in source order
+     */
+    public List<String> shake(Collection<String> roots) {
+        var reached = new HashSet<String>();
+        var pending = new ArrayDeque<String>();
+        for (var root : roots) {
+            if (functions.containsKey(root) && reached.add(root)) {
+                pending.add(root);
+            }
+        }
+        while (!pending.isEmpty()) {
+            for (var callee : functions.get(pending.poll()).callees()) {
+                if (functions.containsKey(callee) && reached.add(callee)) {
+                    pending.add(callee);
+                }
+            }
+        }
+        var removed = new ArrayList<String>();
+        for (var compiledClass : classes) {
+            compiledClass.getFunctions().removeIf(function -> {
+                if (reached.contains(function.getName())) {
+                    return false;
+                }
+                removed.add(function.getName());
+                return true;
+            });
+        }
+        removed.forEach(functions::remove);
+        return removed;
+    }
+}
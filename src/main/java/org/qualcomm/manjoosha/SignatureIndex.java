@@ -0,0 +1,221 @@
+package org.qualcomm.manjoosha;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The subroutine headers of every class of a program: whether each is a constructor, function
+ * or method, and how many parameters it takes. Built before any code is generated by
+ * {@link #scan(File, boolean)}, which parses only declarations and just counts braces through
+ * subroutine bodies, so calls into other files can be resolved and checked. Always includes
+ * the Jack OS.
+ * <p>
+ * An index never changes once built, so compile workers share one without locking.
+ */
+public class SignatureIndex {
+
+    /**
+     * A constructor, function or method, and its parameter count, not counting the receiver.
+     */
+    public static final class Signature {
+
+        private final JackTokenizer.KEYWORD keyword;
+        private final int parameterCount;
+
+        Signature(JackTokenizer.KEYWORD keyword, int parameterCount) {
+            this.keyword = keyword;
+            this.parameterCount = parameterCount;
+        }
+
+        public JackTokenizer.KEYWORD getKeyword() {
+            return keyword;
+        }
+
+        public boolean isMethod() {
+            return keyword == JackTokenizer.KEYWORD.METHOD;
+        }
+
+        public int getParameterCount() {
+            return parameterCount;
+        }
+
+        @Override
+        public String toString() {
+            return keyword.name().toLowerCase() + "/" + parameterCount;
+        }
+    }
+
+    /**
+     * Just the Jack OS, for compiling without a scanned program.
+     */
+    public static final SignatureIndex OS = new SignatureIndex(Set.of(), Map.of(), false);
+
+    private static final Set<String> OS_CLASSES = Set.of("Math", "String", "Array", "Output", "Screen", "Keyboard", "Memory", "Sys");
+    private static final Map<String, Signature> OS_SUBROUTINES = osSubroutines();
+
+    private final Set<String> classes;
+    private final Map<String, Signature> subroutines;
+    private final boolean closed;
+
+    private SignatureIndex(Set<String> classes, Map<String, Signature> subroutines, boolean closed) {
+        this.classes = Set.copyOf(classes);
+        this.subroutines = Map.copyOf(subroutines);
+        this.closed = closed;
+    }
+
+    /**
+     * Scans the declarations of one source file. Only ever reads forward, so under
+     * {@link CompilerOptions#isStreaming()} it holds no more tokens than the compile does.
+     *
+     * @return an index of that class alone
+     */
+    public static SignatureIndex scan(File jackFile, boolean streaming) {
+        var tokenizer = new JackTokenizer(jackFile, streaming);
+        try {
+            return scan(tokenizer);
+        } finally {
+            tokenizer.close();
+        }
+    }
+
+    private static SignatureIndex scan(JackTokenizer tokenizer) {
+        expect(tokenizer, JackTokenizer.TYPE.KEYWORD);
+        expect(tokenizer, JackTokenizer.TYPE.IDENTIFIER);
+        var className = tokenizer.identifier();
+        var subroutines = new HashMap<String, Signature>();
+        var depth = 0;
+        while (tokenizer.hasNextToken()) {
+            tokenizer.consume();
+            if (tokenizer.tokenType() == JackTokenizer.TYPE.SYMBOL) {
+                depth += tokenizer.symbol() == '{' ? 1 : tokenizer.symbol() == '}' ? -1 : 0;
+                continue;
+            }
+            // subroutines only start directly in the class body
+            if (depth != 1 || tokenizer.tokenType() != JackTokenizer.TYPE.KEYWORD) {
+                continue;
+            }
+            var keyword = tokenizer.keyWord();
+            if (keyword != JackTokenizer.KEYWORD.CONSTRUCTOR && keyword != JackTokenizer.KEYWORD.FUNCTION
+                    && keyword != JackTokenizer.KEYWORD.METHOD) {
+                continue;
+            }
+            // the return type
+            tokenizer.consume();
+            expect(tokenizer, JackTokenizer.TYPE.IDENTIFIER);
+            var name = tokenizer.identifier();
+            tokenizer.consume();
+            var parameters = tokenizer.peekSymbol(0, ')') ? 0 : 1;
+            while (!tokenizer.peekSymbol(0, ')')) {
+                tokenizer.consume();
+                if (tokenizer.tokenType() == JackTokenizer.TYPE.SYMBOL && tokenizer.symbol() == ',') {
+                    parameters++;
+                }
+            }
+            subroutines.putIfAbsent(className + "." + name, new Signature(keyword, parameters));
+        }
+        return new SignatureIndex(Set.of(className), subroutines, false);
+    }
+
+    private static void expect(JackTokenizer tokenizer, JackTokenizer.TYPE type) {
+        tokenizer.consume();
+        if (tokenizer.tokenType() != type) {
+            throw new IllegalStateException("Expected " + type + " in a declaration, found " + tokenizer.getCurrentToken());
+        }
+    }
+
+    /**
+     * Combines the scanned classes with the OS. A class of the program replaces an OS class of
+     * the same name.
+     *
+     * @param closed whether every class the program may call is among them, making any other
+     *               class name an error
+     */
+    public static SignatureIndex merge(List<SignatureIndex> parts, boolean closed) {
+        var classes = new HashSet<String>();
+        var subroutines = new HashMap<String, Signature>();
+        for (var part : parts) {
+            classes.addAll(part.classes);
+            subroutines.putAll(part.subroutines);
+        }
+        return new SignatureIndex(classes, subroutines, closed);
+    }
+
+    /**
+     * @return the signature of {@code className.subroutine}, or null if the index does not know it
+     */
+    public Signature lookup(String className, String subroutine) {
+        var name = className + "." + subroutine;
+        if (classes.contains(className)) {
+            return subroutines.get(name);
+        }
+        return OS_SUBROUTINES.get(name);
+    }
+
+    /**
+     * @return whether the program itself declares the subroutine, rather than leaving it to the OS
+     */
+    public boolean declares(String className, String subroutine) {
+        return classes.contains(className) && subroutines.containsKey(className + "." + subroutine);
+    }
+
+    /**
+     * @return whether all subroutines of the class are known, so a missing one is an error
+     */
+    public boolean hasClass(String className) {
+        return classes.contains(className) || OS_CLASSES.contains(className);
+    }
+
+    /**
+     * Whether every class of the program was scanned, so a name that is neither a variable nor
+     * a known class is an error.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Identifies the signatures of the program's own classes, so build outputs that depend on
+     * them are only reused while they stay the same.
+     */
+    public String fingerprint() {
+        var names = new ArrayList<>(subroutines.keySet());
+        names.sort(null);
+        var text = new StringBuilder();
+        for (var name : names) {
+            text.append(name).append(' ').append(subroutines.get(name)).append('\n');
+        }
+        return BuildCache.sha256(text.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Map<String, Signature> osSubroutines() {
+        var os = new HashMap<String, Signature>();
+        define(os, "Math", JackTokenizer.KEYWORD.FUNCTION, "init 0", "abs 1", "multiply 2", "divide 2", "min 2", "max 2", "sqrt 1");
+        define(os, "String", JackTokenizer.KEYWORD.CONSTRUCTOR, "new 1");
+        define(os, "String", JackTokenizer.KEYWORD.METHOD, "dispose 0", "length 0", "charAt 1", "setCharAt 2",
+                "appendChar 1", "eraseLastChar 0", "intValue 0", "setInt 1");
+        define(os, "String", JackTokenizer.KEYWORD.FUNCTION, "backSpace 0", "doubleQuote 0", "newLine 0");
+        define(os, "Array", JackTokenizer.KEYWORD.FUNCTION, "new 1");
+        define(os, "Array", JackTokenizer.KEYWORD.METHOD, "dispose 0");
+        define(os, "Output", JackTokenizer.KEYWORD.FUNCTION, "init 0", "moveCursor 2", "printChar 1", "printString 1",
+                "printInt 1", "println 0", "backSpace 0");
+        define(os, "Screen", JackTokenizer.KEYWORD.FUNCTION, "init 0", "clearScreen 0", "setColor 1", "drawPixel 2",
+                "drawLine 4", "drawRectangle 4", "drawCircle 3");
+        define(os, "Keyboard", JackTokenizer.KEYWORD.FUNCTION, "init 0", "keyPressed 0", "readChar 0", "readLine 1", "readInt 1");
+        define(os, "Memory", JackTokenizer.KEYWORD.FUNCTION, "init 0", "peek 1", "poke 2", "alloc 1", "deAlloc 1");
+        define(os, "Sys", JackTokenizer.KEYWORD.FUNCTION, "init 0", "halt 0", "error 1", "wait 1");
+        return Map.copyOf(os);
+    }
+
+    private static void define(Map<String, Signature> os, String className, JackTokenizer.KEYWORD keyword, String... subroutines) {
+        for (var subroutine : subroutines) {
+            var parts = subroutine.split(" ");
+            os.put(className + "." + parts[0], new Signature(keyword, Integer.parseInt(parts[1])));
+        }
+    }
+}
@@ -1,78 +1,146 @@
 package org.qualcomm.manjoosha;
 
-import java.util.EnumMap;
-import java.util.HashMap;
+import java.util.Arrays;
 
+/**
+ * Symbols keyed by their id in a {@link NameTable}, held in parallel primitive arrays. The
+ * innermost symbol of each name is found with one array load, so {@link #resolve(int)} is
+ * done once per identifier and the handle it returns carries kind, index and type.
+ * <p>
+ * Scopes nest. Defining a name remembers the symbol it shadows, and leaving a scope drops its
+ * symbols newest first, putting the shadowed ones back and restoring the counters. The class
+ * is the outermost scope; {@link #startSubroutine()} replaces whatever is open inside it.
+ */
 public class SymbolTable {
 
-    private final HashMap<String, Symbol> classSymbols;
-    private final HashMap<String, Symbol> subroutineSymbols;
-    private final EnumMap<Symbol.Kind, Integer> indices;
-    
+    /**
+     * The handle of a name with no symbol.
+     */
+    public static final int NONE = -1;
+
+    private static final Symbol.Kind[] KINDS = Symbol.Kind.values();
+
+    // per symbol
+    private byte[] kinds;
+    private int[] indices;
+    private int[] types;
+    private int[] names;
+    private int[] shadowed;
+    private int size;
+
+    // per name id, the innermost symbol with that name, or NONE
+    private int[] bindings;
+
+    // per open scope, the symbol count and the counters when it was entered
+    private int[] scopeStarts;
+    private int[] scopeCounts;
+    private int depth;
+
+    private final int[] counts;
+
     public SymbolTable() {
-        classSymbols = new HashMap<>();
-        subroutineSymbols = new HashMap<>();
-
-        indices = new EnumMap<>(Symbol.Kind.class);
-        indices.put(Symbol.Kind.ARG, 0);
-        indices.put(Symbol.Kind.FIELD, 0);
-        indices.put(Symbol.Kind.STATIC, 0);
-        indices.put(Symbol.Kind.VAR, 0);
+        kinds = new byte[32];
+        indices = new int[32];
+        types = new int[32];
+        names = new int[32];
+        shadowed = new int[32];
+        size = 0;
+        bindings = new int[64];
+        Arrays.fill(bindings, NONE);
+        scopeStarts = new int[4];
+        scopeCounts = new int[4 * KINDS.length];
+        depth = 0;
+        counts = new int[KINDS.length];
     }
-    
-    public void startSubroutine() {
-        subroutineSymbols.clear();
-        indices.put(Symbol.Kind.VAR, 0);
-        indices.put(Symbol.Kind.ARG, 0);
-    }
-    
-    public void define(String name, String type, Symbol.Kind kind) {
-        if (kind == Symbol.Kind.ARG || kind == Symbol.Kind.VAR) {
-            int index = indices.get(kind);
-            var symbol = new Symbol(type, kind, index);
-            indices.put(kind, indices.get(kind) + 1);
-            subroutineSymbols.put(name, symbol);
-        } else if (kind == Symbol.Kind.STATIC || kind == Symbol.Kind.FIELD) {
-            int index = indices.get(kind);
-            var symbol = new Symbol(type, kind, index);
-            indices.put(kind, index + 1);
-            classSymbols.put(name, symbol);
+
+    public void pushScope() {
+        if (depth == scopeStarts.length) {
+            scopeStarts = Arrays.copyOf(scopeStarts, depth * 2);
+            scopeCounts = Arrays.copyOf(scopeCounts, depth * 2 * KINDS.length);
         }
-    }
-    
-    public int varCount(Symbol.Kind kind) {
-        return indices.get(kind);
-    }
-    
-    public Symbol.Kind kindOf(String name) {
-        var symbol = lookUp(name);
-        return symbol != null ? symbol.getKind() : Symbol.Kind.NONE;
+        scopeStarts[depth] = size;
+        System.arraycopy(counts, 0, scopeCounts, depth * KINDS.length, KINDS.length);
+        depth++;
     }
 
-    public String typeOf(String name) {
-        var symbol = lookUp(name);
-        if (symbol != null) return symbol.getType();
-        return "";
+    public void popScope() {
+        if (depth == 0) {
+            throw new IllegalStateException("No scope to leave");
+        }
+        depth--;
+        while (size > scopeStarts[depth]) {
+            size--;
+            bindings[names[size]] = shadowed[size];
+        }
+        System.arraycopy(scopeCounts, depth * KINDS.length, counts, 0, KINDS.length);
     }
 
-    public int indexOf(String name) {
+    /**
+     * Leaves the scopes opened since the class's and opens a fresh one, with no arguments or
+     * locals.
+     */
+    public void startSubroutine() {
+        while (depth > 0) {
+            popScope();
+        }
+        pushScope();
+        counts[Symbol.Kind.ARG.ordinal()] = 0;
+        counts[Symbol.Kind.VAR.ordinal()] = 0;
+    }
 
-        var symbol = lookUp(name);
+    /**
+     * @param name id of the name
+     * @param type id of the type's name
+     */
+    public void define(int name, int type, Symbol.Kind kind) {
+        if (kind == Symbol.Kind.NONE) {
+            return;
+        }
+        if (size == kinds.length) {
+            var capacity = size * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            indices = Arrays.copyOf(indices, capacity);
+            types = Arrays.copyOf(types, capacity);
+            names = Arrays.copyOf(names, capacity);
+            shadowed = Arrays.copyOf(shadowed, capacity);
+        }
+        if (name >= bindings.length) {
+            var length = bindings.length;
+            bindings = Arrays.copyOf(bindings, Math.max(length * 2, name + 1));
+            Arrays.fill(bindings, length, bindings.length, NONE);
+        }
+        kinds[size] = (byte) kind.ordinal();
+        indices[size] = counts[kind.ordinal()]++;
+        types[size] = type;
+        names[size] = name;
+        shadowed[size] = bindings[name];
+        bindings[name] = size++;
+    }
 
-        if (symbol != null) return symbol.getIndex();
+    public int varCount(Symbol.Kind kind) {
+        return counts[kind.ordinal()];
+    }
 
-        return -1;
+    /**
+     * @return the innermost symbol named {@code name}, or {@link #NONE}. The handle stays valid
+     * until the scope that defined it is left.
+     */
+    public int resolve(int name) {
+        return name >= 0 && name < bindings.length ? bindings[name] : NONE;
     }
 
-    private Symbol lookUp(String name) {
-        if (classSymbols.get(name) != null) {
-            return classSymbols.get(name);
-        } else if (subroutineSymbols.get(name) != null) {
-            return subroutineSymbols.get(name);
-        } else {
-            return null;
-        }
+    public Symbol.Kind kindOf(int symbol) {
+        return symbol == NONE ? Symbol.Kind.NONE : KINDS[kinds[symbol]];
+    }
 
+    public int indexOf(int symbol) {
+        return symbol == NONE ? -1 : indices[symbol];
     }
 
+    /**
+     * @return the id of the type's name, or {@link #NONE}
+     */
+    public int typeOf(int symbol) {
+        return symbol == NONE ? NONE : types[symbol];
+    }
 }
@@ -0,0 +1,204 @@
+package org.qualcomm.manjoosha;
+
+import java.util.Arrays;
+
+/**
+ * The syntax tree of a class's declarations and of one of its subroutines at a time, held in
+ * parallel arrays rather than one object per node. A node
+ * is an index with a kind, a value, a name, a type, its first child and its next sibling.
+ * Names, types and string literals are ids in the class's {@link NameTable}.
+ * <p>
+ * Nodes are appended as they are completed, children before their parent, so visiting the
+ * indices in increasing order sees every subtree bottom-up. Once a subroutine's code is written,
+ * {@link #truncate(int)} drops its nodes so the next one reuses the space.
+ * <p>
+ * What the fields hold depends on the kind:
+ * <ul>
+ * <li>{@link #DECLARATION}: value is the {@link Symbol.Kind} ordinal, name, type</li>
+ * <li>{@link #SUBROUTINE}: value is the {@link JackTokenizer.KEYWORD} ordinal of constructor,
+ * function or method, name, return type; children are the parameter and local
+ * {@link #DECLARATION}s, then the body {@link #BLOCK}</li>
+ * <li>{@link #BLOCK}: children are statements</li>
+ * <li>{@link #LET}: name of the variable; value is 1 when an array element is assigned, with
+ * the index expression as first child; the last child is the value</li>
+ * <li>{@link #IF}: condition, then {@link #BLOCK}, optionally else {@link #BLOCK}</li>
+ * <li>{@link #WHILE}: condition, body {@link #BLOCK}</li>
+ * <li>{@link #DO}: the {@link #CALL}</li>
+ * <li>{@link #RETURN}: optionally the value</li>
+ * <li>{@link #INT}: value</li>
+ * <li>{@link #STRING}: name is the literal</li>
+ * <li>{@link #KEYWORD}: value is the {@link JackTokenizer.KEYWORD} ordinal of true, false,
+ * null or this</li>
+ * <li>{@link #VARIABLE}: name</li>
+ * <li>{@link #ELEMENT}: name of the array; child is the index</li>
+ * <li>{@link #CALL}: name of the subroutine, type is what qualifies it ({@code X} in
+ * {@code X.f()}) or none; children are the arguments</li>
+ * <li>{@link #UNARY}: value is the operator; child is the operand</li>
+ * <li>{@link #BINARY}: value is the operator; children are the operands</li>
+ * </ul>
+ */
+public class SyntaxTree {
+
+    public static final byte DECLARATION = 0;
+    public static final byte SUBROUTINE = 1;
+    public static final byte BLOCK = 2;
+    public static final byte LET = 3;
+    public static final byte IF = 4;
+    public static final byte WHILE = 5;
+    public static final byte DO = 6;
+    public static final byte RETURN = 7;
+    public static final byte INT = 8;
+    public static final byte STRING = 9;
+    public static final byte KEYWORD = 10;
+    public static final byte VARIABLE = 11;
+    public static final byte ELEMENT = 12;
+    public static final byte CALL = 13;
+    public static final byte UNARY = 14;
+    public static final byte BINARY = 15;
+
+    /**
+     * No node, and no name.
+     */
+    public static final int NONE = -1;
+
+    private byte[] kinds;
+    private int[] values;
+    private int[] names;
+    private int[] types;
+    private int[] firstChildren;
+    private int[] nextSiblings;
+    private int size;
+
+    private final NameTable nameTable;
+
+    public SyntaxTree(NameTable nameTable) {
+        this.nameTable = nameTable;
+        kinds = new byte[256];
+        values = new int[256];
+        names = new int[256];
+        types = new int[256];
+        firstChildren = new int[256];
+        nextSiblings = new int[256];
+        size = 0;
+    }
+
+    /**
+     * @param name       id of the name, or {@link #NONE}
+     * @param type       id of the type, or {@link #NONE}
+     * @param firstChild the first of the node's children, already linked to the others with
+     *                   {@link #link(int, int)}, or {@link #NONE}
+     * @return the new node
+     */
+    public int add(byte kind, int value, int name, int type, int firstChild) {
+        if (size == kinds.length) {
+            var capacity = size * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            values = Arrays.copyOf(values, capacity);
+            names = Arrays.copyOf(names, capacity);
+            types = Arrays.copyOf(types, capacity);
+            firstChildren = Arrays.copyOf(firstChildren, capacity);
+            nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+        }
+        kinds[size] = kind;
+        values[size] = value;
+        names[size] = name;
+        types[size] = type;
+        firstChildren[size] = firstChild;
+        nextSiblings[size] = NONE;
+        return size++;
+    }
+
+    /**
+     * Makes {@code next} the sibling after {@code node}. Returns {@code next}, so a list can be
+     * built with {@code last = tree.link(last, node)}.
+     */
+    public int link(int node, int next) {
+        if (node != NONE) {
+            nextSiblings[node] = next;
+        }
+        return next;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Drops every node from {@code size} on. Links from the nodes that are kept into the dropped
+     * ones are left dangling, so nothing may still refer to them.
+     */
+    public void truncate(int size) {
+        this.size = size;
+    }
+
+    public byte kind(int node) {
+        return kinds[node];
+    }
+
+    public int value(int node) {
+        return values[node];
+    }
+
+    public NameTable getNameTable() {
+        return nameTable;
+    }
+
+    public int nameId(int node) {
+        return names[node];
+    }
+
+    public int typeId(int node) {
+        return types[node];
+    }
+
+    public String name(int node) {
+        return names[node] == NONE ? null : nameTable.name(names[node]);
+    }
+
+    public String type(int node) {
+        return types[node] == NONE ? null : nameTable.name(types[node]);
+    }
+
+    public int firstChild(int node) {
+        return firstChildren[node];
+    }
+
+    public int nextSibling(int node) {
+        return nextSiblings[node];
+    }
+
+    /**
+     * @return the {@code n}th child of the node, or {@link #NONE}
+     */
+    public int child(int node, int n) {
+        var child = firstChildren[node];
+        for (var i = 0; i < n && child != NONE; i++) {
+            child = nextSiblings[child];
+        }
+        return child;
+    }
+
+    public int childCount(int node) {
+        var count = 0;
+        for (var child = firstChildren[node]; child != NONE; child = nextSiblings[child]) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Turns the node into an {@link #INT} leaf. Its former children are simply no longer
+     * reachable.
+     */
+    public void setConstant(int node, int value) {
+        kinds[node] = INT;
+        values[node] = value;
+        names[node] = NONE;
+        types[node] = NONE;
+        firstChildren[node] = NONE;
+    }
+
+    public void setFirstChild(int node, int firstChild) {
+        firstChildren[node] = firstChild;
+    }
+}
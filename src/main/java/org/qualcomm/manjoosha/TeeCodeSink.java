@@ -0,0 +1,40 @@
+package org.qualcomm.manjoosha;
+
+/**
+ * Passes the generated code on to several downstream sinks, e.g. a file and an in-memory copy
+ * for the next pipeline stage.
+ */
+public class TeeCodeSink implements CodeSink {
+
+    private final CodeSink[] targets;
+
+    public TeeCodeSink(CodeSink... targets) {
+        this.targets = targets.clone();
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+        for (var target : targets) {
+            target.write(bytes, offset, length);
+        }
+    }
+
+    @Override
+    public void close() {
+        RuntimeException failure = null;
+        for (var target : targets) {
+            try {
+                target.close();
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
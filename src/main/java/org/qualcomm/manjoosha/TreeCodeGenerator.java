@@ -0,0 +1,620 @@
+package org.qualcomm.manjoosha;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+/**
+ * Walks a {@link SyntaxTree} and writes its VM code. Expressions are collected into an
+ * {@link Expression} and emitted whole, once the statement that holds them is complete.
+ * <p>
+ * Nothing recurses, so deeply nested input needs no Java stack. Expressions are walked with an
+ * explicit stack of nodes. A statement emits what comes before its nested blocks and pushes
+ * the rest as steps onto {@link #pending}, with the steps for its blocks on top.
+ */
+public class TreeCodeGenerator {
+
+    private static final JackTokenizer.KEYWORD[] KEYWORDS = JackTokenizer.KEYWORD.values();
+    private static final Symbol.Kind[] KINDS = Symbol.Kind.values();
+
+    private final VMWriter vmWriter;
+    private final SymbolTable symbolTable;
+    private final Expression expression;
+    private final SignatureIndex signatures;
+    private final ArrayDeque<Runnable> pending;
+    private int[] work;
+    private String[] callNames;
+    private int[] callCounts;
+    private int calls;
+    private SyntaxTree tree;
+    private String currentClass;
+    private String currentSubroutine;
+    private JackTokenizer.KEYWORD currentKeyword;
+    private String entryLabel;
+
+    private int labelIndex;
+
+    private final boolean structuredBranches;
+    private final boolean tailCalls;
+    private final boolean internStrings;
+    private final LinkedHashMap<String, Integer> stringPool;
+    private int stringPoolBase;
+    private boolean stringPoolUsed;
+
+    /**
+     * @param signatures what calls are resolved and checked against
+     */
+    public TreeCodeGenerator(VMWriter vmWriter, CompilerOptions options, SignatureIndex signatures) {
+        this.vmWriter = vmWriter;
+        this.signatures = signatures;
+        symbolTable = new SymbolTable();
+        expression = new Expression(options.getOptimizationLevel());
+        pending = new ArrayDeque<>();
+        work = new int[32];
+        callNames = new String[8];
+        callCounts = new int[8];
+        calls = 0;
+        labelIndex = 0;
+        structuredBranches = options.getOptimizationLevel() >= 1;
+        tailCalls = options.getOptimizationLevel() >= 1;
+        internStrings = options.isInterningStrings();
+        stringPool = new LinkedHashMap<>();
+    }
+
+    /**
+     * Starts a class, defining its statics and fields. Its subroutines then follow one at a time
+     * through {@link #generateSubroutine(int)}, and {@link #endClass()} finishes it.
+     *
+     * @param declarations the first static or field declaration, linked to the others, or
+     *                     {@link SyntaxTree#NONE}
+     */
+    public void startClass(SyntaxTree tree, int className, int declarations) {
+        this.tree = tree;
+        currentClass = tree.getNameTable().name(className);
+        for (var node = declarations; node != SyntaxTree.NONE; node = tree.nextSibling(node)) {
+            define(node);
+        }
+        // the ready flag, followed by one static per distinct literal
+        stringPoolBase = symbolTable.varCount(Symbol.Kind.STATIC);
+    }
+
+    public void endClass() {
+        if (stringPoolUsed) {
+            genStringPool();
+        }
+    }
+
+    public void close() {
+        vmWriter.close();
+    }
+
+    private void define(int declaration) {
+        symbolTable.define(tree.nameId(declaration), tree.typeId(declaration), KINDS[tree.value(declaration)]);
+    }
+
+    private String currentFunction() {
+        return !currentClass.isEmpty() && !currentSubroutine.isEmpty() ? currentClass + "." + currentSubroutine : "";
+    }
+
+    public void generateSubroutine(int subroutine) {
+        symbolTable.startSubroutine();
+        currentSubroutine = tree.name(subroutine);
+        var body = SyntaxTree.NONE;
+        for (var node = tree.firstChild(subroutine); node != SyntaxTree.NONE; node = tree.nextSibling(node)) {
+            if (tree.kind(node) == SyntaxTree.DECLARATION) {
+                define(node);
+            } else {
+                body = node;
+            }
+        }
+        genFunctionDec(KEYWORDS[tree.value(subroutine)], body);
+        genStatements(body);
+    }
+
+    private void genFunctionDec(JackTokenizer.KEYWORD keyword, int body) {
+        vmWriter.genFunction(currentFunction(), symbolTable.varCount(Symbol.Kind.VAR));
+        currentKeyword = keyword;
+        entryLabel = null;
+        if (keyword == JackTokenizer.KEYWORD.METHOD) {
+            vmWriter.genPush(VMCodeGenerator.SEGMENT.ARG, 0);
+            vmWriter.genPop(VMCodeGenerator.SEGMENT.POINTER, 0);
+        } else if (keyword == JackTokenizer.KEYWORD.CONSTRUCTOR) {
+            vmWriter.genPush(VMCodeGenerator.SEGMENT.CONST, symbolTable.varCount(Symbol.Kind.FIELD));
+            vmWriter.genCall("Memory.alloc", 1);
+            vmWriter.genPop(VMCodeGenerator.SEGMENT.POINTER, 0);
+        }
+        if (internStrings && containsString(body)) {
+            genStringPoolGuard();
+        }
+        if (tailCalls && keyword != JackTokenizer.KEYWORD.CONSTRUCTOR) {
+            // the target of self tail calls; the dead code stage drops it again if unused
+            entryLabel = newLabel();
+            vmWriter.genLabel(entryLabel);
+        }
+    }
+
+    private boolean containsString(int root) {
+        var depth = push(0, root);
+        while (depth > 0) {
+            var node = work[--depth];
+            if (tree.kind(node) == SyntaxTree.STRING) {
+                return true;
+            }
+            for (var child = tree.firstChild(node); child != SyntaxTree.NONE; child = tree.nextSibling(child)) {
+                depth = push(depth, child);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Pushes a node onto {@link #work}, which holds {@code depth} nodes.
+     *
+     * @return the new depth
+     */
+    private int push(int depth, int node) {
+        if (depth == work.length) {
+            work = Arrays.copyOf(work, depth * 2);
+        }
+        work[depth] = node;
+        return depth + 1;
+    }
+
+    private String stringPoolFunction() {
+        return currentClass + ".$strings";
+    }
+
+    /**
+     * Builds the class's string pool on the first call of a subroutine that uses it, so each
+     * literal in the body is a single {@code push static}.
+     */
+    private void genStringPoolGuard() {
+        var readyLabel = newLabel();
+        stringPoolUsed = true;
+        vmWriter.genPush(VMCodeGenerator.SEGMENT.STATIC, stringPoolBase);
+        vmWriter.genIf(readyLabel);
+        vmWriter.genCall(stringPoolFunction(), 0);
+        vmWriter.genPop(VMCodeGenerator.SEGMENT.TEMP, 0);
+        vmWriter.genLabel(readyLabel);
+    }
+
+    private int internString(String value) {
+        return stringPoolBase + 1 + stringPool.computeIfAbsent(value, literal -> stringPool.size());
+    }
+
+    /**
+     * Emits {@code $strings}, which allocates every pooled literal and then sets the ready flag.
+     * {@code $} cannot occur in a Jack identifier, so the name never clashes with a subroutine.
+     */
+    private void genStringPool() {
+        vmWriter.genFunction(stringPoolFunction(), 0);
+        for (var literal : stringPool.entrySet()) {
+            expression.clear();
+            expression.string(literal.getKey());
+            expression.emit(vmWriter);
+            vmWriter.genPop(VMCodeGenerator.SEGMENT.STATIC, stringPoolBase + 1 + literal.getValue());
+        }
+        vmWriter.genPush(VMCodeGenerator.SEGMENT.CONST, 0);
+        vmWriter.genArithmetic(VMCodeGenerator.COMMAND.NOT);
+        vmWriter.genPop(VMCodeGenerator.SEGMENT.STATIC, stringPoolBase);
+        vmWriter.genPush(VMCodeGenerator.SEGMENT.CONST, 0);
+        vmWriter.genReturn();
+    }
+
+    private void genStatements(int block) {
+        schedule(block);
+        while (!pending.isEmpty()) {
+            pending.pop().run();
+        }
+    }
+
+    /**
+     * Pushes the step that starts on the statements of the block.
+     */
+    private void schedule(int block) {
+        var first = tree.firstChild(block);
+        pending.push(() -> genStatementsFrom(first));
+    }
+
+    private void genStatementsFrom(int statement) {
+        if (statement == SyntaxTree.NONE) {
+            return;
+        }
+        var next = tree.nextSibling(statement);
+        pending.push(() -> genStatementsFrom(next));
+        switch (tree.kind(statement)) {
+            case SyntaxTree.LET -> genLet(statement);
+            case SyntaxTree.IF -> genIf(statement);
+            case SyntaxTree.WHILE -> genWhile(statement);
+            case SyntaxTree.DO -> genDo(statement);
+            case SyntaxTree.RETURN -> genReturn(statement);
+            default -> throw new IllegalStateException("Not a statement: " + tree.kind(statement));
+        }
+    }
+
+    private void genDo(int statement) {
+        expression.clear();
+        addExpression(tree.firstChild(statement));
+        emitExpression();
+        vmWriter.genPop(VMCodeGenerator.SEGMENT.TEMP, 0);
+    }
+
+    private void genLet(int statement) {
+        var symbol = symbolTable.resolve(tree.nameId(statement));
+        var value = tree.firstChild(statement);
+        var indexed = tree.value(statement) == 1;
+        if (indexed) {
+            expression.clear();
+            addVariable(symbol);
+            addExpression(value);
+            expression.binary('+');
+            emitExpression();
+            value = tree.nextSibling(value);
+        }
+
+        genTopExpression(value);
+
+        if (indexed) {
+            vmWriter.genPop(VMCodeGenerator.SEGMENT.TEMP, 0);
+            vmWriter.genPop(VMCodeGenerator.SEGMENT.POINTER, 1);
+            vmWriter.genPush(VMCodeGenerator.SEGMENT.TEMP, 0);
+            vmWriter.genPop(VMCodeGenerator.SEGMENT.THAT, 0);
+        } else {
+            vmWriter.genPop(getSeg(symbolTable.kindOf(symbol)), symbolTable.indexOf(symbol));
+        }
+    }
+
+    private VMCodeGenerator.SEGMENT getSeg(Symbol.Kind kind) {
+        return switch (kind) {
+            case FIELD -> VMCodeGenerator.SEGMENT.THIS;
+            case STATIC -> VMCodeGenerator.SEGMENT.STATIC;
+            case VAR -> VMCodeGenerator.SEGMENT.LOCAL;
+            case ARG -> VMCodeGenerator.SEGMENT.ARG;
+            default -> VMCodeGenerator.SEGMENT.NONE;
+        };
+
+    }
+
+    private void genWhile(int statement) {
+        if (structuredBranches && isBoolean(tree.firstChild(statement))) {
+            genRotatedWhile(statement);
+            return;
+        }
+        var continueLabel = newLabel();
+        var topLabel = newLabel();
+        vmWriter.genLabel(topLabel);
+
+        genBlock(statement, continueLabel, topLabel);
+    }
+
+    /**
+     * Emits the loop with its test at the bottom, entered through a jump to the test:
+     * {@code goto T; label B; body; label T; condition; if-goto B}. An iteration then costs
+     * the condition and one if-goto, with no {@code not} and no jump back to the top.
+     * <p>
+     * The loop runs while its condition is true, -1, and {@code if-goto} jumps on anything but
+     * 0, so only conditions {@link #isBoolean(int)} accepts are rotated.
+     */
+    private void genRotatedWhile(int statement) {
+        var bodyLabel = newLabel();
+        var testLabel = newLabel();
+        var condition = tree.firstChild(statement);
+        expression.clear();
+        addExpression(condition);
+        expression.optimize();
+        var test = expression.copy();
+        if (!test.isConstant() || test.constantValue() != -1) {
+            vmWriter.genGoto(testLabel);
+        }
+        vmWriter.genLabel(bodyLabel);
+        pending.push(() -> {
+            vmWriter.genLabel(testLabel);
+            test.emit(vmWriter);
+            vmWriter.genIf(bodyLabel);
+        });
+        schedule(tree.nextSibling(condition));
+    }
+
+    /**
+     * @return whether the condition can only be true or false: a comparison, true, false or 0,
+     * or the negation or conjunction of such
+     */
+    private boolean isBoolean(int condition) {
+        var depth = push(0, condition);
+        while (depth > 0) {
+            var node = work[--depth];
+            switch (tree.kind(node)) {
+                case SyntaxTree.INT -> {
+                    if (tree.value(node) != 0 && tree.value(node) != -1) {
+                        return false;
+                    }
+                }
+                case SyntaxTree.KEYWORD -> {
+                    if (KEYWORDS[tree.value(node)] == JackTokenizer.KEYWORD.THIS) {
+                        return false;
+                    }
+                }
+                case SyntaxTree.UNARY, SyntaxTree.BINARY -> {
+                    switch (tree.value(node)) {
+                        case '<', '>', '=' -> {
+                            // a comparison, whatever it compares
+                        }
+                        case '~', '&', '|' -> {
+                            for (var child = tree.firstChild(node); child != SyntaxTree.NONE; child = tree.nextSibling(child)) {
+                                depth = push(depth, child);
+                            }
+                        }
+                        default -> {
+                            return false;
+                        }
+                    }
+                }
+                default -> {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Emits the condition of an if or while, which jumps to {@code label1} when it is false,
+     * and schedules the first block, followed by a jump to {@code label2}.
+     */
+    private void genBlock(int statement, String label1, String label2) {
+        var condition = tree.firstChild(statement);
+        expression.clear();
+        addExpression(condition);
+        expression.unary('~');
+        emitExpression();
+        vmWriter.genIf(label1);
+        pending.push(() -> {
+            vmWriter.genGoto(label2);
+            vmWriter.genLabel(label1);
+        });
+        schedule(tree.nextSibling(condition));
+    }
+
+    private String newLabel() {
+        return "LABEL_" + (labelIndex++);
+    }
+
+    private void genReturn(int statement) {
+        var value = tree.firstChild(statement);
+        if (value == SyntaxTree.NONE) {
+            vmWriter.genPush(VMCodeGenerator.SEGMENT.CONST, 0);
+        } else {
+            expression.clear();
+            addExpression(value);
+            var nArgs = symbolTable.varCount(Symbol.Kind.ARG);
+            if (entryLabel != null && expression.isCallTo(currentFunction(), nArgs)) {
+                genSelfTailCall(nArgs);
+                return;
+            }
+            emitExpression();
+        }
+        vmWriter.genReturn();
+
+    }
+
+    /**
+     * {@code return f(args);} inside {@code f} itself: the new arguments replace the current
+     * ones and execution restarts at the top of the body, so the recursion runs in constant
+     * stack space. The locals are zeroed again, as a fresh call would have them.
+     */
+    private void genSelfTailCall(int nArgs) {
+        expression.removeCall();
+        emitExpression();
+        for (var i = nArgs - 1; i >= 0; i--) {
+            vmWriter.genPop(VMCodeGenerator.SEGMENT.ARG, i);
+        }
+        for (var i = 0; i < symbolTable.varCount(Symbol.Kind.VAR); i++) {
+            vmWriter.genPush(VMCodeGenerator.SEGMENT.CONST, 0);
+            vmWriter.genPop(VMCodeGenerator.SEGMENT.LOCAL, i);
+        }
+        if (currentKeyword == JackTokenizer.KEYWORD.METHOD) {
+            vmWriter.genPush(VMCodeGenerator.SEGMENT.ARG, 0);
+            vmWriter.genPop(VMCodeGenerator.SEGMENT.POINTER, 0);
+        }
+        vmWriter.genGoto(entryLabel);
+    }
+
+    private void genIf(int statement) {
+        if (structuredBranches) {
+            genBranchingIf(statement);
+            return;
+        }
+        var elseLabel = newLabel();
+        var endLabel = newLabel();
+        pending.push(() -> vmWriter.genLabel(endLabel));
+        var otherwise = tree.child(statement, 2);
+        if (otherwise != SyntaxTree.NONE) {
+            schedule(otherwise);
+        }
+        genBlock(statement, elseLabel, endLabel);
+    }
+
+    /**
+     * Jumps over the then-branch on the negated condition, which folding turns into an inverted
+     * comparison where it can, and only emits the jump to the end when there is an else-branch.
+     */
+    private void genBranchingIf(int statement) {
+        var elseLabel = newLabel();
+        var condition = tree.firstChild(statement);
+        expression.clear();
+        addExpression(condition);
+        expression.unary('~');
+        emitExpression();
+        vmWriter.genIf(elseLabel);
+        var then = tree.nextSibling(condition);
+        var otherwise = tree.nextSibling(then);
+        if (otherwise != SyntaxTree.NONE) {
+            pending.push(() -> {
+                var endLabel = newLabel();
+                vmWriter.genGoto(endLabel);
+                vmWriter.genLabel(elseLabel);
+                pending.push(() -> vmWriter.genLabel(endLabel));
+                schedule(otherwise);
+            });
+        } else {
+            pending.push(() -> vmWriter.genLabel(elseLabel));
+        }
+        schedule(then);
+    }
+
+    /**
+     * Appends the postfix form of an expression to {@link #expression}. A node with children
+     * is pushed again, complemented, under them, and finished once they are done.
+     */
+    private void addExpression(int root) {
+        var depth = push(0, root);
+        while (depth > 0) {
+            var node = work[--depth];
+            if (node < 0) {
+                finishExpression(~node);
+                continue;
+            }
+            switch (tree.kind(node)) {
+                case SyntaxTree.INT -> expression.constant(tree.value(node));
+                case SyntaxTree.STRING -> {
+                    if (internStrings) {
+                        expression.push(VMCodeGenerator.SEGMENT.STATIC, internString(tree.name(node)));
+                    } else {
+                        expression.string(tree.name(node));
+                    }
+                }
+                case SyntaxTree.KEYWORD -> {
+                    switch (KEYWORDS[tree.value(node)]) {
+                        case TRUE -> expression.constant(-1);
+                        case THIS -> expression.push(VMCodeGenerator.SEGMENT.POINTER, 0);
+                        default -> expression.constant(0);
+                    }
+                }
+                case SyntaxTree.VARIABLE, SyntaxTree.ELEMENT -> addVariable(symbolTable.resolve(tree.nameId(node)));
+                case SyntaxTree.CALL -> openCall(node);
+                case SyntaxTree.UNARY, SyntaxTree.BINARY -> {
+                    // only the operator, once the operands are done
+                }
+                default -> throw new IllegalStateException("Not an expression: " + tree.kind(node));
+            }
+            if (tree.firstChild(node) != SyntaxTree.NONE || tree.kind(node) == SyntaxTree.CALL) {
+                depth = push(depth, ~node);
+                var children = depth;
+                for (var child = tree.firstChild(node); child != SyntaxTree.NONE; child = tree.nextSibling(child)) {
+                    depth = push(depth, child);
+                }
+                // the first child goes on top
+                for (int i = children, j = depth - 1; i < j; i++, j--) {
+                    var swap = work[i];
+                    work[i] = work[j];
+                    work[j] = swap;
+                }
+            }
+        }
+    }
+
+    private void finishExpression(int node) {
+        switch (tree.kind(node)) {
+            case SyntaxTree.ELEMENT -> {
+                expression.binary('+');
+                expression.deref();
+            }
+            case SyntaxTree.CALL -> closeCall();
+            case SyntaxTree.UNARY -> expression.unary((char) tree.value(node));
+            default -> expression.binary((char) tree.value(node));
+        }
+    }
+
+    /**
+     * Resolves a call, checks it against its signature and pushes the object a method is
+     * called on, ahead of the arguments. The callee and argument count wait in
+     * {@link #callNames} and {@link #callCounts} until the arguments are done.
+     */
+    private void openCall(int node) {
+        var name = tree.name(node);
+        var arguments = tree.childCount(node);
+        String className;
+        boolean method;
+        SignatureIndex.Signature signature;
+        if (tree.typeId(node) == SyntaxTree.NONE) {
+            className = currentClass;
+            signature = signatures.lookup(className, name);
+            method = signature == null || signature.isMethod();
+            if (signature != null && method && currentKeyword == JackTokenizer.KEYWORD.FUNCTION) {
+                throw new IllegalStateException("Method " + className + "." + name + " called from function " + currentFunction());
+            }
+            if (method) {
+                expression.push(VMCodeGenerator.SEGMENT.POINTER, 0);
+            }
+        } else {
+            var symbol = symbolTable.resolve(tree.typeId(node));
+            className = typeName(symbol);
+            switch (className) {
+                case "int", "boolean", "char", "void" -> throw new IllegalStateException(
+                        "Expected token missing : no built-in type Current token:" + name);
+                case "" -> {
+                    // a function or constructor, called on nothing
+                    className = tree.type(node);
+                    method = false;
+                    if (!signatures.hasClass(className) && signatures.isClosed()) {
+                        throw new IllegalStateException("Unknown class or variable : " + className);
+                    }
+                }
+                default -> {
+                    method = true;
+                    addVariable(symbol);
+                }
+            }
+            signature = signatures.lookup(className, name);
+            if (signature != null && signature.isMethod() != method) {
+                throw new IllegalStateException(className + "." + name + " is a "
+                        + signature.getKeyword().name().toLowerCase() + ", called as a " + (method ? "method" : "function"));
+            }
+        }
+        if (signature == null && signatures.hasClass(className)) {
+            throw new IllegalStateException("Unknown subroutine : " + className + "." + name);
+        }
+        if (signature != null && signature.getParameterCount() != arguments) {
+            throw new IllegalStateException("Wrong number of arguments : " + className + "." + name + " takes "
+                    + signature.getParameterCount() + ", got " + arguments);
+        }
+        if (calls == callNames.length) {
+            callNames = Arrays.copyOf(callNames, calls * 2);
+            callCounts = Arrays.copyOf(callCounts, calls * 2);
+        }
+        callNames[calls] = className + "." + name;
+        callCounts[calls++] = arguments + (method ? 1 : 0);
+    }
+
+    private void addVariable(int symbol) {
+        expression.push(getSeg(symbolTable.kindOf(symbol)), symbolTable.indexOf(symbol));
+    }
+
+    /**
+     * @return the name of the symbol's type, or "" if there is no such symbol
+     */
+    private String typeName(int symbol) {
+        var type = symbolTable.typeOf(symbol);
+        return type == SymbolTable.NONE ? "" : tree.getNameTable().name(type);
+    }
+
+    private void closeCall() {
+        calls--;
+        expression.call(callNames[calls], callCounts[calls]);
+        callNames[calls] = null;
+    }
+
+    /**
+     * Emits a complete expression from a fresh {@link #expression}.
+     */
+    private void genTopExpression(int node) {
+        expression.clear();
+        addExpression(node);
+        emitExpression();
+    }
+
+    private void emitExpression() {
+        expression.optimize();
+        expression.emit(vmWriter);
+    }
+}
@@ -0,0 +1,139 @@
+package org.qualcomm.manjoosha;
+
+/**
+ * Rewrites a {@link SyntaxTree} before any code is generated. Both passes sweep the node
+ * indices in increasing order, which visits every subtree bottom-up, so nothing recurses:
+ * <ul>
+ * <li>unary and binary operations on constants become {@link SyntaxTree#INT} nodes;</li>
+ * <li>statements that can never run are unlinked: an if or while whose condition is
+ * constant keeps only the branch it takes, and nothing in a block after a return is kept.</li>
+ * </ul>
+ */
+public class TreeOptimizer {
+
+    private static final JackTokenizer.KEYWORD[] KEYWORDS = JackTokenizer.KEYWORD.values();
+    private static final int TRUE = -1;
+
+    private final Expression scratch;
+
+    /**
+     * @param optimizationLevel see {@link CompilerOptions#getOptimizationLevel()}
+     */
+    public TreeOptimizer(int optimizationLevel) {
+        scratch = new Expression(optimizationLevel);
+    }
+
+    /**
+     * Rewrites the nodes from {@code first} on, which hold whole subtrees.
+     */
+    public void optimize(SyntaxTree tree, int first) {
+        for (var node = first; node < tree.size(); node++) {
+            var kind = tree.kind(node);
+            if (kind == SyntaxTree.UNARY || kind == SyntaxTree.BINARY) {
+                fold(tree, node);
+            }
+        }
+        for (var node = first; node < tree.size(); node++) {
+            if (tree.kind(node) == SyntaxTree.BLOCK) {
+                prune(tree, node);
+            }
+        }
+    }
+
+    private void fold(SyntaxTree tree, int node) {
+        scratch.clear();
+        for (var child = tree.firstChild(node); child != SyntaxTree.NONE; child = tree.nextSibling(child)) {
+            if (!isConstant(tree, child)) {
+                return;
+            }
+            scratch.constant(constantValue(tree, child));
+        }
+        if (tree.kind(node) == SyntaxTree.UNARY) {
+            scratch.unary((char) tree.value(node));
+        } else {
+            scratch.binary((char) tree.value(node));
+        }
+        scratch.optimize();
+        if (scratch.isConstant()) {
+            tree.setConstant(node, scratch.constantValue());
+        }
+    }
+
+    /**
+     * Unlinks the statements of a block that never run, and splices in the statements of every
+     * branch that always does.
+     */
+    private static void prune(SyntaxTree tree, int block) {
+        var previous = SyntaxTree.NONE;
+        var statement = tree.firstChild(block);
+        while (statement != SyntaxTree.NONE) {
+            var next = tree.nextSibling(statement);
+            var taken = taken(tree, statement);
+            if (taken == statement) {
+                if (tree.kind(statement) == SyntaxTree.RETURN) {
+                    tree.link(statement, SyntaxTree.NONE);
+                    return;
+                }
+                previous = statement;
+                statement = next;
+                continue;
+            }
+            var first = taken == SyntaxTree.NONE ? SyntaxTree.NONE : tree.firstChild(taken);
+            if (first != SyntaxTree.NONE) {
+                var last = first;
+                while (tree.nextSibling(last) != SyntaxTree.NONE) {
+                    last = tree.nextSibling(last);
+                }
+                tree.link(last, next);
+                next = first;
+            }
+            if (previous == SyntaxTree.NONE) {
+                tree.setFirstChild(block, next);
+            } else {
+                tree.link(previous, next);
+            }
+            statement = next;
+        }
+    }
+
+    /**
+     * @return the statement itself, the {@link SyntaxTree#BLOCK} to run in its place, or
+     * {@link SyntaxTree#NONE} if it does nothing
+     */
+    private static int taken(SyntaxTree tree, int statement) {
+        var kind = tree.kind(statement);
+        if (kind != SyntaxTree.IF && kind != SyntaxTree.WHILE) {
+            return statement;
+        }
+        var condition = tree.firstChild(statement);
+        if (!isConstant(tree, condition)) {
+            return statement;
+        }
+        var value = constantValue(tree, condition);
+        if (kind == SyntaxTree.WHILE) {
+            return value == 0 ? SyntaxTree.NONE : statement;
+        }
+        // the branch jumps to the else part on the negated condition, so only true takes the then part
+        var then = tree.nextSibling(condition);
+        return value == TRUE ? then : tree.nextSibling(then);
+    }
+
+    private static boolean isConstant(SyntaxTree tree, int node) {
+        if (tree.kind(node) == SyntaxTree.INT) {
+            return true;
+        }
+        if (tree.kind(node) != SyntaxTree.KEYWORD) {
+            return false;
+        }
+        var keyword = KEYWORDS[tree.value(node)];
+        return keyword == JackTokenizer.KEYWORD.TRUE || keyword == JackTokenizer.KEYWORD.FALSE
+                || keyword == JackTokenizer.KEYWORD.NULL;
+    }
+
+    private static int constantValue(SyntaxTree tree, int node) {
+        if (tree.kind(node) == SyntaxTree.INT) {
+            return tree.value(node);
+        }
+        return KEYWORDS[tree.value(node)] == JackTokenizer.KEYWORD.TRUE ? TRUE : 0;
+    }
+}
@@ -1,15 +1,35 @@
 package org.qualcomm.manjoosha;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.EnumMap;
 
-public class VMCodeGenerator {
+/**
+ * Writes VM commands as canonical lines ({@code push local 0}, {@code add}, {@code label L})
+ * straight into a reusable byte buffer that is flushed into a {@link CodeSink}. Segment and command
+ * names are encoded once up front and integers are formatted in place, so emitting an
+ * instruction allocates nothing.
+ */
+public class VMCodeGenerator implements VMWriter {
 
     private static final EnumMap<SEGMENT, String> SEGMENT_TO_STRING = new EnumMap<>(SEGMENT.class);
     private static final EnumMap<COMMAND, String> COMMAND_TO_STRING = new EnumMap<>(COMMAND.class);
 
+    private static final byte[][] SEGMENT_BYTES = new byte[SEGMENT.values().length][];
+    private static final byte[][] COMMAND_BYTES = new byte[COMMAND.values().length][];
+
+    private static final byte[] PUSH = bytes("push ");
+    private static final byte[] POP = bytes("pop ");
+    private static final byte[] LABEL = bytes("label ");
+    private static final byte[] GOTO = bytes("goto ");
+    private static final byte[] IF_GOTO = bytes("if-goto ");
+    private static final byte[] CALL = bytes("call ");
+    private static final byte[] FUNCTION = bytes("function ");
+    private static final byte[] RETURN = bytes("return");
+
+    private static final int BUFFER_SIZE = 1 << 13;
+    private static final int MAX_INT_LENGTH = 11;
+
     static {
         SEGMENT_TO_STRING.put(SEGMENT.CONST, "constant");
         SEGMENT_TO_STRING.put(SEGMENT.ARG, "argument");
@@ -29,68 +49,167 @@ public class VMCodeGenerator {
         COMMAND_TO_STRING.put(COMMAND.AND, "and");
         COMMAND_TO_STRING.put(COMMAND.OR, "or");
         COMMAND_TO_STRING.put(COMMAND.NOT, "not");
+
+        SEGMENT_TO_STRING.forEach((segment, name) -> SEGMENT_BYTES[segment.ordinal()] = bytes(name + " "));
+        COMMAND_TO_STRING.forEach((command, name) -> COMMAND_BYTES[command.ordinal()] = bytes(name));
     }
 
-    private PrintWriter printWriter;
-    
+    private final CodeSink sink;
+    private final byte[] buffer;
+    private int position;
+
     public VMCodeGenerator(File fOut) {
-        try {
-            printWriter = new PrintWriter(fOut);
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        }
+        this(new FileCodeSink(fOut));
+    }
 
+    public VMCodeGenerator(CodeSink sink) {
+        this.sink = sink;
+        buffer = new byte[BUFFER_SIZE];
+        position = 0;
     }
 
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    @Override
     public void genPush(SEGMENT segment, int index) {
-        genCommand("push", SEGMENT_TO_STRING.get(segment), String.valueOf(index));
+        genMemoryAccess(PUSH, segment, index);
     }
 
 
+    @Override
     public void genPop(SEGMENT segment, int index) {
-        genCommand("pop", SEGMENT_TO_STRING.get(segment), String.valueOf(index));
+        genMemoryAccess(POP, segment, index);
+    }
+
+    private void genMemoryAccess(byte[] command, SEGMENT segment, int index) {
+        var segmentBytes = SEGMENT_BYTES[segment.ordinal()];
+        if (segmentBytes == null) {
+            throw new IllegalArgumentException("No VM segment for an undefined variable");
+        }
+        reserve(command.length + segmentBytes.length + MAX_INT_LENGTH + 1);
+        put(command);
+        put(segmentBytes);
+        putInt(index);
+        buffer[position++] = '\n';
     }
 
+    @Override
     public void genArithmetic(COMMAND command) {
-        genCommand(COMMAND_TO_STRING.get(command), "", "");
+        var commandBytes = COMMAND_BYTES[command.ordinal()];
+        reserve(commandBytes.length + 1);
+        put(commandBytes);
+        buffer[position++] = '\n';
     }
 
+    @Override
     public void genLabel(String label) {
-        genCommand("label", label, "");
+        genNamed(LABEL, label);
     }
 
+    @Override
     public void genGoto(String label) {
-        genCommand("goto", label, "");
+        genNamed(GOTO, label);
     }
 
+    @Override
     public void genIf(String label) {
-        genCommand("if-goto", label, "");
+        genNamed(IF_GOTO, label);
     }
 
+    private void genNamed(byte[] command, String name) {
+        reserve(command.length + name.length() + 1);
+        put(command);
+        putAscii(name);
+        buffer[position++] = '\n';
+    }
+
+    @Override
     public void genCall(String name, int nArgs) {
-        genCommand("call", name, String.valueOf(nArgs));
+        genNamed(CALL, name, nArgs);
     }
 
+    @Override
     public void genFunction(String name, int nLocals) {
-        genCommand("function", name, String.valueOf(nLocals));
+        genNamed(FUNCTION, name, nLocals);
+    }
+
+    private void genNamed(byte[] command, String name, int number) {
+        reserve(command.length + name.length() + MAX_INT_LENGTH + 2);
+        put(command);
+        putAscii(name);
+        buffer[position++] = ' ';
+        putInt(number);
+        buffer[position++] = '\n';
     }
 
+    @Override
     public void genReturn() {
-        genCommand("return", "", "");
+        reserve(RETURN.length + 1);
+        put(RETURN);
+        buffer[position++] = '\n';
     }
 
-    public void genCommand(String cmd, String arg1, String arg2) {
+    private void reserve(int length) {
+        if (position + length > buffer.length) {
+            flush();
+            if (length > buffer.length) {
+                throw new IllegalArgumentException("VM command too long");
+            }
+        }
+    }
 
-        printWriter.print(cmd + " " + arg1 + " " + arg2 + "\n");
+    private void put(byte[] bytes) {
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
 
+    private void putAscii(String text) {
+        for (var i = 0; i < text.length(); i++) {
+            buffer[position++] = (byte) text.charAt(i);
+        }
     }
 
+    private void putInt(int value) {
+        if (value < 0) {
+            buffer[position++] = '-';
+            value = -value;
+        }
+        var end = position + digits(value);
+        for (var i = end - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        position = end;
+    }
+
+    private static int digits(int value) {
+        var digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    private void flush() {
+        if (position > 0) {
+            sink.write(buffer, 0, position);
+        }
+        position = 0;
+    }
+
+    @Override
     public void close() {
-        printWriter.close();
+        try {
+            flush();
+        } finally {
+            sink.close();
+        }
     }
 
     public enum SEGMENT {CONST, ARG, LOCAL, STATIC, THIS, THAT, POINTER, TEMP, NONE}
 
     public enum COMMAND {ADD, SUB, NEG, EQ, GT, LT, AND, OR, NOT}
 }
-
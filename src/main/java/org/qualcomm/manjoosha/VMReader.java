@@ -0,0 +1,96 @@
+package org.qualcomm.manjoosha;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Reads a .vm file back into the instruction stream, so code that only exists as VM text, such
+ * as the stock OS, can be written by any {@link VMWriter}.
+ */
+public class VMReader {
+
+    private VMReader() {
+    }
+
+    public static void read(File vmFile, VMWriter writer) {
+        try (var reader = Files.newBufferedReader(vmFile.toPath(), StandardCharsets.UTF_8)) {
+            var lineNumber = 0;
+            for (var line = reader.readLine(); line != null; line = reader.readLine()) {
+                lineNumber++;
+                var comment = line.indexOf("//");
+                var text = (comment >= 0 ? line.substring(0, comment) : line).trim();
+                if (text.isEmpty()) {
+                    continue;
+                }
+                try {
+                    command(text.split("\\s+"), writer);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalStateException(vmFile.getName() + ":" + lineNumber + ": " + e.getMessage(), e);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void command(String[] parts, VMWriter writer) {
+        switch (parts[0]) {
+            case "push" -> writer.genPush(segment(parts), number(parts, 2));
+            case "pop" -> writer.genPop(segment(parts), number(parts, 2));
+            case "label" -> writer.genLabel(operand(parts, 1));
+            case "goto" -> writer.genGoto(operand(parts, 1));
+            case "if-goto" -> writer.genIf(operand(parts, 1));
+            case "call" -> writer.genCall(operand(parts, 1), number(parts, 2));
+            case "function" -> writer.genFunction(operand(parts, 1), number(parts, 2));
+            case "return" -> writer.genReturn();
+            default -> writer.genArithmetic(command(parts[0]));
+        }
+    }
+
+    private static VMCodeGenerator.SEGMENT segment(String[] parts) {
+        return switch (operand(parts, 1)) {
+            case "constant" -> VMCodeGenerator.SEGMENT.CONST;
+            case "argument" -> VMCodeGenerator.SEGMENT.ARG;
+            case "local" -> VMCodeGenerator.SEGMENT.LOCAL;
+            case "static" -> VMCodeGenerator.SEGMENT.STATIC;
+            case "this" -> VMCodeGenerator.SEGMENT.THIS;
+            case "that" -> VMCodeGenerator.SEGMENT.THAT;
+            case "pointer" -> VMCodeGenerator.SEGMENT.POINTER;
+            case "temp" -> VMCodeGenerator.SEGMENT.TEMP;
+            default -> throw new IllegalArgumentException("Unknown segment " + parts[1]);
+        };
+    }
+
+    private static VMCodeGenerator.COMMAND command(String name) {
+        return switch (name) {
+            case "add" -> VMCodeGenerator.COMMAND.ADD;
+            case "sub" -> VMCodeGenerator.COMMAND.SUB;
+            case "neg" -> VMCodeGenerator.COMMAND.NEG;
+            case "eq" -> VMCodeGenerator.COMMAND.EQ;
+            case "gt" -> VMCodeGenerator.COMMAND.GT;
+            case "lt" -> VMCodeGenerator.COMMAND.LT;
+            case "and" -> VMCodeGenerator.COMMAND.AND;
+            case "or" -> VMCodeGenerator.COMMAND.OR;
+            case "not" -> VMCodeGenerator.COMMAND.NOT;
+            default -> throw new IllegalArgumentException("Unknown command " + name);
+        };
+    }
+
+    private static String operand(String[] parts, int index) {
+        if (index >= parts.length) {
+            throw new IllegalArgumentException("Missing operand of " + parts[0]);
+        }
+        return parts[index];
+    }
+
+    private static int number(String[] parts, int index) {
+        try {
+            return Integer.parseInt(operand(parts, index));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number: " + parts[index]);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package org.qualcomm.manjoosha;
+
+/**
+ * The instruction stream {@link CompilationEngine} produces. {@link VMCodeGenerator} writes it
+ * out as VM text and {@link HackAssemblyWriter} as Hack assembly; other implementations rewrite
+ * it on the way there.
+ */
+public interface VMWriter {
+
+    void genPush(VMCodeGenerator.SEGMENT segment, int index);
+
+    void genPop(VMCodeGenerator.SEGMENT segment, int index);
+
+    void genArithmetic(VMCodeGenerator.COMMAND command);
+
+    void genLabel(String label);
+
+    void genGoto(String label);
+
+    void genIf(String label);
+
+    void genCall(String name, int nArgs);
+
+    void genFunction(String name, int nLocals);
+
+    void genReturn();
+
+    void close();
+}
@@ -0,0 +1,128 @@
+package org.qualcomm.manjoosha;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.qualcomm.manjoosha.TestPrograms.SHOW;
+import static org.qualcomm.manjoosha.TestPrograms.assertAllPrint;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ArrayAccessTest {
+
+    private static final String RELOAD = "add\npop pointer 1\n";
+
+    @TempDir
+    File dir;
+
+    @Test
+    void addressesThatMayChangeAreRecomputed() throws IOException {
+        assertAllPrint(dir, "15 21 22 90 100 11 50 90 ", ""
+                + "class Main {\n"
+                + SHOW
+                + "    function void poke(Array a, int i) {\n"
+                + "        let a[i] = a[i] + 10;\n"
+                + "        return;\n"
+                + "    }\n"
+                + "    function void main() {\n"
+                + "        var Array a, b;\n"
+                + "        var int i, k, s;\n"
+                + "        let a = Array.new(5);\n"
+                + "        let b = Array.new(5);\n"
+                + "        while (i < 5) { let a[i] = i + 1; let b[i] = 10 * (i + 1); let i = i + 1; }\n"
+                + "        let k = 2;\n"
+                + "        let i = 0;\n"
+                + "        while (i < 5) { let s = s + a[k]; let i = i + 1; }\n"
+                + "        do Main.show(s);\n"
+                // the index changes part way through
+                + "        let i = 0;\n"
+                + "        let s = 0;\n"
+                + "        while (i < 5) { if (i = 2) { let k = 4; } let s = s + a[k]; let i = i + 1; }\n"
+                + "        do Main.show(s);\n"
+                // the array itself changes
+                + "        let i = 0;\n"
+                + "        let s = 0;\n"
+                + "        let k = 1;\n"
+                + "        while (i < 2) { let s = s + a[k]; let a = b; let i = i + 1; }\n"
+                + "        do Main.show(s);\n"
+                // a call writes the element between two reads of its address
+                + "        let s = a[3];\n"
+                + "        do Main.poke(a, 3);\n"
+                + "        do Main.show(s + a[3]);\n"
+                + "        do Main.show(a[0] * a[0]);\n"
+                + "        let a[0] = a[0] + 1;\n"
+                + "        do Main.show(a[0]);\n"
+                // the index is read through that
+                + "        let b[1] = 4;\n"
+                + "        do Main.show(b[b[1]]);\n"
+                // invariant in the inner loop only
+                + "        let i = 0;\n"
+                + "        let s = 0;\n"
+                + "        while (i < 3) {\n"
+                + "            let k = 0;\n"
+                + "            while (k < 2) { let s = s + b[i]; let k = k + 1; }\n"
+                + "            let i = i + 1;\n"
+                + "        }\n"
+                + "        do Main.show(s);\n"
+                + "        return;\n"
+                + "    }\n"
+                + "}\n");
+    }
+
+    @Test
+    void invariantAddressesAreComputedOnce() throws IOException {
+        var programDir = TestPrograms.program(dir, "hoisted", ""
+                + "class Main {\n"
+                + "    function int sumAt(Array a, int k, int n) {\n"
+                + "        var int i, s;\n"
+                + "        while (i < n) { let s = s + a[k]; let i = i + 1; }\n"
+                + "        return s;\n"
+                + "    }\n"
+                + "    function int sumMoving(Array a, int k, int n) {\n"
+                + "        var int i, s;\n"
+                + "        while (i < n) { let s = s + a[k]; let k = k + 1; let i = i + 1; }\n"
+                + "        return s;\n"
+                + "    }\n"
+                + "    function int square(Array a, int i) {\n"
+                + "        return a[i] * a[i];\n"
+                + "    }\n"
+                + "    function void bump(Array a, int j) {\n"
+                + "        let a[j] = a[j] + 1;\n"
+                + "        return;\n"
+                + "    }\n"
+                + "}\n");
+        assertEquals("", TestPrograms.compile(programDir, List.of("-O1")));
+        var code = Files.readString(new File(programDir, "Main.vm").toPath());
+
+        var sumAt = function(code, "Main.sumAt");
+        // one extra local holds a + k, and the loop only pushes it
+        assertTrue(sumAt.startsWith("function Main.sumAt 3\n"), sumAt);
+        assertTrue(sumAt.contains("add\npop local 2\ngoto"), sumAt);
+        assertEquals(0, count(sumAt, RELOAD), sumAt);
+        var sumMoving = function(code, "Main.sumMoving");
+        assertTrue(sumMoving.startsWith("function Main.sumMoving 2\n"), sumMoving);
+        assertEquals(1, count(sumMoving.substring(sumMoving.indexOf("label")), RELOAD), sumMoving);
+        for (var name : List.of("Main.square", "Main.bump")) {
+            var function = function(code, name);
+            assertEquals(1, count(function, "pop pointer 1"), function);
+        }
+    }
+
+    private static String function(String code, String name) {
+        var start = code.indexOf("function " + name + " ");
+        var end = code.indexOf("function ", start + 1);
+        return code.substring(start, end < 0 ? code.length() : end);
+    }
+
+    private static int count(String text, String part) {
+        var count = 0;
+        for (var i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,103 @@
+package org.qualcomm.manjoosha;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.qualcomm.manjoosha.TestPrograms.SHOW;
+import static org.qualcomm.manjoosha.TestPrograms.assertAllPrint;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The --asm backend: comparisons decided without overflow, and linking against the .vm files
+ * of the OS.
+ */
+class AssemblyBackendTest {
+
+    private static final String HELLO = ""
+            + "class Main {\n"
+            + "    function void main() {\n"
+            + "        do Output.printInt(42);\n"
+            + "        return;\n"
+            + "    }\n"
+            + "}\n";
+
+    @TempDir
+    File dir;
+
+    @Test
+    void signedComparisonsNearTheLimits() throws IOException {
+        assertAllPrint(dir, "-1 0 0 -1 1 -1 0 0 0 -1 0 -1 0 -1 -1 -1 -1 ", ""
+                + "class Main {\n"
+                + SHOW
+                + "    function void main() {\n"
+                + "        var int a, b, c;\n"
+                + "        let a = -30000;\n"
+                + "        let b = 10000;\n"
+                + "        do Main.show(a < b);\n"
+                + "        do Main.show(a > b);\n"
+                + "        do Main.show(b < a);\n"
+                + "        do Main.show(b > a);\n"
+                + "        if (a < b) { do Main.show(1); }\n"
+                + "        if (~(a < b)) { do Main.show(2); }\n"
+                + "        let a = 32767;\n"
+                + "        let b = -32767;\n"
+                + "        do Main.show(a > b);\n"
+                + "        do Main.show(b > a);\n"
+                + "        do Main.show(a < b);\n"
+                + "        do Main.show(a = b);\n"
+                + "        let c = -1;\n"
+                + "        do Main.show(c < 0);\n"
+                + "        do Main.show(c > 0);\n"
+                + "        do Main.show(a > c);\n"
+                + "        let a = -5;\n"
+                + "        let b = -5;\n"
+                + "        do Main.show(a < b);\n"
+                + "        do Main.show(a = b);\n"
+                + "        do Main.show(~(a > b));\n"
+                + "        let a = 32767;\n"
+                + "        let b = 1;\n"
+                + "        do Main.show((a + b) < 0);\n"
+                + "        do Main.show(-32767 < 32767);\n"
+                + "        return;\n"
+                + "    }\n"
+                + "}\n");
+    }
+
+    @Test
+    void callsToUndefinedFunctionsFailTheBuild() throws IOException {
+        var programDir = new File(dir, "bare");
+        programDir.mkdirs();
+        Files.writeString(new File(programDir, "Main.jack").toPath(), HELLO);
+        for (var flags : List.of(List.of("--asm"), List.of("-O1", "--whole-program", "--asm"))) {
+            var errors = TestPrograms.compile(programDir, flags);
+            assertTrue(errors.contains("Undefined functions Output.printInt"), errors);
+            assertFalse(JackCompiler.assemblyFileFor(programDir).exists(), "nothing is written with " + flags);
+        }
+    }
+
+    @Test
+    void linksTheOsAndStartsAtSysInit() throws IOException {
+        var programDir = TestPrograms.program(dir, "os", HELLO);
+        Files.writeString(new File(programDir, "Sys.vm").toPath(), ""
+                + "function Sys.init 0\n"
+                + "push constant 7\n"
+                + "call Output.printInt 1\n"
+                + "pop temp 0\n"
+                + "call Main.main 0\n"
+                + "pop temp 0\n"
+                + "call Sys.halt 0\n"
+                + "function Sys.halt 0\n"
+                + "push constant 0\n"
+                + "return\n");
+        // a stale translation of Main is replaced by the source, not linked next to it
+        Files.writeString(new File(programDir, "Main.vm").toPath(), "function Main.main 0\n");
+        assertEquals("", TestPrograms.compile(programDir, List.of("--asm")));
+        assertEquals("742", TestPrograms.run(programDir, List.of("--asm")));
+    }
+}
@@ -0,0 +1,97 @@
+package org.qualcomm.manjoosha;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BuildCacheTest {
+
+    private static final CompileResult.Status CREATED = CompileResult.Status.CREATED;
+    private static final CompileResult.Status UNCHANGED = CompileResult.Status.UNCHANGED;
+    private static final CompileResult.Status UP_TO_DATE = CompileResult.Status.UP_TO_DATE;
+
+    private static final String MAIN = ""
+            + "class Main {\n"
+            + "    function void main() {\n"
+            + "        do Output.printInt(Helper.twice(21));\n"
+            + "        return;\n"
+            + "    }\n"
+            + "}\n";
+
+    private static final String HELPER = ""
+            + "class Helper {\n"
+            + "    function int twice(int x) {\n"
+            + "        return x + x;\n"
+            + "    }\n"
+            + "}\n";
+
+    @TempDir
+    File dir;
+
+    @Test
+    void onlyWhatChangedIsRecompiled() throws IOException {
+        write("Main.jack", MAIN);
+        write("Helper.jack", HELPER);
+        assertEquals(Map.of("Helper", CREATED, "Main", CREATED), build());
+        assertEquals(Map.of("Helper", UP_TO_DATE, "Main", UP_TO_DATE), build());
+        // the hash decides, so a comment recompiles the file but leaves its output alone
+        write("Main.jack", "// the entry point\n" + MAIN);
+        assertEquals(Map.of("Helper", UP_TO_DATE, "Main", UNCHANGED), build());
+        write("Helper.jack", HELPER.replace("x + x", "x * 2"));
+        assertEquals(Map.of("Helper", CREATED, "Main", UP_TO_DATE), build());
+        assertEquals(Map.of("Helper", UP_TO_DATE, "Main", UP_TO_DATE), build());
+    }
+
+    @Test
+    void changedOrMissingOutputIsRewritten() throws IOException {
+        write("Main.jack", MAIN);
+        write("Helper.jack", HELPER);
+        build();
+        var mainVm = new File(dir, "Main.vm");
+        var code = Files.readString(mainVm.toPath());
+        write("Main.vm", "// edited by hand\n" + code);
+        new File(dir, "Helper.vm").delete();
+        assertEquals(Map.of("Helper", CREATED, "Main", CREATED), build());
+        assertEquals(code, Files.readString(mainVm.toPath()));
+    }
+
+    @Test
+    void signatureAndOptionChangesRecompileEverything() throws IOException {
+        write("Main.jack", MAIN);
+        write("Helper.jack", HELPER);
+        build();
+        // Main's code depends on Helper's signatures, even though Main.jack is untouched
+        write("Helper.jack", HELPER.replace("}\n}", "}\n    function int half(int x) {\n        return x / 2;\n    }\n}"));
+        assertEquals(Map.of("Helper", CREATED, "Main", UNCHANGED), build());
+        // -O1 happens to write the same code here, but nothing may be taken from the -O0 build
+        assertEquals(Map.of("Helper", UNCHANGED, "Main", UNCHANGED), build("-O1"));
+        assertEquals(Map.of("Helper", UP_TO_DATE, "Main", UP_TO_DATE), build("-O1"));
+    }
+
+    private Map<String, CompileResult.Status> build(String... flags) {
+        var args = new ArrayList<>(List.of(flags));
+        args.add("--incremental");
+        args.add(dir.getPath());
+        var statuses = new TreeMap<String, CompileResult.Status>();
+        var err = new ByteArrayOutputStream();
+        JackCompiler.compile(JackCompiler.readJackFilesInDir(dir), CompilerOptions.parse(args.toArray(new String[0])),
+                result -> statuses.put(result.getSource().getName().replace(".jack", ""), result.getStatus()),
+                new PrintStream(err));
+        assertEquals("", err.toString());
+        return statuses;
+    }
+
+    private void write(String name, String text) throws IOException {
+        Files.writeString(new File(dir, name).toPath(), text);
+    }
+}
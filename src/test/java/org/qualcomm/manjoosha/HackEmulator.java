@@ -0,0 +1,225 @@
+package org.qualcomm.manjoosha;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assembles a .asm file and runs it on the Hack CPU. Like the real assembler, it makes every
+ * symbol that is never defined a variable. Reaching the label of a function the
+ * {@link OperatingSystemStub} implements calls the stub instead and returns to the caller as
+ * the function would have. The program stops when it reaches the bootstrap's {@code $HALT}
+ * loop or calls Sys.halt.
+ */
+final class HackEmulator {
+
+    private static final int SP = 0;
+    private static final int LCL = 1;
+    private static final int ARG = 2;
+    private static final int THIS = 3;
+    private static final int THAT = 4;
+    private static final int FIRST_VARIABLE = 16;
+    private static final int LAST_VARIABLE = 255;
+    private static final int HEAP_BASE = 20000;
+    private static final int STACK_LIMIT = 16000;
+    private static final int STEP_LIMIT = 100_000_000;
+    private static final String HALT = "$HALT";
+
+    private static final String[] JUMPS = {"", "JGT", "JEQ", "JGE", "JLT", "JNE", "JLE", "JMP"};
+
+    // a C-instruction is stored as ~(comp index << 6 | dest << 3 | jump), an A-instruction as its value
+    private final List<Integer> program;
+    private final List<String> comps;
+    private final Map<String, Integer> symbols;
+    private final Map<Integer, String> traps;
+
+    private HackEmulator() {
+        program = new ArrayList<>();
+        comps = new ArrayList<>();
+        symbols = new HashMap<>();
+        traps = new HashMap<>();
+        for (var name : new String[]{"SP", "LCL", "ARG", "THIS", "THAT"}) {
+            symbols.put(name, symbols.size());
+        }
+        for (var i = 0; i < 16; i++) {
+            symbols.put("R" + i, i);
+        }
+        symbols.put("SCREEN", 16384);
+        symbols.put("KBD", 24576);
+    }
+
+    /**
+     * @return everything the program printed
+     */
+    static String run(File asmFile) throws IOException {
+        var emulator = new HackEmulator();
+        emulator.assemble(Files.readAllLines(asmFile.toPath()));
+        return emulator.execute();
+    }
+
+    private void assemble(List<String> lines) {
+        var instructions = new ArrayList<String>();
+        for (var line : lines) {
+            var comment = line.indexOf("//");
+            var text = (comment >= 0 ? line.substring(0, comment) : line).replace(" ", "").trim();
+            if (text.isEmpty()) {
+                continue;
+            }
+            if (text.startsWith("(")) {
+                var label = text.substring(1, text.length() - 1);
+                if (symbols.put(label, instructions.size()) != null) {
+                    throw new IllegalStateException("Duplicate label " + label);
+                }
+                if (OperatingSystemStub.implementsFunction(label)) {
+                    traps.put(instructions.size(), label);
+                }
+            } else {
+                instructions.add(text);
+            }
+        }
+        var nextVariable = FIRST_VARIABLE;
+        for (var text : instructions) {
+            if (text.startsWith("@")) {
+                var symbol = text.substring(1);
+                if (Character.isDigit(symbol.charAt(0))) {
+                    program.add(Integer.parseInt(symbol));
+                    continue;
+                }
+                var value = symbols.get(symbol);
+                if (value == null) {
+                    if (nextVariable > LAST_VARIABLE) {
+                        throw new IllegalStateException("Too many variables");
+                    }
+                    value = nextVariable++;
+                    symbols.put(symbol, value);
+                }
+                program.add(value);
+            } else {
+                var dest = "";
+                var comp = text;
+                var jump = "";
+                var equals = comp.indexOf('=');
+                if (equals >= 0) {
+                    dest = comp.substring(0, equals);
+                    comp = comp.substring(equals + 1);
+                }
+                var semicolon = comp.indexOf(';');
+                if (semicolon >= 0) {
+                    jump = comp.substring(semicolon + 1);
+                    comp = comp.substring(0, semicolon);
+                }
+                var jumpIndex = List.of(JUMPS).indexOf(jump);
+                if (jumpIndex < 0) {
+                    throw new IllegalStateException("Unknown jump in " + text);
+                }
+                var destBits = (dest.contains("A") ? 4 : 0) | (dest.contains("D") ? 2 : 0) | (dest.contains("M") ? 1 : 0);
+                var compIndex = comps.indexOf(comp);
+                if (compIndex < 0) {
+                    compIndex = comps.size();
+                    comps.add(comp);
+                }
+                program.add(~(compIndex << 6 | destBits << 3 | jumpIndex));
+            }
+        }
+    }
+
+    private String execute() {
+        var ram = new int[32768];
+        var os = new OperatingSystemStub(ram, HEAP_BASE);
+        var halt = symbols.getOrDefault(HALT, -1);
+        var a = 0;
+        var d = 0;
+        var pc = 0;
+        for (var steps = 0; pc != halt && !os.isHalted(); steps++) {
+            if (steps > STEP_LIMIT) {
+                throw new IllegalStateException("Step limit exceeded");
+            }
+            var name = traps.get(pc);
+            if (name != null) {
+                // the frame is already pushed, so the arguments run from ARG to the saved return address
+                var args = new int[ram[LCL] - 5 - ram[ARG]];
+                System.arraycopy(ram, ram[ARG], args, 0, args.length);
+                var value = os.call(name, args);
+                var frame = ram[LCL];
+                pc = ram[frame - 5];
+                ram[ram[ARG]] = (short) value;
+                ram[SP] = ram[ARG] + 1;
+                ram[THAT] = ram[frame - 1];
+                ram[THIS] = ram[frame - 2];
+                ram[ARG] = ram[frame - 3];
+                ram[LCL] = ram[frame - 4];
+                continue;
+            }
+            if (pc < 0 || pc >= program.size()) {
+                throw new IllegalStateException("Jump out of the program to " + pc);
+            }
+            int instruction = program.get(pc);
+            if (instruction >= 0) {
+                a = instruction;
+                pc++;
+                continue;
+            }
+            instruction = ~instruction;
+            var comp = comps.get(instruction >> 6);
+            var value = (short) compute(comp, a, d, comp.contains("M") ? ram[a & 0x7fff] : 0);
+            var dest = instruction >> 3 & 7;
+            if ((dest & 1) != 0) {
+                ram[a & 0x7fff] = value;
+            }
+            if ((dest & 4) != 0) {
+                a = value;
+            }
+            if ((dest & 2) != 0) {
+                d = value;
+            }
+            var jump = instruction & 7;
+            if ((jump & 4) != 0 && value < 0 || (jump & 2) != 0 && value == 0 || (jump & 1) != 0 && value > 0) {
+                pc = a & 0x7fff;
+            } else {
+                pc++;
+            }
+            if (ram[SP] > STACK_LIMIT) {
+                throw new IllegalStateException("Stack overflow");
+            }
+        }
+        return os.getOutput();
+    }
+
+    private static int compute(String comp, int a, int d, int m) {
+        if (comp.length() == 3) {
+            var x = operand(comp.charAt(0), a, d, m);
+            var y = operand(comp.charAt(2), a, d, m);
+            return switch (comp.charAt(1)) {
+                case '+' -> x + y;
+                case '-' -> x - y;
+                case '&' -> x & y;
+                case '|' -> x | y;
+                default -> throw new IllegalStateException("Unknown computation " + comp);
+            };
+        }
+        return switch (comp) {
+            case "0" -> 0;
+            case "1" -> 1;
+            case "-1" -> -1;
+            default -> switch (comp.charAt(0)) {
+                case '!' -> ~operand(comp.charAt(1), a, d, m);
+                case '-' -> -operand(comp.charAt(1), a, d, m);
+                default -> operand(comp.charAt(0), a, d, m);
+            };
+        };
+    }
+
+    private static int operand(char register, int a, int d, int m) {
+        return switch (register) {
+            case 'A' -> a;
+            case 'D' -> d;
+            case 'M' -> m;
+            case '1' -> 1;
+            default -> throw new IllegalStateException("Unknown register " + register);
+        };
+    }
+}
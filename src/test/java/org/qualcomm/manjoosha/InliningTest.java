@@ -0,0 +1,122 @@
+package org.qualcomm.manjoosha;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.qualcomm.manjoosha.TestPrograms.SHOW;
+import static org.qualcomm.manjoosha.TestPrograms.assertAllPrint;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class InliningTest {
+
+    private static final String POINT = ""
+            + "class Point {\n"
+            + "    field int x, y;\n"
+            + "    static int made;\n"
+            + "    constructor Point new(int ax, int ay) {\n"
+            + "        let x = ax;\n"
+            + "        let y = ay;\n"
+            + "        let made = made + 1;\n"
+            + "        return this;\n"
+            + "    }\n"
+            + "    method int getX() { return x; }\n"
+            + "    method int getY() { return y; }\n"
+            + "    method void setX(int v) { let x = v; return; }\n"
+            + "    function int count() { return made; }\n"
+            + "    method int dot(Point o) { return (x * o.getX()) + (y * o.getY()); }\n"
+            + "}\n";
+
+    // getters called while the caller walks an array through that, a getter of another object
+    // inside a method, and a callee reading an array while its caller does too
+    private static final String MAIN = ""
+            + "class Main {\n"
+            + SHOW
+            + "    function int first(Array a) { return a[0]; }\n"
+            + "    function void main() {\n"
+            + "        var Array ps;\n"
+            + "        var Point p, q;\n"
+            + "        var int i, s;\n"
+            + "        let ps = Array.new(3);\n"
+            + "        while (i < 3) { let ps[i] = Point.new(i, i + 10); let i = i + 1; }\n"
+            + "        let i = 0;\n"
+            + "        while (i < 3) { let p = ps[i]; let s = s + p.getX() + p.getY(); let i = i + 1; }\n"
+            + "        do Main.show(s);\n"
+            + "        let p = ps[1];\n"
+            + "        do p.setX(5);\n"
+            + "        let q = ps[2];\n"
+            + "        do Main.show(p.dot(q));\n"
+            + "        do Main.show(Main.first(ps) = ps[0]);\n"
+            + "        do Main.show(Point.count());\n"
+            + "        return;\n"
+            + "    }\n"
+            + "}\n";
+
+    @TempDir
+    File dir;
+
+    @Test
+    void gettersAndSettersAcrossClasses() throws IOException {
+        assertAllPrint(dir, "36 142 -1 3 ", MAIN, POINT);
+    }
+
+    @Test
+    void onlyLeavesWithinTheBudgetAreInlined() throws IOException {
+        var programDir = TestPrograms.program(dir, "inlined", MAIN, POINT);
+        var report = compile(programDir, "-O1", "--whole-program");
+        assertFalse(report.contains("Inlined 0 calls"), report);
+        var main = Files.readString(new File(programDir, "Main.vm").toPath());
+        for (var inlined : new String[]{"Point.getX", "Point.getY", "Point.setX", "Main.first"}) {
+            assertFalse(main.contains("call " + inlined + " "), inlined);
+        }
+        // it reads a static of Point, which Main's file cannot reach
+        assertTrue(main.contains("call Point.count 0"), main);
+        assertFalse(Files.readString(new File(programDir, "Point.vm").toPath()).contains("call Point.getX"));
+
+        report = compile(programDir, "-O1", "--whole-program", "--inline-limit", "1");
+        assertTrue(report.contains("Inlined 0 calls"), report);
+        assertTrue(Files.readString(new File(programDir, "Main.vm").toPath()).contains("call Point.getX 1"));
+    }
+
+    @Test
+    void inlinedLocalsReadOnSomePaths() throws IOException {
+        assertAllPrint(dir, "1 0 1 6 3 ", ""
+                + "class Main {\n"
+                + SHOW
+                + "    function int flag(int x) {\n"
+                + "        var int r;\n"
+                + "        if (x > 0) { let r = 1; }\n"
+                + "        return r;\n"
+                + "    }\n"
+                + "    function int sum(int n) {\n"
+                + "        var int i, s;\n"
+                + "        while (i < n) { let s = s + i; let i = i + 1; }\n"
+                + "        return s;\n"
+                + "    }\n"
+                + "    function void main() {\n"
+                + "        do Main.show(Main.flag(5));\n"
+                + "        do Main.show(Main.flag(-3));\n"
+                + "        do Main.show(Main.flag(-3) + Main.flag(7) + Main.flag(0));\n"
+                + "        do Main.show(Main.sum(4));\n"
+                + "        do Main.show(Main.sum(3));\n"
+                + "        return;\n"
+                + "    }\n"
+                + "}\n");
+    }
+
+    private static String compile(File programDir, String... flags) {
+        var args = new String[flags.length + 1];
+        System.arraycopy(flags, 0, args, 0, flags.length);
+        args[flags.length] = programDir.getPath();
+        var out = new ByteArrayOutputStream();
+        var err = new ByteArrayOutputStream();
+        assertEquals(0, JackCompiler.run(CompilerOptions.parse(args), new PrintStream(out), new PrintStream(err)), err.toString());
+        return out.toString();
+    }
+}
@@ -0,0 +1,90 @@
+package org.qualcomm.manjoosha;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class JackTokenizerTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    void keywordsNeedTheWholeWord() {
+        assertEquals(List.of("KEYWORD class", "IDENTIFIER classy", "IDENTIFIER do1", "KEYWORD do",
+                        "IDENTIFIER _let", "IDENTIFIER Class", "IDENTIFIER thisx", "KEYWORD this"),
+                tokens("class classy do1 do _let Class thisx this"));
+    }
+
+    @Test
+    void integerConstantsUpToTheLimit() {
+        assertEquals(List.of("INT_CONST 0", "INT_CONST 7", "INT_CONST 32767", "SYMBOL ;"),
+                tokens("0 007 32767;"));
+        assertThrows(IllegalArgumentException.class, () -> tokens("32768"));
+    }
+
+    @Test
+    void commentsAndSlashes() {
+        assertEquals(List.of("IDENTIFIER a", "SYMBOL /", "IDENTIFIER b", "SYMBOL /", "IDENTIFIER c",
+                        "STRING_CONST // not /* a comment */", "INT_CONST 1"),
+                tokens("a/b // line\n/* block\n * more */ /** doc */ / c\"// not /* a comment */\"1/**/"));
+    }
+
+    @Test
+    void malformedInput() {
+        assertThrows(IllegalArgumentException.class, () -> tokens("\"no end"));
+        assertThrows(IllegalArgumentException.class, () -> tokens("\"split\nline\""));
+        assertThrows(IllegalArgumentException.class, () -> tokens("a /* no end"));
+        assertThrows(IllegalArgumentException.class, () -> tokens("a # b"));
+    }
+
+    @Test
+    void stringConstantsAreUtf8() throws IOException {
+        var source = "let s = \"h\u00e9llo \u20ac\";";
+        var expected = List.of("KEYWORD let", "IDENTIFIER s", "SYMBOL =", "STRING_CONST h\u00e9llo \u20ac", "SYMBOL ;");
+        assertEquals(expected, tokens(source));
+        var jackFile = new File(dir, "Main.jack");
+        Files.writeString(jackFile.toPath(), source);
+        assertEquals(expected, tokens(new JackTokenizer(jackFile, false)));
+        assertEquals(expected, tokens(new JackTokenizer(jackFile, true)));
+    }
+
+    @Test
+    void streamingGivesTheSameTokens() throws IOException {
+        // long enough to cross several chunk boundaries, with literals and comments among them
+        var source = new StringBuilder();
+        for (var i = 0; i < 20000; i++) {
+            source.append("let x").append(i).append(" = \"\u00e9").append(i).append("\" /* ").append(i).append(" */ + ")
+                    .append(i % 32768).append("; // x\n");
+        }
+        var jackFile = new File(dir, "Big.jack");
+        Files.writeString(jackFile.toPath(), source);
+        assertEquals(tokens(source), tokens(new JackTokenizer(jackFile, true)));
+    }
+
+    private static List<String> tokens(CharSequence source) {
+        return tokens(new JackTokenizer(source));
+    }
+
+    private static List<String> tokens(JackTokenizer tokenizer) {
+        var tokens = new ArrayList<String>();
+        while (tokenizer.hasNextToken()) {
+            tokenizer.consume();
+            var type = tokenizer.tokenType();
+            tokens.add(type + " " + switch (type) {
+                case STRING_CONST -> tokenizer.stringVal();
+                case INT_CONST -> String.valueOf(tokenizer.intVal());
+                default -> tokenizer.getCurrentToken();
+            });
+        }
+        tokenizer.close();
+        return tokens;
+    }
+}
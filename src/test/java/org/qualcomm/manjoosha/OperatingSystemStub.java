@@ -0,0 +1,136 @@
+package org.qualcomm.manjoosha;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Just enough of the Jack OS for test programs, working on the RAM of the machine that calls
+ * it: a bump allocator, strings laid out as capacity, length and characters, and output
+ * collected as text.
+ * <p>
+ * Programs link against placeholder .vm files written by {@link #writeVmFiles(File)}, and the
+ * machines running them call {@link #call(String, int[])} instead of entering those functions.
+ */
+final class OperatingSystemStub {
+
+    private static final int HEAP_BASE = 2048;
+
+    private static final List<String> FUNCTIONS = List.of(
+            "Math.multiply", "Math.divide", "Math.abs", "Math.min", "Math.max",
+            "Memory.alloc", "Memory.deAlloc", "Array.new", "Array.dispose",
+            "String.new", "String.dispose", "String.appendChar", "String.length", "String.charAt",
+            "Output.printInt", "Output.printChar", "Output.printString", "Output.println",
+            "Sys.halt", "Sys.error");
+
+    private final int[] ram;
+    private final StringBuilder output;
+    private int heap;
+    private boolean halted;
+
+    OperatingSystemStub(int[] ram, int heapBase) {
+        this.ram = ram;
+        output = new StringBuilder();
+        heap = heapBase;
+        halted = false;
+    }
+
+    OperatingSystemStub(int[] ram) {
+        this(ram, HEAP_BASE);
+    }
+
+    static boolean implementsFunction(String name) {
+        return FUNCTIONS.contains(name);
+    }
+
+    /**
+     * Writes one .vm file per OS class, defining each function as just {@code return 0}.
+     */
+    static void writeVmFiles(File dir) throws IOException {
+        Map<String, List<String>> classes = FUNCTIONS.stream()
+                .collect(Collectors.groupingBy(name -> name.substring(0, name.indexOf('.'))));
+        for (var entry : classes.entrySet()) {
+            var code = new StringBuilder();
+            for (var name : entry.getValue()) {
+                code.append("function ").append(name).append(" 0\npush constant 0\nreturn\n");
+            }
+            Files.writeString(new File(dir, entry.getKey() + ".vm").toPath(), code);
+        }
+    }
+
+    String getOutput() {
+        return output.toString();
+    }
+
+    boolean isHalted() {
+        return halted;
+    }
+
+    /**
+     * @return the value the function returns, 0 for void ones
+     */
+    int call(String name, int[] args) {
+        return switch (name) {
+            case "Math.multiply" -> (short) (args[0] * args[1]);
+            case "Math.divide" -> {
+                if (args[1] == 0) {
+                    throw new IllegalStateException("Division by zero");
+                }
+                yield (short) (args[0] / args[1]);
+            }
+            case "Math.abs" -> (short) Math.abs(args[0]);
+            case "Math.min" -> Math.min(args[0], args[1]);
+            case "Math.max" -> Math.max(args[0], args[1]);
+            case "Memory.alloc", "Array.new" -> alloc(args[0]);
+            case "Memory.deAlloc", "Array.dispose", "String.dispose" -> 0;
+            case "String.new" -> {
+                var string = alloc(args[0] + 2);
+                ram[string] = args[0];
+                ram[string + 1] = 0;
+                yield string;
+            }
+            case "String.appendChar" -> {
+                var string = args[0];
+                var length = ram[string + 1];
+                if (length >= ram[string]) {
+                    throw new IllegalStateException("String is full");
+                }
+                ram[string + 2 + length] = args[1];
+                ram[string + 1] = length + 1;
+                yield string;
+            }
+            case "String.length" -> ram[args[0] + 1];
+            case "String.charAt" -> ram[args[0] + 2 + args[1]];
+            case "Output.printInt" -> print(Integer.toString(args[0]));
+            case "Output.printChar" -> print(Character.toString((char) args[0]));
+            case "Output.printString" -> {
+                var string = args[0];
+                for (var i = 0; i < ram[string + 1]; i++) {
+                    output.append((char) ram[string + 2 + i]);
+                }
+                yield 0;
+            }
+            case "Output.println" -> print("\n");
+            case "Sys.halt" -> {
+                halted = true;
+                yield 0;
+            }
+            case "Sys.error" -> throw new IllegalStateException("Sys.error " + args[0]);
+            default -> throw new IllegalStateException("Unknown function " + name);
+        };
+    }
+
+    private int alloc(int size) {
+        var block = heap;
+        heap += Math.max(size, 1);
+        return block;
+    }
+
+    private int print(String text) {
+        output.append(text);
+        return 0;
+    }
+}
@@ -0,0 +1,97 @@
+package org.qualcomm.manjoosha;
+
+import static org.qualcomm.manjoosha.TestPrograms.SHOW;
+import static org.qualcomm.manjoosha.TestPrograms.assertAllPrint;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Runs small programs under every {@link TestPrograms#CONFIGURATIONS configuration} and checks
+ * that each prints what the unoptimized VM code prints.
+ */
+class OptimizerDifferentialTest {
+
+    @TempDir
+    File dir;
+
+    // conditions are tested as "not; if-goto", so only -1 counts as true and while (1) never runs
+    @Test
+    void nonBooleanConditions() throws IOException {
+        assertAllPrint(dir, "0 3 0 0 3 0 ", ""
+                + "class Main {\n"
+                + SHOW
+                + "    function int spin() {\n"
+                + "        var int i;\n"
+                + "        while (1) {\n"
+                + "            let i = i + 1;\n"
+                + "            if (i > 3) {\n"
+                + "                return i;\n"
+                + "            }\n"
+                + "        }\n"
+                + "        return 0;\n"
+                + "    }\n"
+                + "    function void main() {\n"
+                + "        var int n, k;\n"
+                + "        let n = 6;\n"
+                + "        while (n & 4) { let n = n - 1; let k = k + 1; }\n"
+                + "        do Main.show(k);\n"
+                + "        let n = 3;\n"
+                + "        while (n) { let n = n - 1; }\n"
+                + "        do Main.show(n);\n"
+                + "        if (n | 2) { do Main.show(1); } else { do Main.show(0); }\n"
+                + "        if (~(n | 2)) { do Main.show(1); } else { do Main.show(0); }\n"
+                + "        while ((n < 5) & ~(n = 3)) { let n = n + 1; }\n"
+                + "        do Main.show(n);\n"
+                + "        do Main.show(Main.spin());\n"
+                + "        return;\n"
+                + "    }\n"
+                + "}\n");
+    }
+
+    @Test
+    void comparisonsAgainstCallsWithConstantArguments() throws IOException {
+        assertAllPrint(dir, "2 4 5 -1 -1 ", ""
+                + "class Main {\n"
+                + SHOW
+                + "    function int f(int a) {\n"
+                + "        if (a = 5) { return 100; }\n"
+                + "        return 0;\n"
+                + "    }\n"
+                + "    function void main() {\n"
+                + "        var int y;\n"
+                + "        let y = 50;\n"
+                + "        if (Main.f(5) < y) { do Main.show(1); }\n"
+                + "        if (~(Main.f(5) < y)) { do Main.show(2); }\n"
+                + "        if (~(3 < y)) { do Main.show(3); }\n"
+                + "        if (~(Main.f(6) > 70)) { do Main.show(4); }\n"
+                + "        if (y < Main.f(5)) { do Main.show(5); }\n"
+                + "        do Main.show(Main.f(5) > Main.f(4));\n"
+                + "        do Main.show(~(2 = Main.f(2)));\n"
+                + "        return;\n"
+                + "    }\n"
+                + "}\n");
+    }
+
+    @Test
+    void multiplicationByZeroKeepsSideEffects() throws IOException {
+        assertAllPrint(dir, "7 7 0 0 ", ""
+                + "class Main {\n"
+                + SHOW
+                + "    function int f() {\n"
+                + "        do Main.show(7);\n"
+                + "        return 5;\n"
+                + "    }\n"
+                + "    function void main() {\n"
+                + "        var int x, y;\n"
+                + "        let x = Main.f() * 0;\n"
+                + "        let y = 0 * Main.f();\n"
+                + "        do Main.show(x);\n"
+                + "        do Main.show(y);\n"
+                + "        return;\n"
+                + "    }\n"
+                + "}\n");
+    }
+}
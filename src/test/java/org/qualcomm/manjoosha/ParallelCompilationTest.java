@@ -0,0 +1,83 @@
+package org.qualcomm.manjoosha;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ParallelCompilationTest {
+
+    private static final int CLASSES = 12;
+    private static final int BROKEN = 5;
+
+    @TempDir
+    File dir;
+
+    @Test
+    void resultsComeInInputOrder() throws IOException {
+        var jackFiles = program(new File(dir, "parallel"));
+        var sequential = program(new File(dir, "sequential"));
+        // backwards, so input order is neither listing order nor the order the workers finish in
+        var backwards = new ArrayList<File>();
+        for (var i = jackFiles.size() - 1; i >= 0; i--) {
+            backwards.add(jackFiles.get(i));
+        }
+        for (var flags : List.of(List.of("--jobs", "4"), List.of("--jobs", "4", "--virtual-threads"))) {
+            var results = compile(backwards, flags);
+            var sources = new ArrayList<File>();
+            for (var result : results) {
+                sources.add(result.getSource());
+                assertEquals(result.getSource() != jackFiles.get(BROKEN), result.isSuccess(), result.toString());
+            }
+            assertEquals(backwards, sources, "with flags " + flags);
+        }
+        compile(sequential, List.of("--jobs", "1"));
+        for (var i = 0; i < CLASSES; i++) {
+            var name = "C" + (char) ('a' + i) + ".vm";
+            if (i == BROKEN) {
+                assertFalse(new File(jackFiles.get(i).getParentFile(), name).exists(), "no partial output");
+            } else {
+                assertEquals(Files.readString(new File(sequential.get(i).getParentFile(), name).toPath()),
+                        Files.readString(new File(jackFiles.get(i).getParentFile(), name).toPath()));
+            }
+        }
+    }
+
+    private static List<CompileResult> compile(List<File> jackFiles, List<String> flags) {
+        var args = new ArrayList<>(flags);
+        args.add(jackFiles.get(0).getParent());
+        var results = new ArrayList<CompileResult>();
+        var failures = JackCompiler.compile(jackFiles, CompilerOptions.parse(args.toArray(new String[0])),
+                results::add, new PrintStream(new ByteArrayOutputStream()));
+        assertEquals(1, failures);
+        return results;
+    }
+
+    // the first class is by far the largest, so it finishes last; one class in the middle does not compile
+    private static List<File> program(File programDir) throws IOException {
+        programDir.mkdirs();
+        var jackFiles = new ArrayList<File>();
+        for (var i = 0; i < CLASSES; i++) {
+            var name = "C" + (char) ('a' + i);
+            var source = new StringBuilder("class ").append(name).append(" {\n");
+            for (var f = 0; f < (i == 0 ? 2000 : 3); f++) {
+                source.append("    function int f").append(f).append("(int x) {\n")
+                        .append("        return (x * ").append(f).append(") + ").append(i).append(";\n")
+                        .append("    }\n");
+            }
+            source.append(i == BROKEN ? "    function void broken() { let; }\n" : "").append("}\n");
+            var jackFile = new File(programDir, name + ".jack");
+            Files.writeString(jackFile.toPath(), source);
+            jackFiles.add(jackFile);
+        }
+        return jackFiles;
+    }
+}
@@ -0,0 +1,108 @@
+package org.qualcomm.manjoosha;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Each rule on its own, with a near miss it must leave alone.
+ */
+class PeepholeOptimizerTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    void pushThenPopOfTheSameSlot() throws IOException {
+        assertRewrites("", "push local 0", "pop local 0");
+        assertUnchanged("push local 0", "pop local 1");
+        assertUnchanged("push static 0", "pop local 0");
+    }
+
+    @Test
+    void scratchRoundTrip() throws IOException {
+        assertRewrites("push argument 0\npop local 1\n", "push argument 0", "pop temp 0", "push temp 0", "pop local 1");
+        assertUnchanged("pop temp 1", "push temp 1");
+    }
+
+    @Test
+    void doubleUnary() throws IOException {
+        assertRewrites("push local 0\npop local 1\n", "push local 0", "not", "not", "neg", "neg", "pop local 1");
+        assertUnchanged("push local 0", "not", "neg", "pop local 1");
+    }
+
+    @Test
+    void arithmeticIdentity() throws IOException {
+        assertRewrites("push local 0\npop local 1\n",
+                "push local 0", "push constant 0", "add", "push constant 0", "sub", "push constant 0", "or", "pop local 1");
+        // 0 - x and x & 0 are not x
+        assertUnchanged("push constant 0", "push local 0", "sub", "pop local 1");
+        assertUnchanged("push local 0", "push constant 0", "and", "pop local 1");
+    }
+
+    @Test
+    void constantIf() throws IOException {
+        assertRewrites("label L\ngoto L\nreturn\n",
+                "label L", "push constant 0", "if-goto L", "push constant 5", "if-goto L", "return");
+        assertRewrites("label L\ngoto L\n", "label L", "push constant 0", "not", "if-goto L");
+        assertUnchanged("label L", "push local 0", "if-goto L");
+    }
+
+    @Test
+    void branchOnNonZero() throws IOException {
+        assertRewrites("push local 0\nif-goto L\n", "push local 0", "push constant 0", "eq", "not", "if-goto L");
+        assertUnchanged("push local 0", "push constant 1", "eq", "not", "if-goto L");
+    }
+
+    @Test
+    void gotoTheNextLabel() throws IOException {
+        assertRewrites("label K\nlabel L\n", "goto L", "label K", "label L");
+        assertUnchanged("goto L", "label K", "return", "label L");
+    }
+
+    @Test
+    void arrayElementReadTwice() throws IOException {
+        assertRewrites("push local 0\npush local 1\nadd\npop pointer 1\npush that 0\npush that 0\nadd\n",
+                "push local 0", "push local 1", "add", "pop pointer 1", "push that 0",
+                "push local 0", "push local 1", "add", "pop pointer 1", "push that 0", "add");
+        // the index is read through that, which the first read moved
+        assertUnchanged("push local 0", "push that 0", "add", "pop pointer 1", "push that 0",
+                "push local 0", "push that 0", "add", "pop pointer 1", "push that 0", "add");
+        // a label in between can be jumped to with pointer 1 anywhere
+        assertUnchanged("push local 0", "push local 1", "add", "pop pointer 1", "push that 0", "label L",
+                "push local 0", "push local 1", "add", "pop pointer 1", "push that 0", "add");
+    }
+
+    @Test
+    void arrayStoreWithoutTemp() throws IOException {
+        assertRewrites("push local 0\npush constant 2\nadd\npop pointer 1\npush argument 1\npop that 0\n",
+                "push local 0", "push constant 2", "add", "push argument 1",
+                "pop temp 0", "pop pointer 1", "push temp 0", "pop that 0");
+        // a value read through that has to be fetched before pointer 1 changes
+        assertUnchanged("push local 0", "push constant 2", "add", "push that 0",
+                "pop temp 0", "pop pointer 1", "push temp 0", "pop that 0");
+    }
+
+    @Test
+    void oneRewriteEnablesTheNext() throws IOException {
+        assertRewrites("", "push local 0", "push constant 0", "not", "not", "add", "pop local 0");
+    }
+
+    private void assertUnchanged(String... instructions) throws IOException {
+        assertRewrites(String.join("\n", instructions) + "\n", instructions);
+    }
+
+    private void assertRewrites(String expected, String... instructions) throws IOException {
+        var input = new File(dir, "Input.vm");
+        Files.writeString(input.toPath(), String.join("\n", instructions) + "\n");
+        var output = new MemoryCodeSink();
+        var optimizer = new PeepholeOptimizer(new VMCodeGenerator(output));
+        VMReader.read(input, optimizer);
+        optimizer.close();
+        assertEquals(expected, output.toString());
+    }
+}
@@ -0,0 +1,91 @@
+package org.qualcomm.manjoosha;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Calls are checked against the scanned headers of every class, and of the OS, before any code
+ * is generated.
+ */
+class SignatureIndexTest {
+
+    private static final String HELPER = ""
+            + "class Helper {\n"
+            + "    field int value;\n"
+            + "    constructor Helper new() { return this; }\n"
+            + "    function int twice(int x) { return x + x; }\n"
+            + "    method int get() { return value; }\n"
+            + "}\n";
+
+    @TempDir
+    File dir;
+
+    private int programs;
+
+    @Test
+    void callsIntoOtherClasses() throws IOException {
+        assertFails("Wrong number of arguments : Helper.twice takes 1, got 2", "do Helper.twice(1, 2);");
+        assertFails("Unknown subroutine : Helper.thrice", "do Helper.thrice(1);");
+        assertFails("Unknown class or variable : Helpr", "do Helpr.twice(1);");
+        assertFails("Helper.get is a method, called as a function", "do Helper.get();");
+        assertFails("Helper.twice is a function, called as a method", "do h.twice(1);");
+        assertFails("Wrong number of arguments : Helper.get takes 0, got 1", "do h.get(1);");
+    }
+
+    @Test
+    void callsWithinTheClass() throws IOException {
+        assertFails("Method Main.run called from function Main.main", "do run();");
+        assertFails("Wrong number of arguments : Main.main takes 0, got 1", "do main(1);");
+    }
+
+    @Test
+    void callsIntoTheOs() throws IOException {
+        assertFails("Wrong number of arguments : Output.printInt takes 1, got 2", "do Output.printInt(1, 2);");
+        assertFails("Unknown subroutine : Math.cube", "do Math.cube(2);");
+        assertFails("String.length is a method, called as a function", "do String.length();");
+    }
+
+    @Test
+    void aProgramClassReplacesTheOsClass() throws IOException {
+        var programDir = program("do Output.printInt(Math.cube(2));", HELPER, ""
+                + "class Math {\n"
+                + "    function int cube(int x) { return x * x * x; }\n"
+                + "}\n");
+        assertEquals("", TestPrograms.compile(programDir, List.of()));
+    }
+
+    @Test
+    void aSingleFileMayCallClassesItCannotSee() throws IOException {
+        var programDir = program("do Other.f(1);", HELPER);
+        assertEquals("", TestPrograms.compile(new File(programDir, "Main.jack"), List.of()));
+        assertTrue(TestPrograms.compile(programDir, List.of()).contains("Unknown class or variable : Other"));
+    }
+
+    private void assertFails(String message, String statement) throws IOException {
+        var programDir = program(statement, HELPER);
+        for (var flags : List.of(List.<String>of(), List.of("--stream"), List.of("-O2", "--whole-program"),
+                List.of("--asm"))) {
+            var errors = TestPrograms.compile(programDir, flags);
+            assertTrue(errors.contains("Main.jack : " + message), "with flags " + flags + ": " + errors);
+        }
+    }
+
+    private File program(String statement, String... classes) throws IOException {
+        return TestPrograms.program(dir, "program" + programs++, ""
+                + "class Main {\n"
+                + "    method void run() { return; }\n"
+                + "    function void main() {\n"
+                + "        var Helper h;\n"
+                + "        let h = Helper.new();\n"
+                + "        " + statement + "\n"
+                + "        return;\n"
+                + "    }\n"
+                + "}\n", classes);
+    }
+}
@@ -0,0 +1,72 @@
+package org.qualcomm.manjoosha;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * --stream only changes how the sources are read, so it must write exactly what reading them
+ * whole writes.
+ */
+class StreamingInputTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    void streamingWritesTheSameCode() throws IOException {
+        for (var flags : TestPrograms.CONFIGURATIONS) {
+            var programDir = program("config" + TestPrograms.CONFIGURATIONS.indexOf(flags));
+            assertEquals("", TestPrograms.compile(programDir, flags));
+            var whole = TestPrograms.outputs(programDir);
+            var printed = TestPrograms.run(programDir, flags);
+            for (var output : List.of(new File(programDir, "Main.vm"), new File(programDir, "Helper.vm"),
+                    JackCompiler.assemblyFileFor(programDir))) {
+                output.delete();
+            }
+            var streamFlags = new ArrayList<>(flags);
+            streamFlags.add("--stream");
+            assertEquals("", TestPrograms.compile(programDir, streamFlags));
+            assertEquals(whole, TestPrograms.outputs(programDir), "with flags " + flags);
+            assertEquals(printed, TestPrograms.run(programDir, streamFlags));
+        }
+    }
+
+    // Main is well over a read chunk, so tokens, comments and literals straddle chunk boundaries,
+    // while its code and statics still fit the Hack platform
+    private File program(String name) throws IOException {
+        var main = new StringBuilder("class Main {\n    static Array memo;\n");
+        for (var i = 0; i < 40; i++) {
+            main.append("    /**\n");
+            for (var line = 0; line < 40; line++) {
+                main.append("     * Step ").append(i).append(" of the chain, line ").append(line).append(" of its story.\n");
+            }
+            main.append("     */\n")
+                    .append("    function int step").append(i).append("(int x) {\n")
+                    .append("        var String s;\n")
+                    .append("        let s = \"step ").append(i).append(" // not a comment\";\n")
+                    .append("        let memo[").append(i % 7).append("] = x + s.length(); // keep s alive\n")
+                    .append("        return Helper.twice(memo[").append(i % 7).append("]) - ").append(i).append(";\n")
+                    .append("    }\n");
+        }
+        main.append("    function void main() {\n        var int x;\n        let memo = Array.new(7);\n");
+        for (var i = 0; i < 40; i += 3) {
+            main.append("        let x = Main.step").append(i).append("(x);\n");
+        }
+        main.append("        do Output.printInt(x);\n        return;\n    }\n}\n");
+        var programDir = TestPrograms.program(dir, name, main.toString());
+        Files.writeString(new File(programDir, "Helper.jack").toPath(), ""
+                + "class Helper {\n"
+                + "    function int twice(int x) {\n"
+                + "        return x + x;\n"
+                + "    }\n"
+                + "}\n");
+        return programDir;
+    }
+}
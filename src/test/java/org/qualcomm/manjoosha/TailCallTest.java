@@ -0,0 +1,101 @@
+package org.qualcomm.manjoosha;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.qualcomm.manjoosha.TestPrograms.SHOW;
+import static org.qualcomm.manjoosha.TestPrograms.assertAllPrint;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TailCallTest {
+
+    private static final String NODE = ""
+            + "class Node {\n"
+            + "    field int value;\n"
+            + "    field Node next;\n"
+            + "    constructor Node new(int v, Node n) {\n"
+            + "        let value = v;\n"
+            + "        let next = n;\n"
+            + "        return this;\n"
+            + "    }\n"
+            + "    method int sum(int acc) {\n"
+            + "        if (next = null) { return acc + value; }\n"
+            + "        return next.sum(acc + value);\n"
+            + "    }\n"
+            + "}\n";
+
+    private static final String COUNT = ""
+            + "    function int count(int n, int acc) {\n"
+            + "        if (n = 0) { return acc; }\n"
+            + "        return Main.count(n - 1, acc + 1);\n"
+            + "    }\n";
+
+    @TempDir
+    File dir;
+
+    // gcd passes its arguments swapped, fresh relies on its local starting at 0 on every entry,
+    // depth is not a tail call, and sum recurses on another object
+    @Test
+    void selfTailCallsBehaveLikeCalls() throws IOException {
+        assertAllPrint(dir, "50 21 20 3 6 ", ""
+                + "class Main {\n"
+                + SHOW
+                + COUNT
+                + "    function int gcd(int a, int b) {\n"
+                + "        if (b = 0) { return a; }\n"
+                + "        return Main.gcd(b, a - (b * (a / b)));\n"
+                + "    }\n"
+                + "    function int depth(int n) {\n"
+                + "        if (n = 0) { return 0; }\n"
+                + "        return 1 + Main.depth(n - 1);\n"
+                + "    }\n"
+                + "    function int fresh(int n, int acc) {\n"
+                + "        var int x;\n"
+                + "        let acc = acc + x;\n"
+                + "        let x = 100;\n"
+                + "        if (n = 0) { return acc; }\n"
+                + "        return Main.fresh(n - 1, acc + 1);\n"
+                + "    }\n"
+                + "    function void main() {\n"
+                + "        var Node list;\n"
+                + "        do Main.show(Main.count(50, 0));\n"
+                + "        do Main.show(Main.gcd(1071, 462));\n"
+                + "        do Main.show(Main.depth(20));\n"
+                + "        do Main.show(Main.fresh(3, 0));\n"
+                + "        let list = Node.new(1, Node.new(2, Node.new(3, null)));\n"
+                + "        do Main.show(list.sum(0));\n"
+                + "        return;\n"
+                + "    }\n"
+                + "}\n", NODE);
+    }
+
+    // far deeper than either machine's stack holds as real calls
+    @Test
+    void deepTailRecursionRunsInConstantStack() throws IOException {
+        var source = ""
+                + "class Main {\n"
+                + COUNT
+                + "    function void main() {\n"
+                + "        do Output.printInt(Main.count(3000, 0));\n"
+                + "        return;\n"
+                + "    }\n"
+                + "}\n";
+        for (var flags : TestPrograms.CONFIGURATIONS) {
+            if (!flags.contains("-O1") && !flags.contains("-O2")) {
+                continue;
+            }
+            var programDir = TestPrograms.program(dir, "config" + TestPrograms.CONFIGURATIONS.indexOf(flags), source);
+            assertEquals("", TestPrograms.compile(programDir, flags));
+            assertEquals("3000", TestPrograms.run(programDir, flags), "with flags " + flags);
+        }
+        var programDir = TestPrograms.program(dir, "vm", source);
+        assertEquals("", TestPrograms.compile(programDir, List.of("-O1")));
+        var code = Files.readString(new File(programDir, "Main.vm").toPath());
+        assertFalse(code.contains("call Main.count 2\nreturn"), code);
+    }
+}
@@ -0,0 +1,117 @@
+package org.qualcomm.manjoosha;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Compiles Jack programs through the command line entry point and runs what comes out, on
+ * {@link VirtualMachine} for .vm files and on {@link HackEmulator} for .asm.
+ */
+final class TestPrograms {
+
+    /**
+     * Every combination of optimizations and backends a program should behave the same under.
+     */
+    static final List<List<String>> CONFIGURATIONS = List.of(
+            List.of(),
+            List.of("-O1"),
+            List.of("-O2", "--intern-strings"),
+            List.of("-O1", "--whole-program"),
+            List.of("-O2", "--whole-program", "--inline-limit", "64"),
+            List.of("--asm"),
+            List.of("-O1", "--asm"),
+            List.of("-O2", "--whole-program", "--asm"));
+
+    /**
+     * A Main subroutine that prints a value and a space, so expected output stays readable.
+     */
+    static final String SHOW = ""
+            + "    function void show(int x) {\n"
+            + "        do Output.printInt(x);\n"
+            + "        do Output.printChar(32);\n"
+            + "        return;\n"
+            + "    }\n";
+
+    private TestPrograms() {
+    }
+
+    /**
+     * Writes {@code source} as Main.jack into a new directory, next to the OS stubs and the
+     * other {@code classes}, each in the file its class declaration names.
+     */
+    static File program(File parent, String name, String source, String... classes) throws IOException {
+        var programDir = new File(parent, name);
+        programDir.mkdirs();
+        Files.writeString(new File(programDir, "Main.jack").toPath(), source);
+        for (var other : classes) {
+            Files.writeString(new File(programDir, className(other) + ".jack").toPath(), other);
+        }
+        OperatingSystemStub.writeVmFiles(programDir);
+        return programDir;
+    }
+
+    private static String className(String source) {
+        var matcher = Pattern.compile("class\\s+(\\w+)").matcher(source);
+        if (!matcher.find()) {
+            throw new IllegalArgumentException("No class declaration in " + source);
+        }
+        return matcher.group(1);
+    }
+
+    /**
+     * Compiles and runs the Main class in {@code source}, along with any other {@code classes},
+     * under every configuration and checks that each prints {@code expected}.
+     */
+    static void assertAllPrint(File parent, String expected, String source, String... classes) throws IOException {
+        for (var i = 0; i < CONFIGURATIONS.size(); i++) {
+            var flags = CONFIGURATIONS.get(i);
+            var programDir = program(parent, "config" + i, source, classes);
+            assertEquals("", compile(programDir, flags), "compiling with flags " + flags);
+            assertEquals(expected, run(programDir, flags), "with flags " + flags);
+        }
+    }
+
+    /**
+     * @return what the compiler reported as errors, empty if it succeeded
+     */
+    static String compile(File input, List<String> flags) {
+        var args = new ArrayList<>(flags);
+        args.add(input.getPath());
+        var out = new ByteArrayOutputStream();
+        var err = new ByteArrayOutputStream();
+        var status = JackCompiler.run(CompilerOptions.parse(args.toArray(new String[0])),
+                new PrintStream(out), new PrintStream(err));
+        assertEquals(status != 0, err.size() > 0, "status " + status + " with errors " + err);
+        return err.toString();
+    }
+
+    /**
+     * @return the text of every .vm and .asm file in {@code dir}, by file name
+     */
+    static Map<String, String> outputs(File dir) throws IOException {
+        var outputs = new TreeMap<String, String>();
+        for (var file : dir.listFiles((parent, name) -> name.endsWith(".vm") || name.endsWith(".asm"))) {
+            outputs.put(file.getName(), Files.readString(file.toPath()));
+        }
+        return outputs;
+    }
+
+    /**
+     * @return what the program compiled into {@code programDir} printed
+     */
+    static String run(File programDir, List<String> flags) throws IOException {
+        return flags.contains("--asm")
+                ? HackEmulator.run(JackCompiler.assemblyFileFor(programDir))
+                : VirtualMachine.run(programDir);
+    }
+}
@@ -0,0 +1,106 @@
+package org.qualcomm.manjoosha;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TreeShakingTest {
+
+    private static final String MAIN = ""
+            + "class Main {\n"
+            + "    function void main() {\n"
+            + "        var Counter c;\n"
+            + "        let c = Counter.new(40);\n"
+            + "        do c.bump();\n"
+            + "        do Output.printInt(c.get());\n"
+            + "        return;\n"
+            + "    }\n"
+            + "    function void ping(int n) {\n"
+            + "        if (n > 0) { do Main.pong(n - 1); }\n"
+            + "        return;\n"
+            + "    }\n"
+            + "    function void pong(int n) {\n"
+            + "        if (n > 0) { do Main.ping(n - 1); }\n"
+            + "        return;\n"
+            + "    }\n"
+            + "}\n";
+
+    private static final String COUNTER = ""
+            + "class Counter {\n"
+            + "    field int count;\n"
+            + "    constructor Counter new(int start) {\n"
+            + "        let count = start;\n"
+            + "        return this;\n"
+            + "    }\n"
+            + "    method void bump() {\n"
+            + "        let count = Counter.twice(count + 1) - count;\n"
+            + "        return;\n"
+            + "    }\n"
+            + "    function int twice(int x) {\n"
+            + "        return x + x;\n"
+            + "    }\n"
+            + "    method int get() {\n"
+            + "        return count;\n"
+            + "    }\n"
+            + "    method void reset() {\n"
+            + "        let count = Counter.zero();\n"
+            + "        return;\n"
+            + "    }\n"
+            + "    function int zero() {\n"
+            + "        return 0;\n"
+            + "    }\n"
+            + "}\n";
+
+    private static final String UNUSED = ""
+            + "class Unused {\n"
+            + "    function void run() {\n"
+            + "        do Main.ping(3);\n"
+            + "        return;\n"
+            + "    }\n"
+            + "}\n";
+
+    @TempDir
+    File dir;
+
+    @Test
+    void dropsWhatNoCallChainReaches() throws IOException {
+        var programDir = TestPrograms.program(dir, "shaken", MAIN);
+        Files.writeString(new File(programDir, "Counter.jack").toPath(), COUNTER);
+        Files.writeString(new File(programDir, "Unused.jack").toPath(), UNUSED);
+        // left over from an earlier build, when something still called it
+        Files.writeString(new File(programDir, "Unused.vm").toPath(), "function Unused.run 0\npush constant 0\nreturn\n");
+
+        var out = new ByteArrayOutputStream();
+        var err = new ByteArrayOutputStream();
+        var args = new String[]{"--whole-program", programDir.getPath()};
+        assertEquals(0, JackCompiler.run(CompilerOptions.parse(args), new PrintStream(out), new PrintStream(err)), err.toString());
+        var report = out.toString();
+
+        var main = Files.readString(new File(programDir, "Main.vm").toPath());
+        assertTrue(main.contains("function Main.main"));
+        // ping and pong only reach each other
+        assertFalse(main.contains("function Main.ping"), main);
+        assertFalse(main.contains("function Main.pong"), main);
+        var counter = Files.readString(new File(programDir, "Counter.vm").toPath());
+        for (var kept : List.of("Counter.new", "Counter.bump", "Counter.twice", "Counter.get")) {
+            assertTrue(counter.contains("function " + kept + " "), kept);
+        }
+        for (var removed : List.of("Counter.reset", "Counter.zero")) {
+            assertFalse(counter.contains("function " + removed + " "), removed);
+            assertTrue(report.contains("Removed unreachable function " + removed), report);
+        }
+        assertFalse(new File(programDir, "Unused.vm").exists());
+        assertTrue(report.contains("File omitted, nothing in it is reachable"), report);
+        assertTrue(report.contains("Tree shaking kept 5 of 10 functions"), report);
+        assertEquals("42", TestPrograms.run(programDir, List.of("--whole-program")));
+    }
+}
@@ -0,0 +1,221 @@
+package org.qualcomm.manjoosha;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the .vm files of a directory with the standard stack frame layout, handing calls to the
+ * OS to an {@link OperatingSystemStub}.
+ */
+final class VirtualMachine {
+
+    private static final int SP = 0;
+    private static final int LCL = 1;
+    private static final int ARG = 2;
+    private static final int THIS = 3;
+    private static final int THAT = 4;
+    private static final int TEMP = 5;
+    private static final int STATIC_BASE = 16;
+    private static final int STACK_BASE = 256;
+    private static final int STACK_LIMIT = 2048;
+    private static final int STEP_LIMIT = 10_000_000;
+
+    private final List<String[]> code;
+    private final List<String> owners;
+    private final List<String> classes;
+    private final Map<String, Integer> functions;
+    private final Map<String, Integer> labels;
+    private final int[] ram;
+    private final OperatingSystemStub os;
+
+    private VirtualMachine() {
+        code = new ArrayList<>();
+        owners = new ArrayList<>();
+        classes = new ArrayList<>();
+        functions = new HashMap<>();
+        labels = new HashMap<>();
+        ram = new int[32768];
+        os = new OperatingSystemStub(ram);
+    }
+
+    /**
+     * Calls Sys.init if the program defines it and Main.main otherwise, and runs until that
+     * returns or Sys.halt is called.
+     *
+     * @return everything the program printed
+     */
+    static String run(File dir) throws IOException {
+        var files = dir.listFiles((parent, name) -> name.endsWith(".vm"));
+        if (files == null || files.length == 0) {
+            throw new IllegalStateException("No .vm files in " + dir);
+        }
+        var machine = new VirtualMachine();
+        var statics = new HashMap<String, Integer>();
+        var next = STATIC_BASE;
+        for (var file : files) {
+            var className = file.getName().substring(0, file.getName().length() - 3);
+            var count = machine.load(Files.readAllLines(file.toPath()), className);
+            statics.put(className, next);
+            next += count;
+        }
+        return machine.execute(statics);
+    }
+
+    /**
+     * @return the number of statics the class uses
+     */
+    private int load(List<String> lines, String className) {
+        var function = "";
+        var count = 0;
+        for (var line : lines) {
+            var comment = line.indexOf("//");
+            var text = (comment >= 0 ? line.substring(0, comment) : line).trim();
+            if (text.isEmpty()) {
+                continue;
+            }
+            var parts = text.split("\\s+");
+            if (parts[0].equals("function")) {
+                function = parts[1];
+                functions.put(function, code.size());
+            } else if (parts[0].equals("label")) {
+                if (labels.put(function + "$" + parts[1], code.size()) != null) {
+                    throw new IllegalStateException("Duplicate label " + parts[1] + " in " + function);
+                }
+            } else if (parts.length == 3 && parts[1].equals("static")) {
+                count = Math.max(count, Integer.parseInt(parts[2]) + 1);
+            }
+            code.add(parts);
+            owners.add(function);
+            classes.add(className);
+        }
+        return count;
+    }
+
+    private String execute(Map<String, Integer> statics) {
+        var entry = functions.containsKey("Sys.init") ? "Sys.init" : "Main.main";
+        ram[SP] = STACK_BASE;
+        var pc = call(functions.get(entry), 0, -1);
+        for (var steps = 0; pc >= 0 && !os.isHalted(); steps++) {
+            if (steps > STEP_LIMIT) {
+                throw new IllegalStateException("Step limit exceeded");
+            }
+            var parts = code.get(pc);
+            var function = owners.get(pc);
+            var className = classes.get(pc);
+            pc++;
+            switch (parts[0]) {
+                case "push" -> push(parts[1].equals("constant")
+                        ? Integer.parseInt(parts[2])
+                        : ram[address(parts[1], Integer.parseInt(parts[2]), className, statics)]);
+                case "pop" -> {
+                    var address = address(parts[1], Integer.parseInt(parts[2]), className, statics);
+                    ram[address] = pop();
+                }
+                case "add", "sub", "and", "or", "eq", "gt", "lt" -> {
+                    var y = pop();
+                    var x = pop();
+                    push(switch (parts[0]) {
+                        case "add" -> x + y;
+                        case "sub" -> x - y;
+                        case "and" -> x & y;
+                        case "or" -> x | y;
+                        case "eq" -> x == y ? -1 : 0;
+                        case "gt" -> x > y ? -1 : 0;
+                        default -> x < y ? -1 : 0;
+                    });
+                }
+                case "neg" -> push(-pop());
+                case "not" -> push(~pop());
+                case "label" -> {
+                }
+                case "goto" -> pc = label(function, parts[1]);
+                case "if-goto" -> {
+                    if (pop() != 0) {
+                        pc = label(function, parts[1]);
+                    }
+                }
+                case "function" -> {
+                    for (var i = 0; i < Integer.parseInt(parts[2]); i++) {
+                        push(0);
+                    }
+                }
+                case "call" -> {
+                    var arguments = Integer.parseInt(parts[2]);
+                    if (OperatingSystemStub.implementsFunction(parts[1])) {
+                        var args = new int[arguments];
+                        ram[SP] -= arguments;
+                        System.arraycopy(ram, ram[SP], args, 0, arguments);
+                        push(os.call(parts[1], args));
+                    } else {
+                        var callee = functions.get(parts[1]);
+                        if (callee == null) {
+                            throw new IllegalStateException("Unknown function " + parts[1]);
+                        }
+                        pc = call(callee, arguments, pc);
+                    }
+                }
+                case "return" -> {
+                    var frame = ram[LCL];
+                    var returnAddress = ram[frame - 5];
+                    ram[ram[ARG]] = pop();
+                    ram[SP] = ram[ARG] + 1;
+                    ram[THAT] = ram[frame - 1];
+                    ram[THIS] = ram[frame - 2];
+                    ram[ARG] = ram[frame - 3];
+                    ram[LCL] = ram[frame - 4];
+                    pc = returnAddress;
+                }
+                default -> throw new IllegalStateException("Unknown command " + String.join(" ", parts));
+            }
+        }
+        return os.getOutput();
+    }
+
+    private int call(int callee, int arguments, int returnAddress) {
+        push(returnAddress);
+        push(ram[LCL]);
+        push(ram[ARG]);
+        push(ram[THIS]);
+        push(ram[THAT]);
+        ram[ARG] = ram[SP] - arguments - 5;
+        ram[LCL] = ram[SP];
+        return callee;
+    }
+
+    private int label(String function, String label) {
+        var target = labels.get(function + "$" + label);
+        if (target == null) {
+            throw new IllegalStateException("Unknown label " + label + " in " + function);
+        }
+        return target;
+    }
+
+    private int address(String segment, int index, String className, Map<String, Integer> statics) {
+        return switch (segment) {
+            case "local" -> ram[LCL] + index;
+            case "argument" -> ram[ARG] + index;
+            case "this" -> ram[THIS] + index;
+            case "that" -> ram[THAT] + index;
+            case "pointer" -> THIS + index;
+            case "temp" -> TEMP + index;
+            case "static" -> statics.get(className) + index;
+            default -> throw new IllegalStateException("Unknown segment " + segment);
+        };
+    }
+
+    private void push(int value) {
+        if (ram[SP] >= STACK_LIMIT) {
+            throw new IllegalStateException("Stack overflow");
+        }
+        ram[ram[SP]++] = (short) value;
+    }
+
+    private int pop() {
+        return ram[--ram[SP]];
+    }
+}